@@ -6,6 +6,12 @@
 #define MANUAL_MODE "m" // Defines the mode for the second functionality
 #define TEMP A5         // Defines the pin used for the LM35 sensor
 
+#define FRAME_SYNC 0xA5 // First byte of a binary command frame sent by the app
+#define FRAME_LENGTH 8  // Length of a binary command frame: sync, mode, left (2), right (2), sequence, checksum
+#define TRAJECTORY_SYNC 0xA6 // First byte of a trajectory frame sent by the app
+#define MAX_SEGMENTS 12      // Most segments in a trajectory frame, so the whole frame fits in the 64 byte receive buffer
+#define SEGMENT_LENGTH 4     // Bytes per segment: left magnitude, right magnitude, signs and duration high bits, duration low bits
+
 /* Define the currentStates */
 #define FORWARD 0 	// Sets the forward state as 0 
 #define LEFT 1 	        // Sets the left state as 1
@@ -40,6 +46,19 @@ double corFactor = 1.042; // The correction factor
 
 String s; // Initialize string to get from Android app
 
+byte frame[FRAME_LENGTH]; // Holds a binary command frame while it is being received
+int frameIndex = 0;       // Number of bytes of the current binary frame received so far
+int commandSequence;      // Sequence number of the last command received, echoed back with the distance
+
+byte trajectoryFrame[4 + MAX_SEGMENTS * SEGMENT_LENGTH]; // Holds a trajectory frame while it is being received
+int trajectoryIndex = 0;                  // Number of bytes of the current trajectory frame received so far
+int trajectoryLeft[MAX_SEGMENTS];         // Left motor speed of each segment of the running trajectory
+int trajectoryRight[MAX_SEGMENTS];        // Right motor speed of each segment
+unsigned int trajectoryDuration[MAX_SEGMENTS]; // Milliseconds each segment lasts
+int trajectoryCount = 0;                  // Number of segments in the running trajectory, 0 if none is running
+int trajectorySegment;                    // Segment running now
+unsigned long segmentStart;               // millis() when the segment running now started
+
 SoftwareSerial bluetoothSerial(13,12); // Initialize the serial port to be used for the bluetooth module 
 char incomingByte;                     // Initializes the serial port used for the bluetooth module
 
@@ -76,14 +95,52 @@ void loop(){
     /* Makes a string of all the incoming bytes received from the bluetooth module */
     while(bluetoothSerial.available() > 0){
       incomingByte = bluetoothSerial.read(); // Reads the incoming byte from the bluetooth module 
-      s += incomingByte; // Concatenates a string with the old string and the current incoming byte
+      if(trajectoryIndex > 0 || (frameIndex == 0 && (byte)incomingByte == TRAJECTORY_SYNC)){ // Checks if the byte is part of a trajectory frame
+        trajectoryFrame[trajectoryIndex++] = incomingByte; // Stores the byte in the trajectory buffer
+        if(trajectoryIndex == 2 && trajectoryFrame[1] > MAX_SEGMENTS){ // Checks if the segment count is impossible
+          trajectoryIndex = 0; // Not a real frame, start looking for the next one
+        }else if(trajectoryIndex > 2 && trajectoryIndex == 4 + trajectoryFrame[1] * SEGMENT_LENGTH){ // Checks if the whole frame has been received
+          int length = trajectoryIndex; // Remembers the length of the frame
+          trajectoryIndex = 0; // Start looking for the next frame
+          if(trajectoryValid(length)){ // Only use frames that were not corrupted
+            startTrajectory(); // Runs the new trajectory in place of any running one
+            commandSequence = trajectoryFrame[2]; // Remembers the sequence number of the frame
+          }
+        }
+      }else if(frameIndex > 0 || (byte)incomingByte == FRAME_SYNC){ // Checks if the byte is part of a binary frame
+        frame[frameIndex++] = incomingByte; // Stores the byte in the frame buffer
+        if(frameIndex == FRAME_LENGTH){ // Checks if the whole frame has been received
+          frameIndex = 0; // Start looking for the next frame
+          if(frameValid()){ // Only use frames that were not corrupted
+            s = frameToCommand(); // Converts the frame to the same string a text command would give
+            commandSequence = frame[6]; // Remembers the sequence number of the frame
+            if(frame[1] == 'i'){ // Checks if the frame is a stop
+              idle(); // Stops the motors straight away instead of after the distance is measured
+              trajectoryCount = 0; // Cancels any running trajectory
+            }
+          }
+        }
+      }else{
+        s += incomingByte; // Concatenates a string with the old string and the current incoming byte
+      }
+    }
+    
+    int sequenceIndex = s.indexOf("s"); // Finds the sequence number at the end of a text command
+    if(sequenceIndex >= 0){ // Checks if the text command has a sequence number
+      commandSequence = s.substring(sequenceIndex+1).toInt(); // Remembers the sequence number of the command
+      s = s.substring(0, sequenceIndex); // Removes the sequence number from the command
     }
     
     float distance = getDistance();    // Get the distance and set it to distance
-    bluetoothSerial.println(distance); // Print the distance to the bluetooth module
+    bluetoothSerial.print(distance);   // Print the distance to the bluetooth module
+    bluetoothSerial.print(" ");        // Separates the distance from the sequence number
+    bluetoothSerial.println(commandSequence); // Echoes the sequence number so the app can time the round trip
   }
   
   operatingMode = s.substring(0,1); // Sets the operating mode depending on the first value sent from the bluetooth module
+  if(operatingMode == AUTO_MODE || operatingMode == MANUAL_MODE || operatingMode == IDLE_MODE){
+    trajectoryCount = 0; // Any command cancels a running trajectory
+  }
  
   //* Decides which functionality to operate with */
   if(operatingMode == AUTO_MODE){// Checks if the operating mode is the basic functionality
@@ -96,6 +153,8 @@ void loop(){
     idle(); // Calls idle mode
   }
   
+  runTrajectory(); // Moves on to the next segment of a running trajectory when it is due
+  
   delay(30); // Delay for 30 milliseconds 
 }
 
@@ -104,6 +163,73 @@ void idle(){
   analogWrite(E2, 0); // Changes of the speed the second motor spins to zero
 }
 
+/* Checks that the checksum of the binary frame matches the low byte of the sum of the mode, speed and sequence bytes */
+boolean frameValid(){
+  byte sum = 0; // Initialize the checksum
+  for(int i = 1; i < FRAME_LENGTH - 1; i++){ // Adds every byte between the sync byte and the checksum
+    sum += frame[i];
+  }
+  return sum == frame[FRAME_LENGTH - 1]; // Returns if the checksum matches
+}
+
+/* Checks that the checksum of a trajectory frame matches the low byte of the sum of every byte after the sync byte */
+boolean trajectoryValid(int length){
+  byte sum = 0; // Initialize the checksum
+  for(int i = 1; i < length - 1; i++){ // Adds every byte between the sync byte and the checksum
+    sum += trajectoryFrame[i];
+  }
+  return sum == trajectoryFrame[length - 1]; // Returns if the checksum matches
+}
+
+/* Starts running the segments of a received trajectory frame. A frame without segments only asks for the distance */
+void startTrajectory(){
+  int count = trajectoryFrame[1]; // Number of segments in the frame
+  if(count == 0){ // Checks if the frame only asks for the distance
+    return; // Leaves any running trajectory alone
+  }
+  for(int i = 0; i < count; i++){ // Decodes every segment
+    int position = 3 + i * SEGMENT_LENGTH; // Where the segment starts in the frame
+    trajectoryLeft[i] = trajectoryFrame[position]; // Left speed magnitude
+    trajectoryRight[i] = trajectoryFrame[position+1]; // Right speed magnitude
+    if(trajectoryFrame[position+2] & 0x80){ // Checks the sign bit of the left speed
+      trajectoryLeft[i] = -trajectoryLeft[i];
+    }
+    if(trajectoryFrame[position+2] & 0x40){ // Checks the sign bit of the right speed
+      trajectoryRight[i] = -trajectoryRight[i];
+    }
+    trajectoryDuration[i] = ((unsigned int)(trajectoryFrame[position+2] & 0x3F) << 8) | trajectoryFrame[position+3]; // Duration in milliseconds
+  }
+  trajectoryCount = count; // Starts the trajectory
+  trajectorySegment = 0; // From its first segment
+  segmentStart = millis(); // Now
+  driveMotors(trajectoryLeft[0], trajectoryRight[0]); // Sets the speeds of the first segment
+}
+
+/* Moves on through the segments of the running trajectory that are over, and stops the motors after the last one */
+void runTrajectory(){
+  while(trajectoryCount > 0 && millis() - segmentStart >= trajectoryDuration[trajectorySegment]){ // Checks if the segment running now is over
+    segmentStart += trajectoryDuration[trajectorySegment]; // The next segment starts when this one was due to end
+    trajectorySegment++; // Moves on to the next segment
+    if(trajectorySegment == trajectoryCount){ // Checks if that was the last segment
+      trajectoryCount = 0; // The trajectory is over
+      idle(); // Stops the motors
+    }else{
+      driveMotors(trajectoryLeft[trajectorySegment], trajectoryRight[trajectorySegment]); // Sets the speeds of the next segment
+    }
+  }
+}
+
+/* Converts a binary frame into the equivalent "<mode><left>n<right>" text command */
+String frameToCommand(){
+  int left = (int)((frame[2] << 8) | frame[3]);  // Rebuilds the signed left motor speed
+  int right = (int)((frame[4] << 8) | frame[5]); // Rebuilds the signed right motor speed
+  String command = String((char)frame[1]); // Starts the command with the mode character
+  command += left; // Adds the left motor speed
+  command += "n"; // Adds the separator
+  command += right; // Adds the right motor speed
+  return command; // Returns the text command
+}
+
 /* function for the basic required functionality */
 void basicFunctionality(){
   String lcdMessage; // Initialize variable for LCD message
@@ -187,6 +313,11 @@ void extraFunctionality(String s){
   motor1 = s1.toInt(); // Converts the first motor value (string) into a useable integer
   motor2 = s2.toInt(); // Converts the second motor value (string) into a useable integer
   
+  driveMotors(motor1, motor2); // Sets the direction and speed of both motors
+}
+
+/* Sets both motors to signed speeds, the sign choosing the direction each motor spins */
+void driveMotors(int motor1, int motor2){
   /* Sets the direction the motors spin to forward if the motor value received is positive */
   if(motor1 >= 0){ // Checks if the first motor value is greater than or equal to 0
     digitalWrite(M1, HIGH); // If so changes the first motor to spin forwards
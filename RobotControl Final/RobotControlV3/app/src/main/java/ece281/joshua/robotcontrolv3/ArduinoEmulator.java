@@ -0,0 +1,389 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+
+/**
+ * Pure Java stand-in for the robot running Project1_Final.ino, so the control path can be exercised and load tested on
+ * a plain JVM. It speaks the same protocol as the firmware:
+ *  - text commands "<mode><left>n<right>" and binary CommandFrame frames are accepted
+ *  - mode 'i' stops the motors, 'm' drives them at the given speeds and 'a' runs the FORWARD/SLOWING/LEFT behaviour
+ *  - Trajectory frames are run segment by segment on the emulator's own clock until they end or another command
+ *    cancels them
+ *  - after every command a distance reading is sent back followed by the command's sequence number, i.e. "23.45 17\r\n"
+ *
+ * The distance comes from a simple model of the robot driving towards a wall: it closes at a speed proportional to the
+ * motor power and a new wall appears at a random distance once the robot has turned away.
+ *
+ * Run main() to serve emulated robots over TCP for use with TcpTransport.
+ */
+public class ArduinoEmulator {
+
+    //Constants from Project1_Final.ino
+    static final int WARNING_DISTANCE = 30; //cm, the robot starts slowing down
+    static final int CRITICAL_DISTANCE = 20; //cm, the robot turns left
+    static final int MAX_SPEED = 238;
+    static final int TURNING_SPEED = 100;
+    static final long LEFT_TIME = 700; //ms it takes to turn 90 degrees
+    static final float CM_PER_SECOND_PER_SPEED = 34.36f / 200; //Conversion used by the firmware for the LCD speed
+
+    private static final int MAX_TEXT_COMMAND = 32; //Longer text commands are noise and are discarded
+
+    private final Random random;
+    private final byte[] frame = new byte[CommandFrame.BINARY_LENGTH]; //Binary frame being received
+    private int frameIndex; //Bytes of the current binary frame received so far
+    private final byte[] text = new byte[MAX_TEXT_COMMAND]; //Text command being received
+    private int textLength;
+    private final byte[] reply = new byte[24]; //Reused buffer for the distance replies
+    private final byte[] trajectoryFrame = new byte[Trajectory.MAX_LENGTH]; //Trajectory frame being received
+    private int trajectoryIndex;
+
+    //Robot state
+    private char mode = 'i';
+    private int leftSpeed, rightSpeed;
+    private float wallDistance; //cm from the sensor to the wall in front of the robot
+    private long lastUpdate; //System.nanoTime() of the last model update
+    private long turnEnd; //When the current automatic left turn finishes, 0 if not turning
+    private float timeoutProbability; //Chance of a reading being 0, like a pulseIn timeout on the real sensor
+
+    //Running trajectory
+    private final int[] trajectoryLeft = new int[Trajectory.MAX_SEGMENTS];
+    private final int[] trajectoryRight = new int[Trajectory.MAX_SEGMENTS];
+    private final int[] trajectoryDuration = new int[Trajectory.MAX_SEGMENTS];
+    private int trajectoryCount; //0 when no trajectory is running
+    private int trajectorySegment; //Segment running now
+    private long segmentStart; //When it started
+
+    //Counters, readable from any thread
+    private volatile long commandCount; //Commands accepted
+    private volatile long rejectedFrames; //Binary frames with a bad checksum
+
+    public ArduinoEmulator(long seed){
+        random = new Random(seed);
+        wallDistance = newWall();
+    }
+
+    /*
+    Sets the chance, between 0 and 1, of a reading being reported as 0 like a pulseIn timeout
+     */
+    public void setTimeoutProbability(float probability){
+        timeoutProbability = probability;
+    }
+
+    /*
+    Starts serving the robot end of a pipe (PipedTransport.getPeer()) on a new daemon thread. When the app end closes
+    the pipe the thread waits for it to be opened again and serves the new connection, so the app can reconnect any
+    number of times
+     */
+    public Thread start(final PipedTransport peer){
+        Thread thread = new Thread("ArduinoEmulator " + peer.getName()){
+            @Override
+            public void run() {
+                while(true){
+                    try {
+                        peer.awaitOpen();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    try {
+                        serve(peer.getInputStream(), peer.getOutputStream());
+                    } catch (IOException e) {
+                        //The app end disconnected
+                    }
+                    if(isInterrupted()){
+                        return;
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /*
+    Reads commands from in and writes a distance reply to out for each of them, until the stream ends. A frame cut off by
+    the previous connection is forgotten
+     */
+    public void serve(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[256];
+        frameIndex = 0;
+        trajectoryIndex = 0;
+        lastUpdate = now();
+        while(true){
+            int bytes = in.read(buffer);
+            if(bytes < 0){
+                return;
+            }
+            receive(buffer, 0, bytes, out);
+        }
+    }
+
+    /*
+    Handles a chunk of received bytes. Like the firmware, all text bytes of one chunk make up one command, while binary
+    frames and trajectory frames are recognised by their sync bytes and may be split across chunks
+     */
+    void receive(byte[] data, int offset, int count, OutputStream out) throws IOException {
+        textLength = 0;
+        for(int i = offset; i < offset + count; i++){
+            byte b = data[i];
+            if(trajectoryIndex > 0 || (frameIndex == 0 && b == Trajectory.SYNC)){
+                trajectoryFrame[trajectoryIndex++] = b;
+                if(trajectoryIndex == 2 && (b & 0xFF) > Trajectory.MAX_SEGMENTS){
+                    trajectoryIndex = 0; //Not a real frame
+                    rejectedFrames++;
+                }else if(trajectoryIndex > 2 && trajectoryIndex == Trajectory.frameLength(trajectoryFrame[1])){
+                    int length = trajectoryIndex;
+                    trajectoryIndex = 0;
+                    if(CommandFrame.checksum(trajectoryFrame, 1, length - 2) == trajectoryFrame[length - 1]){
+                        startTrajectory();
+                        sendDistance(out, trajectoryFrame[2] & 0xFF);
+                    }else{
+                        rejectedFrames++;
+                    }
+                }
+            }else if(frameIndex > 0 || b == CommandFrame.SYNC){
+                frame[frameIndex++] = b;
+                if(frameIndex == CommandFrame.BINARY_LENGTH){
+                    frameIndex = 0;
+                    if(CommandFrame.checksum(frame, 1, 6) == frame[7]){
+                        execute((char) frame[1], (short) ((frame[2] << 8) | (frame[3] & 0xFF)),
+                                (short) ((frame[4] << 8) | (frame[5] & 0xFF)));
+                        sendDistance(out, frame[6] & 0xFF);
+                    }else{
+                        rejectedFrames++;
+                    }
+                }
+            }else if(textLength < MAX_TEXT_COMMAND){
+                text[textLength++] = b;
+            }
+        }
+        if(textLength > 0){
+            sendDistance(out, executeText());
+        }
+    }
+
+    /*
+    Parses a text command "<mode><left>n<right>s<sequence>" from the text buffer and returns its sequence number,
+    or -1 if it has none
+     */
+    private int executeText(){
+        char commandMode = (char) text[0];
+        int separator = 1;
+        while(separator < textLength && text[separator] != 'n'){
+            separator++;
+        }
+        int sequenceStart = separator;
+        while(sequenceStart < textLength && text[sequenceStart] != 's'){
+            sequenceStart++;
+        }
+        execute(commandMode, parseInt(1, separator), parseInt(separator + 1, sequenceStart));
+        return sequenceStart < textLength ? parseInt(sequenceStart + 1, textLength) : -1;
+    }
+
+    /*
+    Parses the ascii digits between start and end, like Arduino's String.toInt() it stops at the first non-digit
+     */
+    private int parseInt(int start, int end){
+        boolean negative = start < end && text[start] == '-';
+        if(negative){
+            start++;
+        }
+        int value = 0;
+        for(int i = start; i < end && text[i] >= '0' && text[i] <= '9'; i++){
+            value = value * 10 + (text[i] - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private void execute(char commandMode, int left, int right){
+        advance();
+        commandCount++;
+        if(commandMode == 'm'){
+            leftSpeed = left;
+            rightSpeed = right;
+        }else if(commandMode == 'i'){
+            leftSpeed = 0;
+            rightSpeed = 0;
+        }else if(commandMode != 'a'){
+            return; //Unknown modes are ignored by the firmware
+        }
+        trajectoryCount = 0; //Any command cancels a running trajectory
+        mode = commandMode;
+    }
+
+    /*
+    Starts the trajectory in trajectoryFrame, or only answers if it has no segments
+     */
+    private void startTrajectory(){
+        advance();
+        int count = trajectoryFrame[1];
+        if(count == 0){
+            return; //Only asks for a reading
+        }
+        commandCount++;
+        for(int i = 0; i < count; i++){
+            trajectoryLeft[i] = Trajectory.segmentLeft(trajectoryFrame, i);
+            trajectoryRight[i] = Trajectory.segmentRight(trajectoryFrame, i);
+            trajectoryDuration[i] = Trajectory.segmentDuration(trajectoryFrame, i);
+        }
+        trajectoryCount = count;
+        trajectorySegment = 0;
+        segmentStart = lastUpdate;
+        mode = Trajectory.MODE;
+        leftSpeed = trajectoryLeft[0];
+        rightSpeed = trajectoryRight[0];
+    }
+
+    /*
+    Moves the model forward to the current time, through the segments of a running trajectory at their own speeds
+     */
+    void advance(){
+        long now = now();
+        while(trajectoryCount > 0){
+            long segmentEnd = segmentStart + trajectoryDuration[trajectorySegment] * 1000000L;
+            if(now - segmentEnd < 0){
+                break;
+            }
+            move(segmentEnd);
+            segmentStart = segmentEnd;
+            if(++trajectorySegment == trajectoryCount){ //Over, the robot stops
+                trajectoryCount = 0;
+                leftSpeed = 0;
+                rightSpeed = 0;
+            }else{
+                leftSpeed = trajectoryLeft[trajectorySegment];
+                rightSpeed = trajectoryRight[trajectorySegment];
+            }
+        }
+
+        if(mode == 'a'){
+            autoDrive(now);
+        }
+        move(now);
+    }
+
+    /*
+    Moves the robot at the current speeds from the last update to until
+     */
+    private void move(long until){
+        float seconds = (until - lastUpdate) / 1e9f;
+        lastUpdate = until;
+
+        if(leftSpeed * rightSpeed < 0){ //Spinning on the spot, a new wall comes into view once turned far enough
+            if(random.nextFloat() < seconds * 1000 / LEFT_TIME){
+                wallDistance = newWall();
+            }
+        }else{
+            wallDistance -= (leftSpeed + rightSpeed) / 2 * CM_PER_SECOND_PER_SPEED * seconds;
+            if(wallDistance < 0){
+                wallDistance = 0; //Bumped into the wall
+            }
+        }
+    }
+
+    /*
+    The FORWARD/SLOWING/LEFT behaviour of basicFunctionality(), without the blocking turn
+     */
+    private void autoDrive(long now){
+        if(turnEnd != 0){
+            if(now - turnEnd < 0){
+                return; //Still turning
+            }
+            turnEnd = 0;
+            wallDistance = newWall();
+        }
+        if(wallDistance > WARNING_DISTANCE){
+            leftSpeed = MAX_SPEED;
+            rightSpeed = MAX_SPEED;
+        }else if(wallDistance > CRITICAL_DISTANCE){
+            leftSpeed = MAX_SPEED;
+            rightSpeed = wallDistance >= CRITICAL_DISTANCE + 5 ? (int) wallDistance * 7 : 125;
+        }else{
+            leftSpeed = -TURNING_SPEED;
+            rightSpeed = TURNING_SPEED;
+            turnEnd = now + LEFT_TIME * 1000000L;
+        }
+    }
+
+    private float newWall(){
+        return 40 + random.nextFloat() * 160;
+    }
+
+    /*
+    Writes the current distance as print(float) would, with two decimals, then the sequence number being answered
+    (if any) and "\r\n"
+     */
+    private void sendDistance(OutputStream out, int sequence) throws IOException {
+        float distance = random.nextFloat() < timeoutProbability ? 0 : wallDistance;
+        int length = TelemetryDecoder.format(distance, sequence, reply, 0);
+        out.write(reply, 0, length);
+        out.flush();
+    }
+
+    /*
+    The emulator's clock, System.nanoTime() unless a test replaces it
+     */
+    long now(){
+        return System.nanoTime();
+    }
+
+    public boolean isRunningTrajectory(){
+        return trajectoryCount > 0;
+    }
+
+    public long getCommandCount(){
+        return commandCount;
+    }
+
+    public long getRejectedFrames(){
+        return rejectedFrames;
+    }
+
+    public char getMode(){
+        return mode;
+    }
+
+    public int getLeftSpeed(){
+        return leftSpeed;
+    }
+
+    public int getRightSpeed(){
+        return rightSpeed;
+    }
+
+    /*
+    Serves one emulated robot per TCP connection. Usage: ArduinoEmulator [port]
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 9600;
+        ServerSocket server = new ServerSocket(port);
+        System.out.println("Emulating robots on port " + port);
+        long seed = 0;
+        while(true){
+            final Socket socket = server.accept();
+            socket.setTcpNoDelay(true);
+            final ArduinoEmulator emulator = new ArduinoEmulator(seed++);
+            Thread thread = new Thread("ArduinoEmulator " + socket.getRemoteSocketAddress()){
+                @Override
+                public void run() {
+                    try {
+                        emulator.serve(socket.getInputStream(), socket.getOutputStream());
+                    } catch (IOException e) {
+                        //Client disconnected
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) { }
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
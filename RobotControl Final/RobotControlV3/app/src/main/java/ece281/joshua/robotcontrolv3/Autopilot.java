@@ -0,0 +1,225 @@
+package ece281.joshua.robotcontrolv3;
+
+/**
+ * Automatic obstacle avoidance run on the phone, replacing the arduino's basicFunctionality() in automatic mode.
+ *
+ * It is the same FORWARD/SLOWING/LEFT state machine and stateSpeed() slowing curve, but driven by ticks instead of
+ * blocking: onDistance() is called with each distance reading, tick() when the time returned by getNextTick() comes,
+ * and each returns true when new motor speeds should be sent as an 'm' command. The left turn is a timed state rather
+ * than the firmware's 700 ms busy wait, so readings keep being used during it, and it ends early once the way ahead is
+ * clear or when stop() is called.
+ *
+ * The readings are also used to estimate how fast the robot is closing on the obstacle. States are chosen from the
+ * distance predicted for the time the next command takes effect, so the robot starts slowing or turning one reading
+ * early instead of one reading late.
+ *
+ * Not thread safe, all methods are called on the UI thread. Times are System.nanoTime() values.
+ */
+public class Autopilot {
+
+    public static final int STOPPED = 0;
+    public static final int FORWARD = 1;
+    public static final int SLOWING = 2;
+    public static final int LEFT = 3;
+
+    //The firmware's constants
+    public static final int WARNING_DISTANCE = 30; //cm, the robot slows down
+    public static final int CRITICAL_DISTANCE = 20; //cm, the robot turns left
+    public static final int MAX_SPEED = 238;
+    public static final int TURNING_SPEED = 100;
+    public static final float CORRECTION_FACTOR = 1.042f; //Applied to the left motor so the robot drives straight
+    public static final long LEFT_TIME = 700000000L; //Nanoseconds it takes to turn 90 degrees
+
+    static final long MIN_TURN_TIME = 300000000L; //A turn can end early once it has lasted this long and the way is clear
+    static final int CLEAR_READINGS = 2; //Readings beyond WARNING_DISTANCE in a row that end a turn early
+    static final long STALE_TIME = 500000000L; //Stops if no reading arrives for this long
+    static final long ACTUATION_DELAY = 50000000L; //Time for a command to reach the motors, added to the prediction
+    static final float SMOOTHING = 0.5f; //Weight of the newest reading in the closing speed and reading interval
+
+    private boolean running; //Between start() and stop(), the state is also STOPPED while readings have gone stale
+    private int state = STOPPED;
+    private int speeds = SpeedControl.pack(0, 0);
+    private long turnEnd; //When the current left turn ends
+    private long turnStart;
+    private int clearReadings;
+
+    //Closing speed estimate
+    private float lastDistance = -1; //-1 when there is no previous reading to compare with
+    private long lastReading; //Time of the last reading, or of start()
+    private float closingSpeed; //cm/s, positive when approaching
+    private long readingInterval = 100000000L; //Smoothed time between readings, 100 ms to begin with
+    private float predictedDistance;
+
+    /*
+    Starts driving forwards, as the firmware does before its first reading. Returns true as there are new speeds to send
+     */
+    public boolean start(long now){
+        running = true;
+        lastDistance = -1;
+        closingSpeed = 0;
+        lastReading = now;
+        return enter(FORWARD, 0, now);
+    }
+
+    /*
+    Stops the motors, interrupting a turn
+     */
+    public boolean stop(){
+        running = false;
+        return enter(STOPPED, 0, 0);
+    }
+
+    /*
+    Handles a raw distance reading in cm, estimating the closing speed from the change since the previous one. Zero means
+    the range finder timed out and is ignored, like the firmware does. Returns true if the speeds changed
+     */
+    public boolean onDistance(float distance, long now){
+        if(!running || distance <= 0){
+            return false;
+        }
+
+        float speed = closingSpeed;
+        if(lastDistance >= 0 && now - lastReading > 0){
+            speed = (lastDistance - distance) * 1e9f / (now - lastReading);
+        }
+        lastDistance = distance;
+        return onDistance(distance, closingSpeed + SMOOTHING * (speed - closingSpeed), now);
+    }
+
+    /*
+    Handles a distance in cm that has already been filtered, with the closing speed in cm/s estimated along with it
+    (see DistanceEstimator). Returns true if the speeds changed
+     */
+    public boolean onDistance(float distance, float closingSpeed, long now){
+        if(!running || distance <= 0){
+            return false;
+        }
+
+        long interval = now - lastReading;
+        if(interval > 0 && interval < STALE_TIME){
+            readingInterval += (long) (SMOOTHING * (interval - readingInterval));
+        }
+        this.closingSpeed = closingSpeed;
+        lastReading = now;
+
+        //Where the obstacle will be when the command sent in answer to the next reading takes effect
+        predictedDistance = distance - Math.max(0, closingSpeed) * (readingInterval + ACTUATION_DELAY) / 1e9f;
+
+        if(state == LEFT){
+            //The range finder sweeps round during the turn, the turn ends early once it sees open space
+            clearReadings = distance > WARNING_DISTANCE ? clearReadings + 1 : 0;
+            if(clearReadings >= CLEAR_READINGS && now - turnStart >= MIN_TURN_TIME){
+                return enter(FORWARD, distance, now);
+            }
+            return false;
+        }
+
+        if(predictedDistance > WARNING_DISTANCE){
+            return enter(FORWARD, predictedDistance, now);
+        }else if(predictedDistance > CRITICAL_DISTANCE){
+            return enter(SLOWING, predictedDistance, now);
+        }else{
+            return enter(LEFT, predictedDistance, now);
+        }
+    }
+
+    /*
+    Handles the timed transitions: the end of a turn, and stopping when readings stop arriving until they resume.
+    Returns true if the speeds changed
+     */
+    public boolean tick(long now){
+        if(state == LEFT && now - turnEnd >= 0){
+            return enter(FORWARD, 0, now);
+        }
+        if(state != STOPPED && state != LEFT && now - lastReading >= STALE_TIME){
+            return enter(STOPPED, 0, now);
+        }
+        return false;
+    }
+
+    /*
+    Returns the nanoseconds from now until tick() next needs to be called, or -1 if it does not
+     */
+    public long getNextTick(long now){
+        if(state == LEFT){
+            return Math.max(0, turnEnd - now);
+        }
+        if(state != STOPPED){
+            return Math.max(0, lastReading + STALE_TIME - now);
+        }
+        return -1;
+    }
+
+    /*
+    The motor speeds to send, packed as in SpeedControl
+     */
+    public int getSpeeds(){
+        return speeds;
+    }
+
+    public int getState(){
+        return state;
+    }
+
+    /*
+    Estimated speed at which the robot closes on the obstacle ahead in cm/s, negative when moving away
+     */
+    public float getClosingSpeed(){
+        return closingSpeed;
+    }
+
+    public float getPredictedDistance(){
+        return predictedDistance;
+    }
+
+    /*
+    Slowing speed for a distance between the critical and warning distances, the firmware's stateSpeed()
+     */
+    static int stateSpeed(float distance){
+        if(distance >= CRITICAL_DISTANCE + 5){
+            return Math.min(MAX_SPEED, (int) distance * 7);
+        }else if(distance > CRITICAL_DISTANCE){
+            return 125;
+        }
+        return 0;
+    }
+
+    /*
+    Moves to newState and works out its speeds. Returns true if the speeds changed
+     */
+    private boolean enter(int newState, float distance, long now){
+        int newSpeeds;
+        if(newState == FORWARD){
+            newSpeeds = SpeedControl.pack(leftSpeed(MAX_SPEED), MAX_SPEED);
+        }else if(newState == SLOWING){
+            //The firmware only slowed the right motor, which also steered the robot left. Both slow down here
+            int speed = stateSpeed(distance);
+            newSpeeds = SpeedControl.pack(leftSpeed(speed), speed);
+        }else if(newState == LEFT){
+            if(state != LEFT){
+                turnStart = now;
+                turnEnd = now + LEFT_TIME;
+                clearReadings = 0;
+            }
+            newSpeeds = SpeedControl.pack(-TURNING_SPEED, TURNING_SPEED);
+        }else{
+            newSpeeds = SpeedControl.pack(0, 0);
+        }
+
+        if(state == LEFT && newState != LEFT){
+            lastDistance = -1; //Facing a different obstacle now, so the old readings say nothing about closing speed
+            closingSpeed = 0;
+        }
+        state = newState;
+
+        if(newSpeeds == speeds){
+            return false;
+        }
+        speeds = newSpeeds;
+        return true;
+    }
+
+    private static int leftSpeed(int speed){
+        return Math.min(SpeedControl.PWM_LIMIT - 1, Math.round(speed * CORRECTION_FACTOR));
+    }
+}
@@ -2,48 +2,51 @@ package ece281.joshua.robotcontrolv3;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.Intent;
 import android.os.Handler;
-import android.util.Log;
 import android.widget.Toast;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.UUID;
 
 /**
- * This class contains code for creating and managing bluetooth connections. This is based off that from Google's documentation/tutorial found at:
+ * This class contains code for creating and managing the connection to the robot from MainActivity. The connection is
+ * made and kept alive in the background by a ConnectionManager, the read/write loop itself lives in RobotLink and the
+ * bytes travel through a RobotTransport, normally a BluetoothTransport to the robot's bluetooth module.
+ * This is based off that from Google's documentation/tutorial found at:
  * http://developer.android.com/guide/topics/connectivity/bluetooth.html
  *
  */
-public class BluetoothConnection {
+public class BluetoothConnection implements ConnectionManager.Listener {
 
     BluetoothAdapter mAdapter;//Represents the phone's bluetooth device
-    BluetoothSocket mSocket;//Socket that wil connect to the arduino bluetooth module
 
-    Handler messageHandler; //Handler for precessing data from the arduino
+    Handler messageHandler; //Handler told about changes of the connection state
 
-    private final int RECIEVE_MESSAGE = 1; //Flag used to specify that a message has been received from the arduio
+    private final int LINK_STATE_MESSAGE = 4; //Flag used to tell the activity that the connection state changed
     private final int REQUEST_ENABLE_BT = 1;//Used for the creation of a popup dialog
 
-    private final String TAG = "BLUETOOTH CONNECTION"; //Tag for logging/debugging purposes
-
-    private static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-0180511004FB"); //Arbitrary string to identify app
     Activity parentActivity;//Reference to the parent activity that creates this object(MainActivity)
 
-    ConnectionThread connectionThread;
+    ConnectionManager connectionManager; //Connects and reconnects in the background, null until connect() is first called
+    CommandWriter commandWriter; //Writes the commands of connectionManager on its own thread
+    EmergencyStop emergencyStop; //Puts stops ahead of commandWriter's queue
+    final CommandFrame commandFrame; //Encodes the commands, the emergency stop shares its sequence numbers
+    final TelemetryPipeline telemetry; //Carries the distance readings to their consumers, off the UI thread
 
-    boolean bluetoothConnected;//If we are connected to the arduino bluetooth module
+    final LatencyTracker latencyTracker = new LatencyTracker(); //Round trip times of commands, matched by sequence number
+    private long degradedTimeout = ConnectionManager.DEGRADED_TIMEOUT; //Silence timeouts of every connectionManager
+    private long lostTimeout = ConnectionManager.LOST_TIMEOUT;
 
     /*
     Constructor for BluetoothConnection takes references to the parentActivity so that the Toast widget can be used, and the message Handler
-    so that data from the arduino can be processed outside of the ConnectionThread used in this class.
+    so that changes of the connection state can be handled on the UI thread. The distance readings from the arduino are
+    published to telemetry, whose consumers process them outside of the background threads used by ConnectionManager
+    and RobotLink. commandFrame is the frame the commands are encoded with, whose sequence numbers the emergency stops also use
      */
-    public BluetoothConnection(Activity parentActivity, Handler messageHandler){
+    public BluetoothConnection(Activity parentActivity, Handler messageHandler, CommandFrame commandFrame,
+                               TelemetryPipeline telemetry){
         this.parentActivity = parentActivity;
         this.messageHandler = messageHandler;
+        this.commandFrame = commandFrame;
+        this.telemetry = telemetry;
     }
 
 
@@ -64,121 +67,172 @@ public class BluetoothConnection {
     }
 
     /*
-    Creates a new bluetooth device that represents the remote(arduino) bluetooth module and attempts to form a connection with it
-    The parameter address is the MAC address of the bluetooth module
+    Starts connecting to the robot through the given transport in the background and returns immediately. Once connected,
+    a ConnectionThread will manage reception of data from the arduino, and the link is reconnected automatically if it drops
      */
-    public void connectToBluetoothDevice(String address){
+    public void connect(RobotTransport transport){
+        if(connectionManager == null || connectionManager.getLink().getTransport() != transport){
+            if(connectionManager != null){
+                connectionManager.stop();
+                commandWriter.stop();
+                emergencyStop.stop();
+            }
+            connectionManager = new ConnectionManager(transport, this);
+            connectionManager.setTimeouts(degradedTimeout, lostTimeout);
+            commandWriter = new CommandWriter(connectionManager, latencyTracker);
+            emergencyStop = new EmergencyStop(connectionManager, commandWriter, commandFrame);
+        }
+        connectionManager.start();
+        commandWriter.start();
+        emergencyStop.start();
+    }
 
-        //Initializes the bluetooth device object based on the given MAC adress
-        BluetoothDevice mDevice = mAdapter.getRemoteDevice(address);
+    /*
+    Sets how long the link may stay silent before it is reported degraded and before it is reconnected, in
+    milliseconds. Kept for the connections made later
+     */
+    public void setTimeouts(long degradedTimeout, long lostTimeout){
+        this.degradedTimeout = degradedTimeout;
+        this.lostTimeout = lostTimeout;
+        if(connectionManager != null){
+            connectionManager.setTimeouts(degradedTimeout, lostTimeout);
+        }
+    }
 
-        //Attempts to create a new BluetoothSocket that will allow for the exchange of data between the bluetooth devices
-        //My_UUID is an application unique string that identifies the application
-        try {
-            mSocket = mDevice.createRfcommSocketToServiceRecord(MY_UUID);
-        } catch (IOException e) {
-            Toast.makeText(parentActivity.getBaseContext(), "Could not create socket", Toast.LENGTH_LONG).show();
+    /*
+    Skips any wait before the next reconnect attempt, used when the user asks to reconnect
+     */
+    public void reconnect(){
+        if(connectionManager != null){
+            connectionManager.reconnect();
         }
+    }
 
-        //Ends the process of device discovery which consumes a large amount of processing power
-        mAdapter.cancelDiscovery();
-
-        //Connects the socket
-        try {
-            mSocket.connect();
-            Toast.makeText(parentActivity.getBaseContext(), "Connected Successfully", Toast.LENGTH_SHORT).show();
-            bluetoothConnected = true;
-        } catch (IOException e) {
-            try {//If we cannot connect, display an error message to the user
-                mSocket.close();
-                Toast.makeText(parentActivity.getBaseContext(), "Could not connect to device", Toast.LENGTH_LONG).show();
-                bluetoothConnected = false;
-            } catch (IOException e2) { //If we cannot connect and cannot abort
-                Log.d(TAG, "huh");
-            }
+    /*
+    Closes the connection and stops reconnecting so transmission stops
+     */
+    public void closeSocket(){
+        if(connectionManager != null){
+            connectionManager.stop();
+            commandWriter.stop();
+            emergencyStop.stop();
         }
+    }
 
-        //Creates and starts a new thread that will manage transmission/reception of data between the app and the arduino
-        connectionThread = new ConnectionThread(mSocket);
-        connectionThread.start();
+    /*
+    Method is called from MainActivity when there is a new command to be sent to the arduino. It is handed to the
+    commandWriter and this returns straight away, so a stalled link never blocks the caller. Only the first length bytes
+    of data are sent, so the caller can reuse the same buffer for every command. mode is the command's mode character,
+    and sequence its sequence number, used to time the round trip to the arduino's reply. inputTime is the
+    System.nanoTime() of the input the command carries, 0 for a keep-alive
+     */
+    public void sendData(char mode, byte[] data, int length, int sequence, long inputTime){
+        commandWriter.submit(mode, data, length, sequence, inputTime);
     }
 
     /*
-    Closes the socket connection and sets the bluetoothConnected flag to false
+    Stops the robot through the emergency stop, ahead of any command waiting to be sent. automatic is whether a
+    collision was predicted rather than the user asking. Does nothing before connect()
      */
-    public void closeSocket(){
-        try     {
-            mSocket.close();
-            bluetoothConnected = false;
-        } catch (IOException e2) {//socket failed to close
-            Log.d(TAG, "Could not close Socket");
+    public void emergencyStop(boolean automatic){
+        if(emergencyStop != null){
+            emergencyStop.trigger(System.nanoTime(), automatic);
         }
     }
 
     /*
-    Method is called from MainActivity when there is a new command to be sent to the arduino
+    Stops retransmitting an emergency stop, called when a newer command moves the robot again
      */
-    public void sendData(String data){
-        connectionThread.write(data); //writes the data through connectionThread
+    public void cancelEmergencyStop(){
+        if(emergencyStop != null){
+            emergencyStop.cancel();
+        }
     }
 
     /*
     Returns whether we are currently connected to the arduino bluetooth module
      */
     public boolean isConnected(){
-        return bluetoothConnected;
+        return connectionManager != null && connectionManager.isConnected();
     }
 
     /*
-    ConnectionThread listens for incoming data from the arduino and can also write data to arduino
+    Returns the connection state, one of the ConnectionManager state constants
      */
-    private class ConnectionThread extends Thread{
-
-        private final InputStream mmInStream; //Stream for data from arduino
-        private final OutputStream mmOutStream;//Stream for data to be sent to arduino
-
-        public ConnectionThread(BluetoothSocket socket) {
-            //Temporary input and output stream objects.  InputStream and OutputStream objects are final so we need to use temporary objects in case getInputStream() or
-            //getOutputStream() fail
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
+    public int getState(){
+        return connectionManager == null ? ConnectionManager.STOPPED : connectionManager.getState();
+    }
 
-            //Trys to create InputStream and OutputStream
-            try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) { }
+    /*
+    Returns the decoder for data received on the current connection, so its dropped/malformed counters can be read
+     */
+    public TelemetryDecoder getDecoder(){
+        return connectionManager == null ? null : connectionManager.getLink().getDecoder();
+    }
 
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+    /*
+    Called on a background thread whenever the connection state changes, tells the user when the robot connects or is lost
+     */
+    @Override
+    public void onStateChanged(final int state) {
+        if(state == ConnectionManager.CONNECTED){
+            latencyTracker.clearOutstanding(); //Commands sent before a reconnect will never be answered
         }
-
-        //This method handles input from the arduino bluetooth module. It reads a stream of bytes into a buffer, which is sent to the message handler
-        public void run() {
-            byte[] buffer = new byte[256];  //buffer for the input stream.
-            int bytes; // bytes returned from read()
-
-            // Keep listening to the InputStream until an exception occurs
-            while (true) {
-                try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);        // Get number of bytes and message in "buffer"
-                    messageHandler.obtainMessage(RECIEVE_MESSAGE, bytes, -1, buffer).sendToTarget();     // Send to message queue Handler
-                } catch (IOException e) {
-                    break;
+        commandWriter.linkChanged();
+        emergencyStop.linkChanged();
+        messageHandler.obtainMessage(LINK_STATE_MESSAGE, state, 0).sendToTarget();
+        parentActivity.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if(state == ConnectionManager.CONNECTED){
+                    Toast.makeText(parentActivity.getBaseContext(), "Connected Successfully", Toast.LENGTH_SHORT).show();
+                }else if(state == ConnectionManager.DEGRADED){
+                    Toast.makeText(parentActivity.getBaseContext(), "Robot not responding", Toast.LENGTH_SHORT).show();
                 }
             }
-        }
+        });
+    }
 
-        //This method is called whenever there is data/commands to be sent to the arduino
-        public void write(String message) {
-            byte[] msgBuffer = message.getBytes(); //The message to be sent as a sequence of bytes
-            try {
-                mmOutStream.write(msgBuffer);//Writes the output buffer to the bluetooth socket's output stream
-            } catch (IOException e) {
-                //Displays an error message to the user through the Toast widget
-               // Toast.makeText(parentActivity.getBaseContext(), "Error writing to device", Toast.LENGTH_LONG).show();
-            }
-        }
+    /*
+    Returns the manager of the current connection, so its connection and loss statistics can be read. Null until
+    connect()
+     */
+    public ConnectionManager getConnectionManager(){
+        return connectionManager;
+    }
+
+    /*
+    Returns the writer of commands to the robot, so its throughput and stall counters can be read. Null until connect()
+     */
+    public CommandWriter getCommandWriter(){
+        return commandWriter;
+    }
+
+    /*
+    Returns the emergency stop lane, so its latencies can be read. Null until connect()
+     */
+    public EmergencyStop getEmergencyStop(){
+        return emergencyStop;
+    }
+
+    /*
+    Returns the round trip statistics of commands sent through this connection
+     */
+    public LatencyTracker getLatencyTracker(){
+        return latencyTracker;
+    }
+
+    /*
+    Called on the ConnectionThread for every distance reading. The round trip and the emergency stop's acknowledgement
+    are recorded here so they do not include any wait for the telemetry consumers. The reading is then published to
+    telemetry, which allocates nothing and never waits for them
+     */
+    @Override
+    public void onDistance(float distance, int sequence) {
+        long now = System.nanoTime();
+        Tracer.trace(Tracer.READING, Float.floatToIntBits(distance), sequence);
+        latencyTracker.onReply(sequence, now);
+        emergencyStop.onReply(sequence, now);
+        telemetry.publish(now, distance, sequence);
     }
 }
@@ -0,0 +1,97 @@
+package ece281.joshua.robotcontrolv3;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * RobotTransport over an RFCOMM socket to the robot's bluetooth module. This is based off that from Google's
+ * documentation/tutorial found at: http://developer.android.com/guide/topics/connectivity/bluetooth.html
+ */
+public class BluetoothTransport implements RobotTransport {
+
+    private static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-0180511004FB"); //Arbitrary string to identify app
+
+    private final String address; //MAC address of the bluetooth module
+    private volatile BluetoothSocket mSocket; //Socket that will connect to the arduino bluetooth module
+    private BluetoothSocket preparedSocket; //Socket created by prepare() for the next open()
+
+    public BluetoothTransport(String address){
+        this.address = address;
+    }
+
+    /*
+    Creates a new bluetooth device that represents the remote(arduino) bluetooth module and a socket to it, ready for open()
+     */
+    @Override
+    public synchronized void prepare() throws IOException {
+        BluetoothAdapter mAdapter = BluetoothAdapter.getDefaultAdapter(); //Represents the phone's bluetooth device
+        if(mAdapter == null || !mAdapter.isEnabled()){
+            throw new IOException("Bluetooth is not enabled");
+        }
+
+        //Initializes the bluetooth device object based on the given MAC adress
+        BluetoothDevice mDevice = mAdapter.getRemoteDevice(address);
+
+        //Creates a new BluetoothSocket that will allow for the exchange of data between the bluetooth devices
+        //My_UUID is an application unique string that identifies the application
+        preparedSocket = mDevice.createRfcommSocketToServiceRecord(MY_UUID);
+
+        //Ends the process of device discovery which consumes a large amount of processing power
+        mAdapter.cancelDiscovery();
+    }
+
+    /*
+    Attempts to form a connection with the remote(arduino) bluetooth module, using the socket from prepare() if there is one
+     */
+    @Override
+    public void open() throws IOException {
+        BluetoothSocket socket;
+        synchronized (this){
+            if(preparedSocket == null){
+                prepare();
+            }
+            socket = preparedSocket;
+            preparedSocket = null; //A socket can only be connected once
+        }
+
+        mSocket = socket; //Set before connecting so close() can abort the attempt
+        try {
+            socket.connect();
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException e2) { } //Nothing more can be done if the failed socket cannot be closed
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public void close() {
+        BluetoothSocket socket = mSocket;
+        if(socket != null){
+            try {
+                socket.close();
+            } catch (IOException e) { } //Socket failed to close, there is nothing else to release
+        }
+    }
+
+    @Override
+    public String getName() {
+        return address;
+    }
+}
@@ -0,0 +1,157 @@
+package ece281.joshua.robotcontrolv3;
+
+/**
+ * Encodes motor commands for the arduino into a single reused byte buffer, so that sending a command every tick does not
+ * allocate any Strings or byte arrays.
+ *
+ * Two formats are supported:
+ *  - FORMAT_BINARY: a fixed size 8 byte frame laid out as
+ *      [SYNC][mode][left high][left low][right high][right low][sequence][checksum]
+ *    where the speeds are signed 16 bit values and the checksum is the low byte of the sum of bytes 1 to 6.
+ *  - FORMAT_TEXT: the original variable length "m238n238" string followed by "s<sequence>", kept as a fallback for older
+ *    firmware. Firmware that does not know about the sequence number ignores it, since toInt() stops at the 's'.
+ *
+ * Every command carries an 8 bit sequence number that the firmware echoes back with its distance reply, so replies can
+ * be matched to the command that caused them (see LatencyTracker).
+ */
+public class CommandFrame {
+
+    public static final int FORMAT_BINARY = 0; //Fixed size binary frame
+    public static final int FORMAT_TEXT = 1; //Original "<mode><left>n<right>" text command
+
+    public static final byte SYNC = (byte) 0xA5; //First byte of every binary frame, never a valid mode character
+    public static final int BINARY_LENGTH = 8; //Length of a binary frame in bytes
+    public static final int MAX_TEXT_LENGTH = 14; //Longest text command, e.g. "m-254n-254s255"
+
+    private final byte[] buffer = new byte[MAX_TEXT_LENGTH]; //Reused for every encoded command
+    private int length; //Number of valid bytes in buffer after the last encode
+    private int format; //Which of the two formats is used by encode()
+    private int sequence; //Last sequence number taken, wraps at 256. Guarded by this, see nextSequence()
+    private int encodedSequence; //Sequence number of the command in buffer
+
+    public CommandFrame(int format){
+        setFormat(format);
+    }
+
+    /*
+    Selects the format used for future commands
+     */
+    public void setFormat(int format){
+        if(format != FORMAT_BINARY && format != FORMAT_TEXT){
+            throw new IllegalArgumentException("Unknown command format " + format);
+        }
+        this.format = format;
+    }
+
+    public int getFormat(){
+        return format;
+    }
+
+    /*
+    Encodes a command into the internal buffer and returns the number of bytes to send.
+    mode is the state flag ('a', 'm' or 'i') and left/right are the signed motor speeds
+     */
+    public int encode(char mode, int left, int right){
+        return encode(mode, left, right, nextSequence());
+    }
+
+    /*
+    Encodes a command with a sequence number already taken, e.g. from the nextSequence() of another CommandFrame whose
+    numbers it shares
+     */
+    public int encode(char mode, int left, int right, int sequence){
+        encodedSequence = sequence;
+        if(format == FORMAT_BINARY){
+            buffer[0] = SYNC;
+            buffer[1] = (byte) mode;
+            buffer[2] = (byte) (left >> 8);
+            buffer[3] = (byte) left;
+            buffer[4] = (byte) (right >> 8);
+            buffer[5] = (byte) right;
+            buffer[6] = (byte) sequence;
+            buffer[7] = checksum(buffer, 1, 6);
+            length = BINARY_LENGTH;
+        }else{
+            int position = 0;
+            buffer[position++] = (byte) mode;
+            position = writeDecimal(left, position);
+            buffer[position++] = 'n';
+            position = writeDecimal(right, position);
+            buffer[position++] = 's';
+            position = writeDecimal(sequence, position);
+            length = position;
+        }
+        return length;
+    }
+
+    /*
+    Returns the buffer holding the last encoded command. Only the first getLength() bytes are valid and the contents
+    are overwritten by the next call to encode()
+     */
+    public byte[] getBuffer(){
+        return buffer;
+    }
+
+    public int getLength(){
+        return length;
+    }
+
+    /*
+    Sequence number of the last encoded command
+     */
+    public int getSequence(){
+        return encodedSequence;
+    }
+
+    /*
+    Takes the next sequence number without encoding a command, for other frames sent on the same link (see Trajectory
+    and EmergencyStop) so that every reply can still be matched. Synchronized as the emergency stop takes its numbers on
+    its own thread
+     */
+    public synchronized int nextSequence(){
+        sequence = (sequence + 1) & 0xFF;
+        return sequence;
+    }
+
+    /*
+    Computes the checksum used by binary frames: the low byte of the sum of count bytes starting at offset
+     */
+    public static byte checksum(byte[] data, int offset, int count){
+        int sum = 0;
+        for(int i = offset; i < offset + count; i++){
+            sum += data[i] & 0xFF;
+        }
+        return (byte) sum;
+    }
+
+    /*
+    Writes value as ascii decimal digits into the buffer starting at position, returns the position after the last digit.
+    Speeds and sequence numbers are always within +-255 so at most 3 digits and a sign are written
+     */
+    private int writeDecimal(int value, int position){
+        if(value < 0){
+            buffer[position++] = '-';
+            value = -value;
+        }
+        if(value >= 100){
+            buffer[position++] = (byte) ('0' + value / 100);
+        }
+        if(value >= 10){
+            buffer[position++] = (byte) ('0' + (value / 10) % 10);
+        }
+        buffer[position++] = (byte) ('0' + value % 10);
+        return position;
+    }
+
+    /*
+    Returns the last encoded command as readable text, for debugging only since it allocates
+     */
+    @Override
+    public String toString(){
+        if(format == FORMAT_TEXT){
+            return new String(buffer, 0, length);
+        }
+        return (char) buffer[1] + Integer.toString((buffer[2] << 8) | (buffer[3] & 0xFF)) + "n"
+                + Integer.toString((buffer[4] << 8) | (buffer[5] & 0xFF)) + " #" + encodedSequence;
+    }
+}
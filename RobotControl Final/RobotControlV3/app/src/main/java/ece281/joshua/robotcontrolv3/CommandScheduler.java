@@ -0,0 +1,219 @@
+package ece281.joshua.robotcontrolv3;
+
+/**
+ * Decides when commands are sent to the robot. Instead of resending on a fixed timer, a command is sent as soon as
+ * requestSend() reports that the commanded state changed, limited to one command per minimum interval so the link and
+ * the firmware's loop are never flooded. When nothing changes a keep-alive command is sent after the keep-alive interval,
+ * which keeps distance readings coming back (the firmware only replies to commands). A keep-alive interval of 0 sends
+ * no keep-alives, and the thread then sleeps until the next change.
+ *
+ * Sending happens on the scheduler's own thread through the Sender, so a slow write never blocks the caller. The thread
+ * counts how often it wakes up and sends per minute, to measure what the intervals cost in power. The time from a
+ * change to its command reaching the link is measured where the command is written, by CommandWriter.
+ */
+public class CommandScheduler {
+
+    static final long RATE_WINDOW = 60000000000L; //Nanoseconds the wakeup and send rates are measured over
+
+    /*
+    Builds and transmits the current command. Called on the scheduler thread. inputTime is the System.nanoTime() of the
+    first change the command carries, 0 for a keep-alive. Returns false if nothing was sent, e.g. while the link is down
+     */
+    public interface Sender {
+        boolean sendCommand(long inputTime);
+    }
+
+    private final Sender sender;
+    private final long referenceInterval; //Period of the old fixed rate timer in nanoseconds, used to count avoided sends
+    private volatile long minInterval; //Rate cap, the minimum nanoseconds between two commands
+    private volatile long keepAliveInterval; //Nanoseconds without a change before the command is resent anyway, 0 never
+
+    private final Object lock = new Object();
+    private boolean pending; //If the state changed since the last command was sent
+    private long pendingSince; //System.nanoTime() of the first change not sent yet
+    private long lastSend; //System.nanoTime() of the last command sent
+    private Thread thread;
+
+    //Statistics, written only by the scheduler thread
+    private long startTime; //System.nanoTime() the scheduler was started
+    private volatile long sendCount; //Commands the Sender sent
+    private volatile long changeSendCount; //Commands sent because the state changed, the rest are keep-alives
+    private volatile long wakeupCount; //Times the thread woke up, whether or not it then sent
+    private volatile long windowStart; //System.nanoTime() the current rate window began
+    private volatile long windowWakeups, windowSends; //Counts at the start of the current window
+    private volatile float wakeupsPerMinute, sendsPerMinute; //Over the last complete window
+
+    /*
+    referenceInterval is the fixed period this scheduler replaces, minInterval the rate cap and keepAliveInterval the
+    heartbeat period, all in milliseconds
+     */
+    public CommandScheduler(Sender sender, long referenceInterval, long minInterval, long keepAliveInterval){
+        this.sender = sender;
+        this.referenceInterval = referenceInterval * 1000000L;
+        setMinInterval(minInterval);
+        setKeepAliveInterval(keepAliveInterval);
+    }
+
+    public void setMinInterval(long minInterval){
+        this.minInterval = minInterval * 1000000L;
+        wake();
+    }
+
+    /*
+    Milliseconds without a change before the command is resent anyway, 0 for never
+     */
+    public void setKeepAliveInterval(long keepAliveInterval){
+        this.keepAliveInterval = keepAliveInterval * 1000000L;
+        wake();
+    }
+
+    /*
+    Starts the scheduler thread
+     */
+    public void start(){
+        synchronized (lock){
+            if(thread != null){
+                return;
+            }
+            startTime = System.nanoTime();
+            lastSend = startTime;
+            windowStart = startTime;
+            thread = new Thread("CommandScheduler"){
+                @Override
+                public void run() {
+                    loop(this);
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /*
+    Stops the scheduler thread, no more commands are sent until start() is called again
+     */
+    public void stop(){
+        synchronized (lock){
+            thread = null;
+            lock.notifyAll();
+        }
+    }
+
+    /*
+    Reports that the commanded state changed, so a command should be sent as soon as the rate cap allows.
+    Cheap enough to call from touch listeners and sensor callbacks
+     */
+    public void requestSend(){
+        synchronized (lock){
+            if(!pending){
+                pending = true;
+                pendingSince = System.nanoTime();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private void wake(){
+        synchronized (lock){
+            lock.notifyAll();
+        }
+    }
+
+    private void loop(Thread self){
+        while(true){
+            long inputTime;
+            synchronized (lock){
+                while(true){
+                    if(thread != self){
+                        return; //Stopped
+                    }
+                    long now = System.nanoTime();
+                    long keepAlive = keepAliveInterval;
+                    long due = lastSend + (pending ? minInterval : keepAlive);
+                    if(now - due >= 0 && (pending || keepAlive != 0)){
+                        break;
+                    }
+                    try {
+                        if(!pending && keepAlive == 0){
+                            lock.wait(); //Nothing to send until the next change
+                        }else{
+                            long wait = due - now;
+                            lock.wait(wait / 1000000L, (int) (wait % 1000000L));
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    wakeupCount++;
+                }
+                inputTime = pending ? pendingSince : 0;
+                pending = false;
+                lastSend = System.nanoTime();
+            }
+
+            if(sender.sendCommand(inputTime)){
+                sendCount++;
+                if(inputTime != 0){
+                    changeSendCount++;
+                }
+            }
+
+            long now = System.nanoTime();
+            long elapsed = now - windowStart;
+            if(elapsed >= RATE_WINDOW){
+                wakeupsPerMinute = (wakeupCount - windowWakeups) * 60e9f / elapsed;
+                sendsPerMinute = (sendCount - windowSends) * 60e9f / elapsed;
+                windowWakeups = wakeupCount;
+                windowSends = sendCount;
+                windowStart = now;
+            }
+        }
+    }
+
+    public long getSendCount(){
+        return sendCount;
+    }
+
+    /*
+    Commands sent because the state changed, the others were keep-alives
+     */
+    public long getChangeSendCount(){
+        return changeSendCount;
+    }
+
+    public long getWakeupCount(){
+        return wakeupCount;
+    }
+
+    /*
+    Times the thread woke up per minute over the last complete minute. While the thread sleeps through a whole minute
+    the rate since the last complete minute is returned instead, so a suspended scheduler shows close to 0
+     */
+    public float getWakeupsPerMinute(){
+        return rate(wakeupCount - windowWakeups, wakeupsPerMinute);
+    }
+
+    /*
+    Commands sent per minute, measured like getWakeupsPerMinute()
+     */
+    public float getSendsPerMinute(){
+        return rate(sendCount - windowSends, sendsPerMinute);
+    }
+
+    private float rate(long inWindow, float lastWindow){
+        long elapsed = System.nanoTime() - windowStart;
+        return elapsed < RATE_WINDOW ? lastWindow : inWindow * 60e9f / elapsed;
+    }
+
+    /*
+    Number of commands the old fixed rate timer would have sent by now that were not needed
+     */
+    public long getSendsAvoided(){
+        long started = startTime;
+        if(started == 0){
+            return 0;
+        }
+        long ticks = (System.nanoTime() - started) / referenceInterval;
+        return Math.max(0, ticks - sendCount);
+    }
+
+}
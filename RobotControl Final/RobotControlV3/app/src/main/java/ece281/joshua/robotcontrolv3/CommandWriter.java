@@ -0,0 +1,413 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.io.IOException;
+
+/**
+ * Writes commands to the robot on its own thread, so when the link stalls only the writer blocks and not the thread that
+ * decides what to send.
+ *
+ * A command with the same mode character as the one before goes in a single slot, and a newer command replaces one
+ * still waiting there (latest wins), since only the newest setpoint matters. A command that changes the mode ('i', 'a',
+ * 'm', or Trajectory.MODE for trajectory frames) goes in a separate lane that is never dropped: mode changes are written
+ * in order before the slot, and replace any setpoint of the old mode still waiting. While the link is down commands wait
+ * for it to come back, and submit() only blocks when MODE_LANE_SIZE mode changes are already waiting. Commands are only
+ * written on the connection they were submitted on: those still waiting when the link is lost and reconnected, or when
+ * the writer is stopped, are thrown away, so a stale setpoint is never the first thing written. The command scheduler
+ * sends a fresh one once the link is back.
+ *
+ * A command given to submitFirst() (the EmergencyStop's stops) jumps both: it is written next, as soon as the frame
+ * being written is finished. Every command is written by the writer thread, so frames never interleave on the link.
+ *
+ * The writer measures the bytes written per second, the time spent blocked in write() and the number of commands
+ * replaced before they were written, which together show when the link is saturated. It also measures the time from
+ * the input a command carries to the command being written (input to wire), queueing and stalls included.
+ */
+public class CommandWriter {
+
+    static final int MODE_LANE_SIZE = 16; //Mode changes that can wait before submit() blocks
+    static final long RETRY_INTERVAL = 100; //Milliseconds between attempts while the link is down or failing
+    static final long RATE_WINDOW = 1000000000L; //Nanoseconds the byte rate is measured over
+    static final int MAX_COMMAND_LENGTH = Math.max(CommandFrame.MAX_TEXT_LENGTH, Trajectory.MAX_LENGTH);
+
+    private final ConnectionManager connection;
+    private final LatencyTracker latencyTracker; //Told when each command is actually written, may be null
+    private final LatencyHistogram inputToWire = new LatencyHistogram(); //Input to the end of the command's write()
+
+    private final Object lock = new Object();
+    private Thread thread;
+
+    //Waiting commands, guarded by lock. Every entry has its own buffer, filled by copying, so nothing is allocated
+    private final byte[] slot = new byte[MAX_COMMAND_LENGTH];
+    private int slotLength; //0 when the slot is empty
+    private int slotSequence;
+    private long slotInput; //System.nanoTime() of the input the command carries, 0 for none
+    private long slotConnection; //ConnectionManager.getConnectCount() when it was submitted
+    private final byte[][] lane = new byte[MODE_LANE_SIZE][MAX_COMMAND_LENGTH];
+    private final int[] laneLength = new int[MODE_LANE_SIZE];
+    private final int[] laneSequence = new int[MODE_LANE_SIZE];
+    private final long[] laneInput = new long[MODE_LANE_SIZE];
+    private final long[] laneConnection = new long[MODE_LANE_SIZE];
+    private int laneHead, laneCount;
+    private final byte[] first = new byte[MAX_COMMAND_LENGTH]; //Written before the lane and the slot
+    private int firstLength; //0 when there is none
+    private int firstSequence;
+    private char lastMode; //Mode of the last command submitted
+    private int discards; //Times discard() or stop() was called, so a failed write is not put back after one
+
+    private final byte[] writing = new byte[MAX_COMMAND_LENGTH]; //Command being written, only used by the writer thread
+
+    //Statistics
+    private volatile long commandsWritten;
+    private volatile long bytesWritten;
+    private volatile long superseded; //Commands replaced in the slot before being written
+    private volatile long modeChanges;
+    private volatile long laneWaits; //Times submit() had to wait for room in the mode lane
+    private volatile long writeErrors;
+    private volatile long stallTime; //Total nanoseconds spent in write()
+    private volatile long maxStall; //Longest single write() in nanoseconds
+    private volatile long writeStart; //System.nanoTime() the current write() began, 0 when not writing
+    private volatile float bytesPerSecond; //Over the last complete RATE_WINDOW
+    private volatile long windowStart; //Only written by the writer thread
+    private long windowBytes;
+
+    /*
+    Writes through connection, reporting each command's sequence number to latencyTracker as it is written if not null
+     */
+    public CommandWriter(ConnectionManager connection, LatencyTracker latencyTracker){
+        this.connection = connection;
+        this.latencyTracker = latencyTracker;
+    }
+
+    /*
+    Starts the writer thread. Commands submitted before are kept and written once it runs
+     */
+    public void start(){
+        synchronized (lock){
+            if(thread != null){
+                return;
+            }
+            thread = new Thread("CommandWriter " + connection.getLink().getTransport().getName()){
+                @Override
+                public void run() {
+                    loop(this);
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /*
+    Stops the writer thread after any write in progress and throws away the commands still waiting, so nothing decided
+    before the stop is written when it starts again
+     */
+    public void stop(){
+        synchronized (lock){
+            thread = null;
+            superseded += laneCount + (slotLength != 0 ? 1 : 0);
+            laneCount = 0;
+            slotLength = 0;
+            firstLength = 0;
+            lastMode = 0; //The next command is a mode change, never dropped
+            discards++;
+            lock.notifyAll();
+        }
+    }
+
+    /*
+    Queues the first length bytes of data, a command with the given mode character and sequence number, and returns
+    without waiting for it to be written. data can be reused straight away. inputTime is the System.nanoTime() of the
+    input the command carries, timed to the end of its write, or 0 for a keep-alive
+     */
+    public void submit(char mode, byte[] data, int length, int sequence, long inputTime){
+        synchronized (lock){
+            if(mode == lastMode){
+                if(slotLength != 0){
+                    superseded++;
+                }
+                System.arraycopy(data, 0, slot, 0, length);
+                slotLength = length;
+                slotSequence = sequence;
+                slotInput = inputTime;
+                slotConnection = connection.getConnectCount();
+            }else{
+                while(laneCount == MODE_LANE_SIZE){
+                    laneWaits++;
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                int index = (laneHead + laneCount) % MODE_LANE_SIZE;
+                System.arraycopy(data, 0, lane[index], 0, length);
+                laneLength[index] = length;
+                laneSequence[index] = sequence;
+                laneInput[index] = inputTime;
+                laneConnection[index] = connection.getConnectCount();
+                laneCount++;
+                modeChanges++;
+                lastMode = mode;
+                if(slotLength != 0){ //A setpoint for the old mode is no longer wanted
+                    superseded++;
+                    slotLength = 0;
+                }
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /*
+    Queues the first length bytes of data, a command with the given sequence number, to be written before every other
+    command waiting, as soon as the frame being written is finished. It replaces one given before that is still
+    waiting. A failed write is not retried, EmergencyStop retransmits its stops itself
+     */
+    public void submitFirst(byte[] data, int length, int sequence){
+        synchronized (lock){
+            System.arraycopy(data, 0, first, 0, length);
+            firstLength = length;
+            firstSequence = sequence;
+            lock.notifyAll();
+        }
+    }
+
+    /*
+    Throws away every command still waiting, used by EmergencyStop so nothing decided before a stop is written after it.
+    A command already being written, or given to submitFirst(), is not stopped
+     */
+    public void discard(){
+        synchronized (lock){
+            superseded += laneCount + (slotLength != 0 ? 1 : 0);
+            laneCount = 0;
+            slotLength = 0;
+            discards++;
+            lock.notifyAll(); //Room for a submit() waiting on a full lane
+        }
+    }
+
+    /*
+    Wakes the writer when the link's state changes, so waiting commands are written as soon as it is connected. Those
+    submitted before the link was lost are thrown away instead
+     */
+    public void linkChanged(){
+        synchronized (lock){
+            lock.notifyAll();
+        }
+    }
+
+    /*
+    Number of commands waiting to be written
+     */
+    public int getWaiting(){
+        synchronized (lock){
+            return laneCount + (slotLength != 0 ? 1 : 0) + (firstLength != 0 ? 1 : 0);
+        }
+    }
+
+    public long getCommandsWritten(){
+        return commandsWritten;
+    }
+
+    public long getBytesWritten(){
+        return bytesWritten;
+    }
+
+    /*
+    Bytes written per second over the last second in which anything was written, 0 if nothing was for longer
+     */
+    public float getBytesPerSecond(){
+        return System.nanoTime() - windowStart > 2 * RATE_WINDOW ? 0 : bytesPerSecond;
+    }
+
+    /*
+    Commands replaced by a newer one or by a mode change, or thrown away by a reconnect or stop(), before they were
+    written
+     */
+    public long getSuperseded(){
+        return superseded;
+    }
+
+    public long getModeChanges(){
+        return modeChanges;
+    }
+
+    public long getLaneWaits(){
+        return laneWaits;
+    }
+
+    public long getWriteErrors(){
+        return writeErrors;
+    }
+
+    /*
+    Total time spent blocked in write(), in microseconds
+     */
+    public long getStallTimeMicros(){
+        return stallTime / 1000;
+    }
+
+    /*
+    Time from the input a command carries to the end of its write()
+     */
+    public LatencyHistogram getInputToWire(){
+        return inputToWire;
+    }
+
+    /*
+    Longest single write() so far in microseconds, including one still in progress
+     */
+    public long getMaxStallMicros(){
+        long start = writeStart;
+        long current = start == 0 ? 0 : System.nanoTime() - start;
+        return Math.max(maxStall, current) / 1000;
+    }
+
+    private void loop(Thread self){
+        while(true){
+            int length;
+            int sequence;
+            long inputTime = 0;
+            long submitted = 0; //The connection the command was submitted on
+            boolean fromFirst;
+            boolean fromLane;
+            int discarded;
+            synchronized (lock){
+                while(true){
+                    if(thread != self){
+                        return; //Stopped
+                    }
+                    boolean connected = connection.isConnected();
+                    if(connected){
+                        dropStale();
+                    }
+                    boolean waiting = firstLength != 0 || laneCount > 0 || slotLength != 0;
+                    if(waiting && connected){
+                        break;
+                    }
+                    try {
+                        lock.wait(waiting ? RETRY_INTERVAL : 0); //Only polls while there is something to write
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                fromFirst = firstLength != 0;
+                fromLane = !fromFirst && laneCount > 0;
+                discarded = discards;
+                if(fromFirst){
+                    length = firstLength;
+                    sequence = firstSequence;
+                    System.arraycopy(first, 0, writing, 0, length);
+                    firstLength = 0;
+                }else if(fromLane){
+                    length = laneLength[laneHead];
+                    sequence = laneSequence[laneHead];
+                    inputTime = laneInput[laneHead];
+                    submitted = laneConnection[laneHead];
+                    System.arraycopy(lane[laneHead], 0, writing, 0, length);
+                }else{
+                    length = slotLength;
+                    sequence = slotSequence;
+                    inputTime = slotInput;
+                    submitted = slotConnection;
+                    System.arraycopy(slot, 0, writing, 0, length);
+                    slotLength = 0; //Taken, so a newer setpoint goes in behind it rather than replacing it
+                }
+            }
+
+            if(write(length, sequence, inputTime)){
+                if(fromLane){
+                    synchronized (lock){
+                        if(discards == discarded){ //Otherwise the lane was emptied while this was written
+                            laneHead = (laneHead + 1) % MODE_LANE_SIZE;
+                            laneCount--;
+                            lock.notifyAll(); //Room for a submit() waiting on a full lane
+                        }
+                    }
+                }
+            }else{
+                synchronized (lock){
+                    //A mode change stays at the head of the lane until it is written. A failed setpoint is only retried
+                    //if nothing newer has arrived, since it is then still the latest, and not after a discard()
+                    if(!fromFirst && !fromLane && slotLength == 0 && laneCount == 0 && discards == discarded){
+                        System.arraycopy(writing, 0, slot, 0, length);
+                        slotLength = length;
+                        slotSequence = sequence;
+                        slotInput = inputTime;
+                        slotConnection = submitted;
+                    }
+                    try {
+                        lock.wait(RETRY_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+    Throws away the waiting commands submitted on an earlier connection than the current one, called by the writer
+    thread holding lock while connected, so never during a write. Mode changes are submitted in order, so those are at the head of the lane. Commands given to
+    submitFirst() are stops, which are still wanted
+     */
+    private void dropStale(){
+        long current = connection.getConnectCount();
+        if(slotLength != 0 && slotConnection != current){
+            superseded++;
+            slotLength = 0;
+        }
+        if(laneCount > 0 && laneConnection[laneHead] != current){
+            while(laneCount > 0 && laneConnection[laneHead] != current){
+                superseded++;
+                laneHead = (laneHead + 1) % MODE_LANE_SIZE;
+                laneCount--;
+            }
+            lock.notifyAll(); //Room for a submit() waiting on a full lane
+        }
+    }
+
+    /*
+    Writes the command in writing, timing how long write() blocks and, if inputTime is not 0, how long since the input.
+    Returns false if the link failed
+     */
+    private boolean write(int length, int sequence, long inputTime){
+        long start = System.nanoTime();
+        if(latencyTracker != null){
+            latencyTracker.onSent(sequence, start);
+        }
+        writeStart = start;
+        try {
+            connection.write(writing, 0, length);
+        } catch (IOException e) {
+            writeErrors++; //The ConnectionManager notices the lost link and reconnects
+            return false;
+        } finally {
+            long end = System.nanoTime();
+            writeStart = 0;
+            long stall = end - start;
+            stallTime += stall;
+            if(stall > maxStall){
+                maxStall = stall;
+            }
+        }
+
+        commandsWritten++;
+        bytesWritten += length;
+        long now = System.nanoTime();
+        if(inputTime != 0){
+            inputToWire.recordNanos(now - inputTime);
+        }
+        if(windowStart == 0){
+            windowStart = now;
+        }
+        windowBytes += length;
+        long elapsed = now - windowStart;
+        if(elapsed >= RATE_WINDOW){
+            bytesPerSecond = windowBytes * 1e9f / elapsed;
+            windowBytes = 0;
+            windowStart = now;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,340 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Keeps a RobotLink connected from a background thread, so connecting never blocks the UI thread.
+ *
+ * The manager moves through these states:
+ *  - CONNECTING: an attempt to open the transport is in progress
+ *  - CONNECTED: the link is open and distance readings are arriving
+ *  - DEGRADED: the link is open but no reading arrived for degradedTimeout, the robot may be out of range
+ *  - BACKOFF: the last attempt failed or the link was lost, waiting before the next attempt
+ *  - STOPPED: stop() was called
+ *
+ * A link that stays silent for lostTimeout, or whose ConnectionThread ends, is closed and reconnected. Reconnect attempts
+ * are spaced by an exponential backoff with random jitter, and the transport is prepared (e.g. its socket created)
+ * during the backoff so the next attempt only has to connect.
+ */
+public class ConnectionManager implements RobotLink.Listener {
+
+    //Connection states
+    public static final int STOPPED = 0;
+    public static final int CONNECTING = 1;
+    public static final int CONNECTED = 2;
+    public static final int DEGRADED = 3;
+    public static final int BACKOFF = 4;
+
+    /*
+    Receives the events of the managed link. All methods are called on background threads
+     */
+    public interface Listener {
+        void onStateChanged(int state);
+        void onDistance(float distance, int sequence);
+    }
+
+    private static final long MONITOR_INTERVAL = 100; //Milliseconds between checks of a connected link
+    public static final long DEGRADED_TIMEOUT = 1000; //Default milliseconds of silence before the link is DEGRADED
+    public static final long LOST_TIMEOUT = 3000; //Default milliseconds of silence before the link is lost
+
+    private final RobotLink link;
+    private final Listener listener;
+    private final Random random = new Random();
+
+    //Timing configuration, in milliseconds
+    private volatile long degradedTimeout = DEGRADED_TIMEOUT; //Set from other threads while the link is monitored
+    private volatile long lostTimeout = LOST_TIMEOUT;
+    private volatile long timeoutsShortened = Long.MIN_VALUE; //System.nanoTime() the timeouts were last made shorter
+    private long minBackoff = 250;
+    private long maxBackoff = 16000;
+
+    private final Object lock = new Object();
+    private Thread thread;
+    private Thread retired; //The last thread stop() let go of, which may still be finishing a connect
+    private boolean reconnectNow; //Set by reconnect() to skip the rest of the backoff
+    private volatile int state = STOPPED;
+    private volatile long lastReceive; //System.nanoTime() of the last distance reading
+    private boolean prepared; //If the transport was prepared for the next attempt
+
+    //Metrics
+    private volatile long lastTimeToConnect = -1; //Milliseconds from starting to connect (or losing the link) until connected
+    private volatile long lastTimeToDetectLoss = -1; //Milliseconds from the last sign of life to declaring the link lost
+    private volatile long connectCount; //Successful connections
+    private volatile long failedAttempts; //Connection attempts that failed
+    private volatile long lossCount; //Times an established link was lost
+
+    public ConnectionManager(RobotTransport transport, Listener listener){
+        this.link = new RobotLink(transport, this);
+        this.listener = listener;
+    }
+
+    /*
+    Sets how long the link may stay silent before it is reported DEGRADED and before it is considered lost, in milliseconds.
+    Can be called while connected, e.g. when the keep-alive rate changes. Shorter timeouts count from the call
+     */
+    public void setTimeouts(long degradedTimeout, long lostTimeout){
+        if(degradedTimeout < this.degradedTimeout || lostTimeout < this.lostTimeout){
+            timeoutsShortened = System.nanoTime();
+        }
+        this.degradedTimeout = degradedTimeout;
+        this.lostTimeout = lostTimeout;
+    }
+
+    /*
+    Sets the first and the largest delay between reconnect attempts, in milliseconds
+     */
+    public void setBackoff(long minBackoff, long maxBackoff){
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /*
+    Starts connecting in the background. Does nothing if already started
+     */
+    public void start(){
+        synchronized (lock){
+            if(thread != null){
+                return;
+            }
+            final Thread previous = retired;
+            retired = null;
+            thread = new Thread("ConnectionManager " + link.getTransport().getName()){
+                @Override
+                public void run() {
+                    if(previous != null){ //Its link.close() must not hit the connection made here
+                        try {
+                            previous.join();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    manage(this);
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /*
+    Closes the link and stops reconnecting. A connect still in progress is aborted, or closed by the manager thread
+    once it returns
+     */
+    public void stop(){
+        synchronized (lock){
+            if(thread != null){
+                retired = thread;
+            }
+            thread = null;
+            lock.notifyAll();
+        }
+        link.close();
+        setState(STOPPED);
+    }
+
+    /*
+    Skips the current backoff and tries to connect straight away, e.g. when the user asks to reconnect
+     */
+    public void reconnect(){
+        synchronized (lock){
+            reconnectNow = true;
+            lock.notifyAll();
+        }
+    }
+
+    /*
+    Writes a command to the robot. Throws IOException if the link is down
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        link.write(data, offset, length);
+    }
+
+    /*
+    Returns true in the CONNECTED and DEGRADED states, when commands can be written
+     */
+    public boolean isConnected(){
+        return link.isConnected();
+    }
+
+    public int getState(){
+        return state;
+    }
+
+    public RobotLink getLink(){
+        return link;
+    }
+
+    public long getLastTimeToConnect(){
+        return lastTimeToConnect;
+    }
+
+    public long getLastTimeToDetectLoss(){
+        return lastTimeToDetectLoss;
+    }
+
+    public long getConnectCount(){
+        return connectCount;
+    }
+
+    public long getFailedAttempts(){
+        return failedAttempts;
+    }
+
+    public long getLossCount(){
+        return lossCount;
+    }
+
+    /*
+    Multi-line text dump of the connection statistics, for display or export
+     */
+    public String dump(){
+        StringBuilder sb = new StringBuilder();
+        sb.append("Link\n");
+        sb.append("connections: ").append(connectCount).append(" (").append(failedAttempts).append(" failed attempts)\n");
+        sb.append("losses: ").append(lossCount).append('\n');
+        sb.append("time to connect: ").append(lastTimeToConnect < 0 ? "-" : lastTimeToConnect + " ms").append('\n');
+        sb.append("time to detect loss: ").append(lastTimeToDetectLoss < 0 ? "-" : lastTimeToDetectLoss + " ms")
+                .append('\n');
+        return sb.toString();
+    }
+
+    /*
+    Body of the manager thread: connect, watch the link while it is up, back off and repeat until stopped
+     */
+    private void manage(Thread self){
+        int attempt = 0; //Consecutive failed attempts, drives the backoff
+        long outageStart = System.nanoTime(); //When we started being without a link
+
+        while(isCurrent(self)){
+            setState(CONNECTING);
+            try {
+                if(!prepared){
+                    link.getTransport().prepare();
+                }
+                prepared = false; //A prepared transport can only be used for one attempt
+                link.connect();
+            } catch (IOException e) {
+                prepared = false;
+                if(!isCurrent(self)){ //Aborted by stop()
+                    return;
+                }
+                failedAttempts++;
+                backoff(self, attempt++);
+                continue;
+            }
+            if(!isCurrent(self)){ //stop() ran while connecting, its link.close() may have come first
+                link.close();
+                return;
+            }
+
+            long now = System.nanoTime();
+            lastReceive = now;
+            lastTimeToConnect = (now - outageStart) / 1000000L;
+            connectCount++;
+            attempt = 0;
+            setState(CONNECTED);
+
+            monitor(self);
+            if(!isCurrent(self)){
+                link.close(); //Already closed by stop(), unless it ran before the connect returned
+                return;
+            }
+
+            //The link was lost
+            now = System.nanoTime();
+            lastTimeToDetectLoss = (now - lastReceive) / 1000000L;
+            lossCount++;
+            outageStart = now;
+            link.close();
+            backoff(self, attempt++);
+        }
+    }
+
+    /*
+    Watches a connected link until it is closed or stays silent for lostTimeout
+     */
+    private void monitor(Thread self){
+        synchronized (lock){
+            while(thread == self && link.isConnected()){
+                //Shorter timeouts count from when they were set, the last reading may have answered a slower keep-alive
+                long silence = (System.nanoTime() - Math.max(lastReceive, timeoutsShortened)) / 1000000L;
+                if(silence >= lostTimeout){
+                    return;
+                }
+                setState(silence >= degradedTimeout ? DEGRADED : CONNECTED);
+                try {
+                    lock.wait(MONITOR_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /*
+    Waits before the next attempt. The delay doubles with each failed attempt up to maxBackoff, and a random half of it is
+    jittered so that many clients do not retry in lockstep. The transport is prepared while waiting
+     */
+    private void backoff(Thread self, int attempt){
+        setState(BACKOFF);
+        long delay = Math.min(maxBackoff, minBackoff << Math.min(attempt, 20));
+        delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        long end = System.nanoTime() + delay * 1000000L;
+
+        try {
+            link.getTransport().prepare(); //Pre-warm the next attempt
+            prepared = true;
+        } catch (IOException e) {
+            prepared = false;
+        }
+
+        synchronized (lock){
+            while(thread == self && !reconnectNow){
+                long remaining = (end - System.nanoTime()) / 1000000L;
+                if(remaining <= 0){
+                    break;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            reconnectNow = false;
+        }
+    }
+
+    private boolean isCurrent(Thread self){
+        synchronized (lock){
+            return thread == self;
+        }
+    }
+
+    private void setState(int newState){
+        synchronized (lock){
+            if(state == newState || (newState != STOPPED && thread != Thread.currentThread())){
+                return; //Unchanged, or an old manager thread is finishing after stop()
+            }
+            state = newState;
+        }
+        Tracer.trace(Tracer.LINK_STATE, newState);
+        listener.onStateChanged(newState);
+    }
+
+    @Override
+    public void onDistance(float distance, int sequence) {
+        lastReceive = System.nanoTime();
+        listener.onDistance(distance, sequence);
+    }
+
+    /*
+    Called when the ConnectionThread ends, wakes up the monitor so the loss is handled straight away
+     */
+    @Override
+    public void onDisconnected() {
+        synchronized (lock){
+            lock.notifyAll();
+        }
+    }
+}
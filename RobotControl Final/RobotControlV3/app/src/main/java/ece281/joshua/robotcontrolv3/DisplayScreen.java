@@ -3,79 +3,230 @@ package ece281.joshua.robotcontrolv3;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.DashPathEffect;
 import android.graphics.Paint;
-import android.graphics.Rect;
+import android.graphics.Path;
+import android.support.v4.view.ViewCompat;
 import android.util.AttributeSet;
 import android.view.View;
 
+/**
+ * Scrolling graph of the distance readings from the ultrasonic sensor, newest on the right.
+ *
+ * Readings are kept in a SampleRing and each pixel column shows the smallest and largest reading it covers, so bursts
+ * of readings are never hidden. The grid is built once per view size and nothing is allocated while drawing. However
+ * often readings arrive, the view is redrawn at most once per display frame.
+ */
 public class DisplayScreen extends View {
 
-    int distance;
-    Paint paint;
+    static final int RANGE = 100; //Distance in cm at the top of the graph, further readings are drawn at the top
+    static final int GRID_STEP = 10; //cm between grid lines
+    static final int WARNING_DISTANCE = 60; //Below this the trace turns orange
+    static final int DANGER_DISTANCE = 30; //Below this the trace turns red
+    static final int HISTORY = 1024; //Number of readings kept
+
+    private static final String TITLE = "Distance from Obstacle (in cm)";
+    private static final String[] LABELS = {"0", "10", "20", "30", "40", "50", "60", "70", "80", "90"};
+
+    int distance; //Latest reading
+    final SampleRing samples = new SampleRing(HISTORY);
+    int span = 256; //Number of most recent readings spread across the width of the graph
+
+    Paint paint; //Used for the text
+    private final Paint gridPaint;
+    private final Paint tracePaint;
+
+    //Geometry, recalculated whenever the view changes size
+    private final Path gridPath = new Path();
+    private final float[] labelY = new float[LABELS.length];
+    private float graphLeft, graphTop, graphRight, graphBottom, titleY;
+    private float[] columnMin = new float[0];
+    private float[] columnMax = new float[0];
+    private float[] linePoints = new float[0]; //Two line segments (8 floats) per column
+
+    private final char[] valueText = new char[8]; //Latest reading as text, e.g. "42 cm"
+    private final char[] commandText = new char[16]; //Commanded state as text, e.g. "m 238 -238"
+    private int commandLength; //Characters of commandText drawn, 0 when no commanded state is shown
+    private boolean redrawPending; //If a redraw was requested but has not happened yet
 
     public DisplayScreen(Context context, AttributeSet attributeSet){
         super(context, attributeSet);
-        // make a new paint object
-        paint = new Paint();
+        // make the paint objects once, they are reused for every frame
+        paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(Color.BLACK);
+
+        gridPaint = new Paint();
+        gridPaint.setColor(Color.GRAY);
+        gridPaint.setStyle(Paint.Style.STROKE);
+        gridPaint.setPathEffect(new DashPathEffect(new float[]{10, 10}, 0));
+
+        tracePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        tracePaint.setStrokeWidth(3);
     }
+
+    /*
+    Adds a new reading to the graph. The redraw is scheduled for the next display frame, so calling this many times per
+    frame costs only one redraw
+     */
     public void updateDisplay(int distance){
-        // Set the distance we get as the parameter to the distance variable declared in this class
         this.distance = distance;
-        this.invalidate(); //Forces the view to redraw, calling onDraw()
+        samples.add(distance);
+        if(!redrawPending){
+            redrawPending = true;
+            ViewCompat.postInvalidateOnAnimation(this);
+        }
     }
-    public void onDraw(Canvas canvas){
-        int blockY;
-        // Note: the blockY value is the length of foreground rectangle 
-        // If distance is greater than 100 then we reset the blockY to be 0 so the graph doesn't show on screen.
-        if(distance >= 2*50){
-            blockY = 0;
+
+    /*
+    Shows the commanded mode and motor speeds below the title, until hideCommand(). Used while a flight recording is
+    replayed, when the commands on the graph are not the ones being sent
+     */
+    public void showCommand(char mode, int left, int right){
+        int length = 0;
+        commandText[length++] = mode;
+        commandText[length++] = ' ';
+        length = formatNumber(commandText, length, left);
+        commandText[length++] = ' ';
+        commandLength = formatNumber(commandText, length, right);
+        if(!redrawPending){
+            redrawPending = true;
+            ViewCompat.postInvalidateOnAnimation(this);
         }
-        // Otherwise, the blockY is calculated using the formula below
-        else{
-            blockY = ((2*50 - distance) * 12);
+    }
+
+    public void hideCommand(){
+        commandLength = 0;
+        invalidate();
+    }
+
+    /*
+    Lays out the graph for the new view size and builds the grid path and the per-column buffers
+     */
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight){
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+
+        float textSize = Math.max(12, height / 30f);
+        paint.setTextSize(textSize);
+
+        titleY = textSize * 1.2f;
+        graphLeft = paint.measureText("000") + textSize / 2;
+        graphTop = titleY + textSize;
+        graphRight = width - textSize / 2;
+        graphBottom = height - textSize;
+
+        gridPath.reset();
+        for(int i = 0; i < LABELS.length; i++){
+            float y = distanceToY(i * GRID_STEP);
+            gridPath.moveTo(graphLeft, y);
+            gridPath.lineTo(graphRight, y);
+            labelY[i] = y + textSize / 3; //Centres the label on its line
         }
-        // We fill the rectangle with a color
-        paint.setStyle(Paint.Style.FILL);
-        // Draw a rectangle, which is basically our graph based on the blockY value
-        Rect foreground = new Rect(0, 0, 1200, blockY);
+
+        int columns = Math.max(1, (int) (graphRight - graphLeft));
+        columnMin = new float[columns];
+        columnMax = new float[columns];
+        linePoints = new float[columns * 8];
+    }
+
+    @Override
+    public void onDraw(Canvas canvas){
         super.onDraw(canvas);
+        redrawPending = false;
 
-        // if the distance is greater than 60, make the color of the foreground rectangle to be Yellow
-        if(distance >= 2*30){
-            paint.setColor(Color.YELLOW);
-            canvas.drawRect(foreground, paint);
+        // Draw the grid and its labels
+        canvas.drawPath(gridPath, gridPaint);
+        for(int i = 0; i < LABELS.length; i++){
+            canvas.drawText(LABELS[i], 0, labelY[i], paint);
         }
-        // if the distance is between 60 and 30, make the color of the foreground rectangle to be Orange
-        else if(distance < 2*30 && distance >= 2*15){
-            //Set foreground rect color to orange
-            paint.setColor(Color.rgb(255,165,0));
-            canvas.drawRect(foreground, paint);
+
+        // Write the title, followed by the latest reading in the colour of the trace
+        canvas.drawText(TITLE, graphLeft, titleY, paint);
+        tracePaint.setColor(zoneColor(distance));
+        int length = formatValue(distance);
+        tracePaint.setTextSize(paint.getTextSize());
+        canvas.drawText(valueText, 0, length, graphRight - tracePaint.measureText(valueText, 0, length), titleY, tracePaint);
+        if(commandLength > 0){
+            canvas.drawText(commandText, 0, commandLength, graphLeft, graphTop + paint.getTextSize(), paint);
         }
-        // if the distance is lower than 30 or any other value, make the color of the foreground rectangle to be RED
-        else{
-            paint.setColor(Color.RED);
-            canvas.drawRect(foreground, paint);
+
+        // Draw each column as a line from the previous column to this column's smallest reading, then up to its largest
+        int columns = columnMin.length;
+        samples.downsample(span, columns, columnMin, columnMax);
+        int points = 0;
+        float previousX = Float.NaN;
+        float previousY = 0;
+        for(int column = 0; column < columns; column++){
+            if(Float.isNaN(columnMin[column])){
+                continue;
+            }
+            float x = graphLeft + column;
+            float low = distanceToY(columnMin[column]);
+            float high = distanceToY(columnMax[column]);
+            if(!Float.isNaN(previousX)){
+                linePoints[points++] = previousX;
+                linePoints[points++] = previousY;
+                linePoints[points++] = x;
+                linePoints[points++] = low;
+            }
+            linePoints[points++] = x;
+            linePoints[points++] = low;
+            linePoints[points++] = x;
+            linePoints[points++] = high;
+            previousX = x;
+            previousY = high;
         }
+        canvas.drawLines(linePoints, 0, points, tracePaint);
+    }
+
+    /*
+    Converts a distance in cm to a y coordinate in the graph, clamped to the graph's range
+     */
+    private float distanceToY(float cm){
+        float clamped = Math.max(0, Math.min(RANGE, cm));
+        return graphBottom - (graphBottom - graphTop) * clamped / RANGE;
+    }
 
-        paint.setColor(Color.BLACK); // Set the font color to be Black
-        paint.setTextSize(35); // Set the font size to 35
-
-        // Write the label onto the screen
-        canvas.drawText("                               Distance from Obstacle (in cm)                                                  ", 10, 30, paint);
-
-        // Change the Size of the font to be 45
-        paint.setTextSize(45);
-
-        // Setup the Scale for the graph
-        canvas.drawText("- - - - - - - - - - - - - - - - - - - - - 90 - - - - - - - - - - - - - - - - - - - - - - - - - ", 10, 100, paint);
-        canvas.drawText("- - - - - - - - - - - - - - - - - - - - - 80 - - - - - - - - - - - - - - - - - - - - - - - - - ", 10, 217, paint);
-        canvas.drawText("- - - - - - - - - - - - - - - - - - - - - 70 - - - - - - - - - - - - - - - - - - - - - - - - - ", 10, 334, paint);
-        canvas.drawText("- - - - - - - - - - - - - - - - - - - - - 60 - - - - - - - - - - - - - - - - - - - - - - - - - ", 10, 451, paint);
-        canvas.drawText("- - - - - - - - - - - - - - - - - - - - - 50 - - - - - - - - - - - - - - - - - - - - - - - - - ", 10, 568, paint);
-        canvas.drawText("- - - - - - - - - - - - - - - - - - - - - 40 - - - - - - - - - - - - - - - - - - - - - - - - - ", 10, 685, paint);
-        canvas.drawText("- - - - - - - - - - - - - - - - - - - - - 30 - - - - - - - - - - - - - - - - - - - - - - - - - ", 10, 802, paint);
-        canvas.drawText("- - - - - - - - - - - - - - - - - - - - - 20 - - - - - - - - - - - - - - - - - - - - - - - - - ", 10, 919, paint);
-        canvas.drawText("- - - - - - - - - - - - - - - - - - - - - 10 - - - - - - - - - - - - - - - - - - - - - - - - - ", 10, 1036, paint);
-        canvas.drawText("- - - - - - - - - - - - - - - - - - - - -  0 - - - - - - - - - - - - - - - - - - - - - - - - - ", 10, 1153, paint);
+    /*
+    Yellow when far from obstacles, orange when getting close and red when very close
+     */
+    private static int zoneColor(int distance){
+        if(distance >= WARNING_DISTANCE){
+            return Color.rgb(230, 190, 0);
+        }else if(distance >= DANGER_DISTANCE){
+            return Color.rgb(255, 165, 0);
+        }
+        return Color.RED;
+    }
+
+    /*
+    Writes value followed by " cm" into valueText without allocating, returns the number of characters written
+     */
+    private int formatValue(int value){
+        int length = formatNumber(valueText, 0, value);
+        valueText[length++] = ' ';
+        valueText[length++] = 'c';
+        valueText[length++] = 'm';
+        return length;
+    }
+
+    /*
+    Writes value, limited to four digits, into text at start without allocating, returns the end of what was written
+     */
+    private static int formatNumber(char[] text, int start, int value){
+        int length = start;
+        if(value < 0){
+            text[length++] = '-';
+            value = -value;
+        }
+        value = Math.min(value, 9999);
+        int divisor = 1;
+        while(divisor * 10 <= value){
+            divisor *= 10;
+        }
+        for(; divisor > 0; divisor /= 10){
+            text[length++] = (char) ('0' + (value / divisor) % 10);
+        }
+        return length;
     }
-}
\ No newline at end of file
+}
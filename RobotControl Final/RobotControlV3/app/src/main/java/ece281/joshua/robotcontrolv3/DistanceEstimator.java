@@ -0,0 +1,249 @@
+package ece281.joshua.robotcontrolv3;
+
+/**
+ * Cleans up the distance readings before they are displayed or used to drive.
+ *
+ * Readings of 0 (the firmware's pulseIn timeout) and readings beyond the range finder's range are rejected outright.
+ * The rest are compared with the median of the last few readings, and a reading further than SPIKE_MARGIN from it is
+ * replaced by the median, which removes single spikes without delaying readings that agree with their neighbours. The
+ * result goes into a Kalman filter tracking the distance and the rate at which it changes. A measurement that jumps
+ * further than the robot could have moved since the last reading is rejected as an outlier, unless it happens
+ * REACQUIRE_AFTER times in a row, in which case the obstacle really has changed (e.g. after a turn) and the filter starts
+ * again from the new distance, keeping the velocity since the robot itself has not changed speed.
+ *
+ * Every update costs the same few operations on fixed arrays and nothing is allocated, so it can run on every reading.
+ * Not thread safe, update() and the getters are called on the thread the readings are handled on.
+ */
+public class DistanceEstimator {
+
+    static final float MAX_RANGE = 400; //cm, readings beyond this are not real
+    static final float MAX_RATE = 100; //cm/s, fastest the distance can change (the robot is about 41 cm/s at full speed)
+    static final float JUMP_MARGIN = 5; //cm allowed beyond MAX_RATE for sensor noise
+    static final float SPIKE_MARGIN = 15; //cm a reading may differ from the median before it is a spike, above what the robot moves between readings
+    static final int REACQUIRE_AFTER = 2; //Outliers in a row after which the filter restarts from the new distance
+    static final float MEASUREMENT_NOISE = 1; //Variance of a reading in cm^2
+    static final float ACCELERATION_NOISE = 1000; //Variance of the change in velocity per second in (cm/s^2)^2
+    static final float INITIAL_VELOCITY_VARIANCE = 2500; //(cm/s)^2, nothing is known about the velocity at first
+    static final float ACCEPTANCE_SMOOTHING = 0.2f; //Weight of the newest reading in the acceptance rate
+
+    //Sliding median
+    private final float[] window; //The newest readings in arrival order, as a ring
+    private final float[] sorted; //The same readings in ascending order
+    private int windowCount; //Readings in the window so far, up to its length
+    private int windowNext; //Ring position the next reading goes in
+
+    //Kalman filter state: distance, velocity and their covariance
+    private boolean initialized;
+    private float distance, velocity;
+    private float p00, p01, p11;
+    private long lastTime; //System.nanoTime() of the last reading
+
+    private float raw;
+    private float acceptance; //Smoothed fraction of readings accepted
+    private int outliersInRow;
+
+    //Counters
+    private long acceptedCount;
+    private long timeoutCount; //Readings of 0
+    private long outlierCount; //Readings out of range or jumping impossibly far
+
+    /*
+    windowSize is the number of readings the median is taken over, an odd number. Larger removes longer bursts of
+    spikes but takes longer to accept a real jump
+     */
+    public DistanceEstimator(int windowSize){
+        window = new float[windowSize];
+        sorted = new float[windowSize];
+    }
+
+    /*
+    Feeds a reading in cm received at System.nanoTime() now. Returns true if it was accepted and the estimate updated
+     */
+    public boolean update(float reading, long now){
+        raw = reading;
+        if(reading <= 0){
+            timeoutCount++;
+            return reject(now);
+        }
+        if(reading > MAX_RANGE){
+            outlierCount++;
+            return reject(now);
+        }
+
+        float median = addToMedian(reading);
+        float measurement = Math.abs(reading - median) > SPIKE_MARGIN ? median : reading;
+
+        if(!initialized){
+            velocity = 0;
+            restart(measurement, now);
+            return accept();
+        }
+
+        float dt = predict(now);
+        float innovation = measurement - distance;
+        if(Math.abs(innovation) > MAX_RATE * dt + JUMP_MARGIN){
+            outlierCount++;
+            if(++outliersInRow < REACQUIRE_AFTER){
+                return reject(now);
+            }
+            restart(measurement, now); //Consistently somewhere else, so the obstacle has changed
+            return accept();
+        }
+
+        //Kalman update
+        float s = p00 + MEASUREMENT_NOISE;
+        float k0 = p00 / s;
+        float k1 = p01 / s;
+        distance = clamp(distance + k0 * innovation); //The gain can overshoot below the sensor's floor
+        velocity += k1 * innovation;
+        p11 -= k1 * p01;
+        p01 -= k0 * p01;
+        p00 -= k0 * p00;
+        return accept();
+    }
+
+    /*
+    Forgets everything, used when the connection or the mode changes
+     */
+    public void reset(){
+        initialized = false;
+        windowCount = 0;
+        windowNext = 0;
+        outliersInRow = 0;
+        acceptance = 0;
+    }
+
+    /*
+    The last reading exactly as received, including rejected ones
+     */
+    public float getRaw(){
+        return raw;
+    }
+
+    /*
+    The filtered distance in cm as of the last reading, between 0 and MAX_RANGE, or 0 before any reading was accepted
+     */
+    public float getFiltered(){
+        return initialized ? clamp(distance) : 0; //Prediction after rejected readings may have carried it out of range
+    }
+
+    /*
+    Rate of change of the distance in cm/s, negative when approaching
+     */
+    public float getVelocity(){
+        return initialized ? velocity : 0;
+    }
+
+    /*
+    Speed at which the robot is closing on the obstacle in cm/s, the negated velocity
+     */
+    public float getClosingSpeed(){
+        return -getVelocity();
+    }
+
+    /*
+    Between 0 (nothing known) and 1, from the fraction of recent readings accepted and the uncertainty of the filtered
+    distance compared with that of a single reading
+     */
+    public float getConfidence(){
+        if(!initialized){
+            return 0;
+        }
+        float certainty = (float) Math.min(1, Math.sqrt(MEASUREMENT_NOISE / p00));
+        return acceptance * certainty;
+    }
+
+    public boolean hasEstimate(){
+        return initialized;
+    }
+
+    public long getAcceptedCount(){
+        return acceptedCount;
+    }
+
+    public long getTimeoutCount(){
+        return timeoutCount;
+    }
+
+    public long getOutlierCount(){
+        return outlierCount;
+    }
+
+    /*
+    Advances the filter to now with the constant velocity model, growing the uncertainty. Returns the seconds advanced
+     */
+    private float predict(long now){
+        float dt = Math.max(0, (now - lastTime) / 1e9f);
+        lastTime = now;
+        distance += velocity * dt;
+        float dt2 = dt * dt;
+        p00 += dt * (2 * p01 + dt * p11) + ACCELERATION_NOISE * dt2 * dt2 / 4;
+        p01 += dt * p11 + ACCELERATION_NOISE * dt2 * dt / 2;
+        p11 += ACCELERATION_NOISE * dt2;
+        return dt;
+    }
+
+    /*
+    Starts the filter again from measurement, keeping the velocity
+     */
+    private void restart(float measurement, long now){
+        initialized = true;
+        distance = measurement;
+        p00 = MEASUREMENT_NOISE;
+        p01 = 0;
+        p11 = INITIAL_VELOCITY_VARIANCE;
+        lastTime = now;
+        outliersInRow = 0;
+    }
+
+    private static float clamp(float distance){
+        return Math.max(0, Math.min(MAX_RANGE, distance));
+    }
+
+    private boolean accept(){
+        outliersInRow = 0;
+        acceptedCount++;
+        acceptance += ACCEPTANCE_SMOOTHING * (1 - acceptance);
+        return true;
+    }
+
+    private boolean reject(long now){
+        if(initialized){
+            predict(now); //Time still passes, so the estimate moves on and becomes less certain
+        }
+        acceptance -= ACCEPTANCE_SMOOTHING * acceptance;
+        return false;
+    }
+
+    /*
+    Adds a reading to the sliding window and returns the window's median. The sorted copy is kept up to date by removing
+    the reading that drops out and inserting the new one, a fixed amount of work for a fixed window size
+     */
+    private float addToMedian(float reading){
+        int count = windowCount;
+        if(count == window.length){ //Full, the oldest reading drops out
+            float oldest = window[windowNext];
+            int i = 0;
+            while(sorted[i] != oldest){
+                i++;
+            }
+            System.arraycopy(sorted, i + 1, sorted, i, count - i - 1);
+            count--;
+        }else{
+            windowCount++;
+        }
+        window[windowNext] = reading;
+        windowNext = (windowNext + 1) % window.length;
+
+        int i = count;
+        while(i > 0 && sorted[i - 1] > reading){
+            sorted[i] = sorted[i - 1];
+            i--;
+        }
+        sorted[i] = reading;
+        count++;
+
+        //For an even count (while the window fills) the lower middle is used, so the median is always a real reading
+        return sorted[(count - 1) / 2];
+    }
+}
@@ -0,0 +1,127 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The drive state shared by the UI thread (buttons and menus), the sensor thread (accelerometer) and the command
+ * scheduler thread (sending commands): the mode, the four direction button flags and the two motor speeds.
+ *
+ * The whole state is packed into a single long held in an AtomicLong, so a writer replaces all of it at once and a
+ * reader gets a consistent snapshot with one volatile read. The sender can never see the left speed from one update
+ * next to the right speed from another, and neither side takes a lock or allocates.
+ *
+ * Layout:  bits 0-15 right speed, bits 16-31 left speed, bits 32-39 mode, bits 40-47 button flags, bits 48-63 the
+ *          number of updates, so a reader can tell whether anything changed between two snapshots
+ */
+public final class DriveState {
+
+    //Direction button flags
+    public static final int FLAG_LEFT = 1;
+    public static final int FLAG_RIGHT = 2;
+    public static final int FLAG_FORWARD = 4;
+    public static final int FLAG_REVERSE = 8;
+
+    private static final long VERSION_UNIT = 1L << 48;
+
+    private final AtomicLong state;
+
+    public DriveState(int mode){
+        state = new AtomicLong(pack(mode, 0, 0, 0));
+    }
+
+    /*
+    Returns the current state as one packed snapshot, read it with the static mode(), flags(), left() and right() methods
+     */
+    public long get(){
+        return state.get();
+    }
+
+    public int getMode(){
+        return mode(state.get());
+    }
+
+    /*
+    Sets the mode and stops the motors, leaving the button flags as they are
+     */
+    public long setMode(int mode){
+        long current, next;
+        do {
+            current = state.get();
+            next = next(current, mode, flags(current), 0, 0);
+        } while(!state.compareAndSet(current, next));
+        return next;
+    }
+
+    /*
+    Sets both motor speeds together
+     */
+    public long setSpeeds(int left, int right){
+        long current, next;
+        do {
+            current = state.get();
+            next = next(current, mode(current), flags(current), left, right);
+        } while(!state.compareAndSet(current, next));
+        return next;
+    }
+
+    /*
+    Sets or clears one of the FLAG_ button flags
+     */
+    public long setFlag(int flag, boolean set){
+        long current, next;
+        do {
+            current = state.get();
+            int flags = set ? flags(current) | flag : flags(current) & ~flag;
+            next = next(current, mode(current), flags, left(current), right(current));
+        } while(!state.compareAndSet(current, next));
+        return next;
+    }
+
+    /*
+    Replaces the whole state
+     */
+    public long set(int mode, int flags, int left, int right){
+        long current, next;
+        do {
+            current = state.get();
+            next = next(current, mode, flags, left, right);
+        } while(!state.compareAndSet(current, next));
+        return next;
+    }
+
+    public static long pack(int mode, int flags, int left, int right){
+        return ((long) (flags & 0xFF) << 40) | ((long) (mode & 0xFF) << 32) | ((long) (left & 0xFFFF) << 16)
+                | (right & 0xFFFF);
+    }
+
+    public static int mode(long state){
+        return (int) (state >>> 32) & 0xFF;
+    }
+
+    public static int flags(long state){
+        return (int) (state >>> 40) & 0xFF;
+    }
+
+    public static int left(long state){
+        return (short) (state >>> 16);
+    }
+
+    public static int right(long state){
+        return (short) state;
+    }
+
+    public static boolean isSet(long state, int flag){
+        return (flags(state) & flag) != 0;
+    }
+
+    /*
+    Number of updates made before this snapshot, modulo 65536
+     */
+    public static int version(long state){
+        return (int) (state >>> 48);
+    }
+
+    private static long next(long current, int mode, int flags, int left, int right){
+        return ((current & 0xFFFF000000000000L) + VERSION_UNIT) | pack(mode, flags, left, right);
+    }
+}
@@ -0,0 +1,250 @@
+package ece281.joshua.robotcontrolv3;
+
+/**
+ * Priority lane that stops the robot without waiting for the command scheduler's next tick or for the commands queued
+ * in the CommandWriter.
+ *
+ * trigger() wakes the lane's own thread, which throws away the commands still waiting in the writer (they were decided
+ * before the stop) and gives it an 'i' command through submitFirst(), so the writer thread writes it next, between two
+ * frames rather than behind its queue. The stop takes its sequence number from the app's CommandFrame, so the arduino
+ * echoes it with its distance reply like any other command, and that echo is the acknowledgement. Until it arrives the
+ * same frame is sent again every RETRANSMIT_INTERVAL, so a stop lost to a corrupted byte is repeated rather than left
+ * to the next keep-alive. After MAX_ATTEMPTS sends without an acknowledgement, e.g. to firmware that does not echo
+ * sequence numbers, the lane gives up. A command that moves the robot again cancels the retransmissions (cancel()).
+ *
+ * The time from trigger() to the acknowledgement is recorded in a LatencyHistogram of its own. The lane can not get a
+ * stop past a link that has stalled: a write that blocks because the robot stopped reading blocks the stop as well.
+ *
+ * predictsCollision() is the test for the automatic trigger.
+ */
+public class EmergencyStop {
+
+    static final long RETRANSMIT_INTERVAL = 80; //Milliseconds between writes of an unacknowledged stop
+    static final int MAX_ATTEMPTS = 25; //Writes of one stop before giving up, 2 s at RETRANSMIT_INTERVAL
+
+    private final ConnectionManager connection;
+    private final CommandWriter writer; //Writes the stops, whose waiting commands are discarded by a stop
+    private final CommandFrame sequences; //Source of the sequence numbers, shared with the other commands
+
+    private final CommandFrame frame = new CommandFrame(CommandFrame.FORMAT_BINARY); //The stop, only used by the lane thread
+
+    private final Object lock = new Object();
+    private Thread thread;
+
+    //The current stop, guarded by lock
+    private boolean active; //From trigger() until acknowledged, cancelled or given up
+    private boolean pending; //Triggered but not yet encoded by the lane thread
+    private long triggerTime; //System.nanoTime() of trigger()
+    private int sequence = -1; //Sequence number of the encoded stop, -1 before it is written
+    private int attempts; //Times it was sent
+    private long nextWrite; //System.nanoTime() it is due to be sent again
+
+    //Statistics
+    private final LatencyHistogram histogram = new LatencyHistogram(); //trigger() to acknowledgement
+    private volatile long triggerCount;
+    private volatile long automaticCount; //Triggers from a predicted collision
+    private volatile long framesSent; //Given to the writer
+    private volatile long acknowledgedCount;
+    private volatile long abandonedCount; //Stops given up after MAX_ATTEMPTS
+    private volatile long cancelledCount; //Stops overtaken by a command that moves the robot
+
+    /*
+    Sends the stops through writer, which reports them to its LatencyTracker as they are written, whenever connection
+    is up. Sequence numbers are taken from sequences
+     */
+    public EmergencyStop(ConnectionManager connection, CommandWriter writer, CommandFrame sequences){
+        this.connection = connection;
+        this.writer = writer;
+        this.sequences = sequences;
+    }
+
+    /*
+    Starts the lane's thread. A stop triggered before is written once it runs
+     */
+    public void start(){
+        synchronized (lock){
+            if(thread != null){
+                return;
+            }
+            thread = new Thread("EmergencyStop " + connection.getLink().getTransport().getName()){
+                @Override
+                public void run() {
+                    loop(this);
+                }
+            };
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            thread.start();
+        }
+    }
+
+    /*
+    Stops the lane's thread. A stop still active is kept
+     */
+    public void stop(){
+        synchronized (lock){
+            thread = null;
+            lock.notifyAll();
+        }
+    }
+
+    /*
+    Stops the robot as soon as possible. now is the current System.nanoTime() and automatic whether the stop was
+    triggered by a predicted collision rather than by the user. Returns false if a stop is already on its way, in which
+    case that one carries on
+     */
+    public boolean trigger(long now, boolean automatic){
+        synchronized (lock){
+            if(active){
+                return false;
+            }
+            active = true;
+            pending = true;
+            triggerTime = now;
+            triggerCount++;
+            if(automatic){
+                automaticCount++;
+            }
+            Tracer.trace(Tracer.EMERGENCY_STOP, automatic ? 1 : 0);
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    /*
+    Gives up on the current stop, called when a newer command moves the robot again so a late retransmission does not
+    stop it
+     */
+    public void cancel(){
+        synchronized (lock){
+            if(active){
+                active = false;
+                cancelledCount++;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /*
+    Called for every distance reply with the sequence number it echoes and the System.nanoTime() it arrived at. The
+    echo of the current stop acknowledges it
+     */
+    public void onReply(int sequence, long now){
+        synchronized (lock){
+            if(!active || pending || attempts == 0 || sequence != this.sequence){
+                return;
+            }
+            active = false;
+            acknowledgedCount++;
+            histogram.recordNanos(now - triggerTime);
+            lock.notifyAll();
+        }
+    }
+
+    /*
+    Wakes the lane when the link's state changes, so a stop waiting for it is written as soon as it is connected
+     */
+    public void linkChanged(){
+        synchronized (lock){
+            lock.notifyAll();
+        }
+    }
+
+    /*
+    Whether a stop is on its way and not yet acknowledged
+     */
+    public boolean isActive(){
+        synchronized (lock){
+            return active;
+        }
+    }
+
+    /*
+    Whether the robot would reach margin cm of the obstacle within time seconds, given the filtered distance in cm and
+    the speed in cm/s at which it is closing on the obstacle
+     */
+    public static boolean predictsCollision(float distance, float closingSpeed, float time, float margin){
+        return distance - Math.max(0, closingSpeed) * time <= margin;
+    }
+
+    public LatencyHistogram getHistogram(){
+        return histogram;
+    }
+
+    public long getTriggerCount(){
+        return triggerCount;
+    }
+
+    public long getAcknowledgedCount(){
+        return acknowledgedCount;
+    }
+
+    private void loop(Thread self){
+        while(true){
+            int length;
+            int stopSequence;
+            synchronized (lock){
+                while(true){
+                    if(thread != self){
+                        return; //Stopped
+                    }
+                    long now = System.nanoTime();
+                    if(active && pending){
+                        writer.discard();
+                        frame.setFormat(sequences.getFormat());
+                        frame.encode('i', 0, 0, sequences.nextSequence());
+                        sequence = frame.getSequence();
+                        pending = false;
+                        attempts = 0;
+                        nextWrite = now;
+                    }
+                    if(active && attempts == MAX_ATTEMPTS && now - nextWrite >= 0){
+                        active = false;
+                        abandonedCount++;
+                    }
+                    boolean connected = connection.isConnected();
+                    if(active && connected && now - nextWrite >= 0){
+                        break;
+                    }
+                    try {
+                        if(!active){
+                            lock.wait();
+                        }else if(!connected){
+                            lock.wait(CommandWriter.RETRY_INTERVAL);
+                        }else{
+                            long wait = nextWrite - now;
+                            lock.wait(wait / 1000000L, (int) (wait % 1000000L));
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                attempts++;
+                nextWrite = System.nanoTime() + RETRANSMIT_INTERVAL * 1000000L;
+                length = frame.getLength();
+                stopSequence = sequence;
+            }
+
+            //Written by the writer thread between two frames, failed writes are sent again after RETRANSMIT_INTERVAL
+            writer.submitFirst(frame.getBuffer(), length, stopSequence);
+            framesSent++;
+        }
+    }
+
+    /*
+    Multi-line text dump of the stop statistics, for display or export
+     */
+    public String dump(){
+        StringBuilder sb = new StringBuilder();
+        sb.append("Emergency stop\n");
+        sb.append("triggered: ").append(triggerCount).append(" (").append(automaticCount).append(" automatic)\n");
+        sb.append("acknowledged: ").append(acknowledgedCount).append('\n');
+        sb.append("unacknowledged: ").append(abandonedCount).append('\n');
+        sb.append("cancelled: ").append(cancelledCount).append('\n');
+        sb.append("frames sent: ").append(framesSent).append('\n');
+        sb.append("latency p50: ").append(histogram.getPercentile(0.5) / 1000.0).append(" ms\n");
+        sb.append("latency p99: ").append(histogram.getPercentile(0.99) / 1000.0).append(" ms\n");
+        sb.append("latency max: ").append(histogram.getMax() / 1000.0).append(" ms\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,344 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives several robots at once from a small fixed number of threads, instead of one thread blocked in read() per robot.
+ *
+ * Each robot is serviced by one of the fleet threads, which go round their robots polling InputStream.available() and
+ * only reading what has already arrived, so no thread ever blocks on a quiet robot. A pass that finds nothing to do parks
+ * the thread for POLL_INTERVAL, which bounds the extra latency a reading can see. The same pass connects robots that are
+ * due a connection attempt over to CONNECT_THREADS connector threads, as opening a transport blocks for as long as it
+ * takes to connect, and tracks each robot's health with the same states and timeouts as ConnectionManager.
+ *
+ * Commands are set from any thread, for one robot (FleetRobot.command()) or for every robot in a group (broadcast()),
+ * and never written on the calling thread. A fleet thread hands each of its robots whose command is pending, or that is
+ * due a keep-alive so it keeps replying, to WRITER_THREADS writer threads, which do the writes that may block. A robot
+ * whose last write is still outstanding is skipped until it is done, so each robot has at most one write waiting or in
+ * progress and a stalled robot ties up one writer at most. Writes queue for a free writer, so the fleet threads never
+ * wait for one. A stall lasts until the robot's lost timeout closes its connection, which ends the write.
+ */
+public class FleetController {
+
+    public static final int GROUP_ALL = -1; //Group that broadcast() treats as every robot
+
+    static final long POLL_INTERVAL = 500000; //Nanoseconds a fleet thread sleeps after a pass with nothing to do
+    static final int MAX_ROBOTS = 256;
+    static final int WRITER_THREADS = 4;
+    static final int CONNECT_THREADS = 2; //Connection attempts in progress at once, the others wait their turn
+
+    //Timing configuration, in milliseconds
+    private long keepAliveInterval = 250;
+    private long degradedTimeout = 1000;
+    private long lostTimeout = 3000;
+    private long minBackoff = 250;
+    private long maxBackoff = 16000;
+
+    private final FleetThread[] threads;
+    private ThreadPoolExecutor writers; //Null while stopped
+    private ThreadPoolExecutor connectors; //Null while stopped
+    private final FleetRobot[] robots = new FleetRobot[MAX_ROBOTS];
+    private volatile int robotCount;
+    private volatile boolean running;
+
+    /*
+    threadCount fleet threads share the robots between them
+     */
+    public FleetController(int threadCount){
+        threads = new FleetThread[threadCount];
+        for(int i = 0; i < threadCount; i++){
+            threads[i] = new FleetThread(i);
+        }
+    }
+
+    /*
+    Sets how long a robot may stay silent before it is reported DEGRADED and before it is reconnected, in milliseconds
+     */
+    public void setTimeouts(long degradedTimeout, long lostTimeout){
+        this.degradedTimeout = degradedTimeout;
+        this.lostTimeout = lostTimeout;
+    }
+
+    /*
+    Sets the interval in milliseconds after which an unchanged command is resent
+     */
+    public void setKeepAliveInterval(long keepAliveInterval){
+        this.keepAliveInterval = keepAliveInterval;
+    }
+
+    /*
+    Adds a robot reached through transport to the fleet, in the given group. It is connected by its fleet thread
+     */
+    public synchronized FleetRobot add(RobotTransport transport, int group){
+        if(robotCount == MAX_ROBOTS){
+            throw new IllegalStateException("Fleet is full");
+        }
+        FleetRobot robot = new FleetRobot(robotCount, transport, group);
+        robot.connectTask = new ConnectTask(robot);
+        robots[robotCount] = robot;
+        threads[robotCount % threads.length].add(robot);
+        robotCount++; //Published last, so readers of robotCount always see the robot
+        return robot;
+    }
+
+    public FleetRobot get(int id){
+        return robots[id];
+    }
+
+    public int size(){
+        return robotCount;
+    }
+
+    /*
+    Sets the same command for every robot in group (or every robot for GROUP_ALL), without waiting for any of them to be
+    written. Returns how many of the robots are connected
+     */
+    public int broadcast(int group, char mode, int left, int right){
+        int sent = 0;
+        int count = robotCount;
+        for(int i = 0; i < count; i++){
+            FleetRobot robot = robots[i];
+            if(group == GROUP_ALL || robot.getGroup() == group){
+                robot.command(mode, left, right);
+                if(robot.isConnected()){
+                    sent++;
+                }
+            }
+        }
+        return sent;
+    }
+
+    /*
+    Starts the fleet threads, which connect and service the robots
+     */
+    public synchronized void start(){
+        if(running){
+            return;
+        }
+        running = true;
+        //Each robot has at most one task waiting or running in each pool, so the queues never hold more than the robots
+        writers = new ThreadPoolExecutor(WRITER_THREADS, WRITER_THREADS, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreads("FleetWriter "));
+        connectors = new ThreadPoolExecutor(CONNECT_THREADS, CONNECT_THREADS, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new DaemonThreads("FleetConnector "));
+        writers.prestartAllCoreThreads();
+        for(int i = 0; i < threads.length; i++){
+            threads[i] = threads[i].restart();
+            threads[i].start();
+        }
+    }
+
+    /*
+    Stops the fleet threads and closes every robot's connection
+     */
+    public synchronized void stop(){
+        running = false;
+        for(FleetThread thread : threads){
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        int count = robotCount;
+        for(int i = 0; i < count; i++){
+            robots[i].out = null;
+            robots[i].getTransport().close(); //Also ends any write a writer or connect a connector is stuck in
+        }
+        shutdown(connectors);
+        shutdown(writers);
+        writers = null;
+        connectors = null;
+        for(int i = 0; i < count; i++){ //After the connectors, so none of them marks a robot connected again
+            robots[i].state = ConnectionManager.STOPPED;
+            robots[i].writing = false;
+        }
+    }
+
+    private static void shutdown(ThreadPoolExecutor pool){
+        if(pool == null){
+            return;
+        }
+        pool.shutdownNow();
+        try {
+            pool.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+    Names the pool threads and makes them daemons
+     */
+    private static class DaemonThreads implements ThreadFactory {
+
+        private final String name;
+        private int created;
+
+        DaemonThreads(String name){
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + created++);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /*
+    Opens one robot's transport, on a connector thread. The servicing fleet thread leaves the robot alone while it is
+    CONNECTING, and is woken once it is connected or backing off
+     */
+    private class ConnectTask implements Runnable {
+
+        private final FleetRobot robot;
+
+        ConnectTask(FleetRobot robot){
+            this.robot = robot;
+        }
+
+        @Override
+        public void run() {
+            try {
+                robot.getTransport().prepare();
+                robot.getTransport().open();
+                if(!running){ //Stopped while connecting
+                    robot.getTransport().close();
+                    return;
+                }
+                robot.pending = true; //Sends the current command on the next pass, which also starts the replies
+                robot.connected(System.nanoTime());
+            } catch (IOException e) {
+                robot.disconnected(System.nanoTime(), minBackoff, maxBackoff, false);
+            }
+            Thread thread = robot.servicer;
+            if(thread != null){
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+
+    /*
+    Services its share of the robots
+     */
+    private class FleetThread extends Thread {
+
+        private final int index;
+        private volatile FleetRobot[] mine = new FleetRobot[0]; //Replaced, never modified, when a robot is added
+        private final byte[] buffer = new byte[256]; //Shared by all of this thread's robots, as only one is read at a time
+        private ThreadPoolExecutor pool; //The writers of this run
+        private ThreadPoolExecutor connectPool; //The connectors of this run
+
+        FleetThread(int index){
+            super("FleetThread " + index);
+            this.index = index;
+            setDaemon(true);
+        }
+
+        void add(FleetRobot robot){
+            robot.servicer = this;
+            FleetRobot[] added = new FleetRobot[mine.length + 1];
+            System.arraycopy(mine, 0, added, 0, mine.length);
+            added[mine.length] = robot;
+            mine = added;
+        }
+
+        /*
+        A thread can only be started once, so start() after stop() runs the same robots on a new thread
+         */
+        FleetThread restart(){
+            if(getState() == State.NEW){
+                return this;
+            }
+            FleetThread thread = new FleetThread(index);
+            thread.mine = mine;
+            for(FleetRobot robot : mine){
+                robot.servicer = thread;
+            }
+            return thread;
+        }
+
+        @Override
+        public void run() {
+            pool = writers;
+            connectPool = connectors;
+            while(running){
+                boolean busy = false;
+                FleetRobot[] robots = mine;
+                for(FleetRobot robot : robots){
+                    busy |= service(robot, System.nanoTime());
+                }
+                if(!busy){
+                    LockSupport.parkNanos(POLL_INTERVAL);
+                }
+            }
+        }
+
+        /*
+        Does whatever one robot needs doing now. Returns true if any data was read
+         */
+        private boolean service(FleetRobot robot, long now){
+            int state = robot.state;
+            if(state == ConnectionManager.CONNECTING){ //Left to its connector
+                return false;
+            }
+            if(state == ConnectionManager.BACKOFF || state == ConnectionManager.STOPPED){
+                if(now - robot.retryAt >= 0){
+                    robot.state = ConnectionManager.CONNECTING;
+                    try {
+                        connectPool.execute(robot.connectTask);
+                    } catch (RejectedExecutionException e) {
+                        robot.state = state; //Stopping
+                    }
+                }
+                return false;
+            }
+
+            boolean read = false;
+            try {
+                InputStream in = robot.in;
+                int available = in.available();
+                if(available > 0){
+                    int count = in.read(buffer, 0, Math.min(available, buffer.length));
+                    if(count < 0){
+                        throw new IOException("End of stream");
+                    }
+                    robot.received(buffer, count);
+                    read = true;
+                }
+            } catch (IOException e) {
+                robot.disconnected(now, minBackoff, maxBackoff, true);
+                return false;
+            }
+
+            long silent = (now - robot.lastReceive) / 1000000;
+            if(silent >= lostTimeout){
+                robot.disconnected(now, minBackoff, maxBackoff, true);
+                return read;
+            }
+            robot.state = silent >= degradedTimeout ? ConnectionManager.DEGRADED : ConnectionManager.CONNECTED;
+
+            //Robots only reply to commands, so a quiet robot is also prompted to report its distance
+            if(!robot.writing && (robot.pending || (now - robot.lastSend) / 1000000 >= keepAliveInterval)){
+                robot.pending = false; //Before the writer reads the drive state, so a newer command is never missed
+                robot.writing = true;
+                try {
+                    pool.execute(robot.writeTask);
+                } catch (RejectedExecutionException e) {
+                    robot.writing = false; //Stopping
+                }
+            }
+            return read;
+        }
+    }
+}
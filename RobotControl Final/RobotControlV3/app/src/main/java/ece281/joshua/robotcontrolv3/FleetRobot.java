@@ -0,0 +1,233 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One robot of a FleetController: its transport, drive state, telemetry and connection health.
+ *
+ * The drive state holds the command mode character ('m', 'a' or 'i') as its mode and the motor speeds, and is sent as a
+ * command whenever it changes and as a keep-alive otherwise. command() only replaces the drive state and marks it
+ * pending, so only the latest command is ever written. The fleet thread servicing the robot hands it to one of the
+ * FleetController's writer threads, and not again until that write is done, so a robot whose link stalls holds up
+ * neither the thread setting its command nor the other robots. Distance readings are decoded, filtered and matched to
+ * the commands they answer on the servicing fleet thread.
+ *
+ * Commands may be set from any thread. Telemetry getters may be called from any thread.
+ */
+public class FleetRobot implements TelemetryDecoder.Listener {
+
+    private final int id;
+    private final RobotTransport transport;
+    private volatile int group;
+
+    private final DriveState driveState = new DriveState('i');
+    private final CommandFrame commandFrame = new CommandFrame(CommandFrame.FORMAT_BINARY); //Guarded by itself
+    private final TelemetryDecoder decoder = new TelemetryDecoder(this);
+    private final DistanceEstimator estimator = new DistanceEstimator(3);
+    private final LatencyTracker latencyTracker = new LatencyTracker();
+    private final AtomicIntegerArray sentVersions = new AtomicIntegerArray(256); //Drive state version sent with each sequence number
+    private volatile int answeredVersion = -1; //Drive state version of the newest command answered
+
+    //Connection, changed by the servicing fleet thread and, while CONNECTING, its connector, and read by the writer threads
+    volatile InputStream in;
+    volatile OutputStream out;
+    volatile Thread servicer; //The fleet thread servicing this robot
+    volatile boolean pending; //The drive state changed since it was last handed to a writer
+    volatile boolean writing; //Handed to a writer thread and not yet written
+    Runnable connectTask; //Run by a connector thread to open the transport, set by the FleetController
+
+    //Run by a writer thread, allocated once
+    final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            write(); //A failed write is noticed by the servicing fleet thread on its next read
+            writing = false;
+        }
+    };
+    volatile int state = ConnectionManager.BACKOFF;
+    long retryAt; //System.nanoTime() of the next connection attempt
+    long backoff; //Current backoff in milliseconds
+    volatile long lastReceive; //System.nanoTime() of the last distance reading
+    volatile long lastSend; //System.nanoTime() of the last command
+
+    //Telemetry, written by the servicing fleet thread
+    private volatile float rawDistance;
+    private volatile float filteredDistance;
+    private volatile float closingSpeed;
+    private volatile long readingCount;
+    private volatile long failedAttempts;
+    private volatile long lossCount;
+
+    FleetRobot(int id, RobotTransport transport, int group){
+        this.id = id;
+        this.transport = transport;
+        this.group = group;
+    }
+
+    /*
+    Sets the command for this robot, written as soon as its fleet thread and a writer get to it if connected. Returns
+    the drive state set, whose DriveState.version() getAnsweredVersion() returns once the robot has answered it
+     */
+    public long command(char mode, int left, int right){
+        long set = driveState.set(mode, 0, left, right);
+        pending = true;
+        Thread thread = servicer;
+        if(thread != null){
+            LockSupport.unpark(thread);
+        }
+        return set;
+    }
+
+    /*
+    Writes the current drive state as one command, called on a writer thread. Returns false if the robot is not
+    connected or the write failed
+     */
+    boolean write(){
+        OutputStream stream = out;
+        if(stream == null){
+            return false;
+        }
+        long snapshot = driveState.get();
+        synchronized (commandFrame){
+            int length = commandFrame.encode((char) DriveState.mode(snapshot), DriveState.left(snapshot),
+                    DriveState.right(snapshot));
+            try {
+                long now = System.nanoTime();
+                sentVersions.set(commandFrame.getSequence() & 0xFF, DriveState.version(snapshot));
+                latencyTracker.onSent(commandFrame.getSequence(), now);
+                stream.write(commandFrame.getBuffer(), 0, length);
+                stream.flush();
+                lastSend = now;
+                return true;
+            } catch (IOException e) {
+                return false; //The servicing thread notices the broken stream on its next read
+            }
+        }
+    }
+
+    public int getId(){
+        return id;
+    }
+
+    public int getGroup(){
+        return group;
+    }
+
+    public void setGroup(int group){
+        this.group = group;
+    }
+
+    public RobotTransport getTransport(){
+        return transport;
+    }
+
+    public DriveState getDriveState(){
+        return driveState;
+    }
+
+    /*
+    Connection health, one of the ConnectionManager states
+     */
+    public int getState(){
+        return state;
+    }
+
+    public boolean isConnected(){
+        int s = state;
+        return s == ConnectionManager.CONNECTED || s == ConnectionManager.DEGRADED;
+    }
+
+    public float getRawDistance(){
+        return rawDistance;
+    }
+
+    public float getFilteredDistance(){
+        return filteredDistance;
+    }
+
+    public float getClosingSpeed(){
+        return closingSpeed;
+    }
+
+    public long getReadingCount(){
+        return readingCount;
+    }
+
+    public long getFailedAttempts(){
+        return failedAttempts;
+    }
+
+    public long getLossCount(){
+        return lossCount;
+    }
+
+    /*
+    DriveState.version() of the newest command the robot has echoed the sequence number of, -1 before any
+     */
+    public int getAnsweredVersion(){
+        return answeredVersion;
+    }
+
+    public LatencyTracker getLatencyTracker(){
+        return latencyTracker;
+    }
+
+    /*
+    Called by the connector thread after the transport opened, while the servicing fleet thread leaves the robot alone
+     */
+    void connected(long now) throws IOException {
+        in = transport.getInputStream();
+        out = transport.getOutputStream();
+        decoder.reset();
+        estimator.reset();
+        latencyTracker.clearOutstanding();
+        lastReceive = now;
+        backoff = 0;
+        state = ConnectionManager.CONNECTED;
+    }
+
+    /*
+    Called by the servicing fleet thread when the link failed or went silent, or by the connector thread when the
+    attempt failed. Schedules the next attempt
+     */
+    void disconnected(long now, long minBackoff, long maxBackoff, boolean wasConnected){
+        out = null;
+        in = null;
+        transport.close();
+        if(wasConnected){
+            lossCount++;
+        }else{
+            failedAttempts++;
+        }
+        backoff = backoff == 0 ? minBackoff : Math.min(maxBackoff, backoff * 2);
+        retryAt = now + backoff * 1000000L;
+        state = ConnectionManager.BACKOFF;
+    }
+
+    /*
+    Called by the servicing fleet thread with bytes read from the robot
+     */
+    void received(byte[] buffer, int count){
+        decoder.feed(buffer, 0, count);
+    }
+
+    @Override
+    public void onDistance(float distance, int sequence) {
+        long now = System.nanoTime();
+        lastReceive = now;
+        latencyTracker.onReply(sequence, now);
+        if(sequence >= 0){
+            answeredVersion = sentVersions.get(sequence & 0xFF);
+        }
+        rawDistance = distance;
+        if(estimator.update(distance, now)){
+            filteredDistance = estimator.getFiltered();
+            closingSpeed = estimator.getClosingSpeed();
+        }
+        readingCount++;
+    }
+}
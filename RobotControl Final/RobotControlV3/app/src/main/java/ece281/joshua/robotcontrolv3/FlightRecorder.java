@@ -0,0 +1,116 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records every command sent and every distance received into a memory-mapped ring file, so what a robot did in the field
+ * can be looked at and replayed (see FlightReplayer) afterwards.
+ *
+ * The file is a 64 byte header followed by a fixed number of 16 byte records. Once the file is full the oldest records
+ * are overwritten. Writing a record is a few puts into the mapped memory, with no allocation and no system call, so the
+ * recorder can stay on permanently. The operating system writes the pages back to the file, even if the app crashes.
+ *
+ * Header:  magic (int), version (int), record size (int), capacity in records (int), records written (long)
+ * Record:  time in microseconds since 1970 (long), type (byte), mode (byte), sequence number (short),
+ *          then left and right speeds (2 shorts) for commands or the distance (float) for readings
+ */
+public class FlightRecorder {
+
+    static final int MAGIC = 0x464C5243; //"FLRC"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 16;
+    static final int COUNT_OFFSET = 16; //Position of the records written counter in the header
+
+    public static final byte TYPE_COMMAND = 1;
+    public static final byte TYPE_DISTANCE = 2;
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private long count; //Records written since the file was created
+
+    //Converts System.nanoTime() to wall clock microseconds without calling currentTimeMillis() per record
+    private final long baseMicros;
+    private final long baseNanos;
+
+    /*
+    Opens the recording in file, continuing an existing recording with the same capacity or starting a new one
+     */
+    public FlightRecorder(File file, int capacity) throws IOException {
+        this.capacity = capacity;
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            boolean fresh = raf.length() != size;
+            raf.setLength(size);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if(fresh || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != RECORD_SIZE
+                    || buffer.getInt(12) != capacity){
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, RECORD_SIZE);
+                buffer.putInt(12, capacity);
+                buffer.putLong(COUNT_OFFSET, 0);
+            }
+            count = buffer.getLong(COUNT_OFFSET);
+        } finally {
+            raf.close(); //The mapping stays valid after the file is closed
+        }
+
+        baseMicros = System.currentTimeMillis() * 1000;
+        baseNanos = System.nanoTime();
+    }
+
+    /*
+    Records a command sent to the robot
+     */
+    public synchronized void recordCommand(char mode, int left, int right, int sequence){
+        int position = startRecord(TYPE_COMMAND, mode, sequence);
+        buffer.putShort(position + 12, (short) left);
+        buffer.putShort(position + 14, (short) right);
+        finishRecord();
+    }
+
+    /*
+    Records a distance reading received from the robot
+     */
+    public synchronized void recordDistance(float distance, int sequence){
+        int position = startRecord(TYPE_DISTANCE, (char) 0, sequence);
+        buffer.putFloat(position + 12, distance);
+        finishRecord();
+    }
+
+    /*
+    Asks the operating system to write the recording to storage now, e.g. when the app is paused
+     */
+    public void flush(){
+        buffer.force();
+    }
+
+    public long getCount(){
+        return count;
+    }
+
+    public int getCapacity(){
+        return capacity;
+    }
+
+    private int startRecord(byte type, char mode, int sequence){
+        int position = HEADER_SIZE + (int) (count % capacity) * RECORD_SIZE;
+        buffer.putLong(position, baseMicros + (System.nanoTime() - baseNanos) / 1000);
+        buffer.put(position + 8, type);
+        buffer.put(position + 9, (byte) mode);
+        buffer.putShort(position + 10, (short) sequence);
+        return position;
+    }
+
+    private void finishRecord(){
+        count++;
+        buffer.putLong(COUNT_OFFSET, count); //Written last so a half written record is never counted
+    }
+}
@@ -0,0 +1,96 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plays back a FlightRecorder file, oldest record first, either at the speed it was recorded or as fast as possible.
+ * The records are handed to a Sink, which can feed them into the same code that handles live commands and readings.
+ */
+public class FlightReplayer {
+
+    public static final float AS_FAST_AS_POSSIBLE = 0; //Speed for replaying without any waiting
+    public static final float REAL_TIME = 1; //Speed for replaying with the recorded timing
+
+    static final long MAX_GAP = 1000000; //Longest wait between two records in microseconds, skips the time the app was off
+
+    /*
+    Receives the replayed records, on the thread that called replay()
+     */
+    public interface Sink {
+        void onCommand(long time, char mode, int left, int right, int sequence);
+        void onDistance(long time, float distance, int sequence);
+    }
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private volatile boolean cancelled;
+
+    public FlightReplayer(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if(buffer.capacity() < FlightRecorder.HEADER_SIZE || buffer.getInt(0) != FlightRecorder.MAGIC
+                || buffer.getInt(4) != FlightRecorder.VERSION || buffer.getInt(8) != FlightRecorder.RECORD_SIZE){
+            throw new IOException("Not a flight recording: " + file);
+        }
+        capacity = buffer.getInt(12);
+    }
+
+    /*
+    Number of records that will be replayed
+     */
+    public long getRecordCount(){
+        return Math.min(buffer.getLong(FlightRecorder.COUNT_OFFSET), capacity);
+    }
+
+    /*
+    Stops a replay in progress after the current record
+     */
+    public void cancel(){
+        cancelled = true;
+    }
+
+    /*
+    Replays every record written so far to sink. speed is REAL_TIME, AS_FAST_AS_POSSIBLE or any other factor (2 replays
+    twice as fast). Returns the number of records replayed
+     */
+    public long replay(Sink sink, float speed) throws InterruptedException {
+        cancelled = false;
+        long count = buffer.getLong(FlightRecorder.COUNT_OFFSET);
+        long first = Math.max(0, count - capacity);
+
+        long previousTime = 0;
+        long replayed = 0;
+        for(long i = first; i < count && !cancelled; i++){
+            int position = FlightRecorder.HEADER_SIZE + (int) (i % capacity) * FlightRecorder.RECORD_SIZE;
+            long time = buffer.getLong(position);
+
+            if(speed > 0 && previousTime != 0){
+                long gap = Math.min(MAX_GAP, time - previousTime);
+                if(gap > 0){
+                    long wait = (long) (gap / speed);
+                    Thread.sleep(wait / 1000, (int) (wait % 1000) * 1000);
+                }
+            }
+            previousTime = time;
+
+            byte type = buffer.get(position + 8);
+            int sequence = buffer.getShort(position + 10);
+            if(type == FlightRecorder.TYPE_COMMAND){
+                sink.onCommand(time, (char) buffer.get(position + 9), buffer.getShort(position + 12),
+                        buffer.getShort(position + 14), sequence);
+            }else if(type == FlightRecorder.TYPE_DISTANCE){
+                sink.onDistance(time, buffer.getFloat(position + 12), sequence);
+            }
+            replayed++;
+        }
+        return replayed;
+    }
+}
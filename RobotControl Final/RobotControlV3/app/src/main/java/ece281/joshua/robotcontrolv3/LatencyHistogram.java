@@ -0,0 +1,117 @@
+package ece281.joshua.robotcontrolv3;
+
+/**
+ * Fixed size histogram of latencies, in microseconds, with about 6% precision from 1 microsecond up to over a day.
+ *
+ * Values below 32 get a bucket each, above that every power of two is split into 16 equal buckets, so recording is a
+ * few shifts and an array increment and never allocates. It is meant to be recorded from one thread; other threads may
+ * read percentiles at any time and at worst see a sample or two missing.
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR_BUCKETS = 32; //Values below this get one bucket each
+    private static final int SUB_BUCKET_BITS = 4; //Each power of two above that is split into 2^4 buckets
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_SHIFT = 32;
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + MAX_SHIFT * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private volatile long count;
+    private volatile long max; //Largest value recorded, exact
+    private long sum;
+
+    /*
+    Records a latency given in nanoseconds
+     */
+    public void recordNanos(long nanos){
+        record(nanos / 1000);
+    }
+
+    /*
+    Records a latency given in microseconds
+     */
+    public void record(long micros){
+        if(micros < 0){
+            micros = 0;
+        }
+        counts[bucketOf(micros)]++;
+        sum += micros;
+        if(micros > max){
+            max = micros;
+        }
+        count++;
+    }
+
+    public long getCount(){
+        return count;
+    }
+
+    public long getMax(){
+        return max;
+    }
+
+    public long getMean(){
+        long n = count;
+        return n == 0 ? 0 : sum / n;
+    }
+
+    /*
+    Returns the latency in microseconds below which the given fraction (0 to 1) of recorded values fall, e.g. 0.99 for p99.
+    The result is the upper end of the bucket holding that value, so it never under-reports
+     */
+    public long getPercentile(double fraction){
+        long n = count;
+        if(n == 0){
+            return 0;
+        }
+        long target = (long) Math.ceil(fraction * n);
+        if(target < 1){
+            target = 1;
+        }
+        long seen = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++){
+            seen += counts[i];
+            if(seen >= target){
+                return Math.min(highestValueOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    public void reset(){
+        for(int i = 0; i < BUCKET_COUNT; i++){
+            counts[i] = 0;
+        }
+        sum = 0;
+        max = 0;
+        count = 0;
+    }
+
+    /*
+    One line summary such as "n=120 p50=1800us p99=5400us max=6012us"
+     */
+    @Override
+    public String toString(){
+        return "n=" + count + " p50=" + getPercentile(0.5) + "us p99=" + getPercentile(0.99) + "us max=" + max + "us";
+    }
+
+    private static int bucketOf(long value){
+        if(value < LINEAR_BUCKETS){
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS; //value >> shift is in [16, 32)
+        if(shift > MAX_SHIFT){
+            return BUCKET_COUNT - 1;
+        }
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValueOf(int bucket){
+        if(bucket < LINEAR_BUCKETS){
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
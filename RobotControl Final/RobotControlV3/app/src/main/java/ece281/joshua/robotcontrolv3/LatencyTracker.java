@@ -0,0 +1,127 @@
+package ece281.joshua.robotcontrolv3;
+
+/**
+ * Measures command round trips using the 8 bit sequence number carried by every command and echoed by the arduino next
+ * to the distance it replies with.
+ *
+ * The send time of each command is kept in a slot indexed by its sequence number. A reply finds its command's slot and
+ * records the round trip time into a LatencyHistogram. Commands skipped over by a newer reply are counted as lost, and a
+ * reply older than one already seen is counted as reordered. Nothing is allocated per command.
+ *
+ * onSent() and onReply() may be called from different threads.
+ */
+public class LatencyTracker {
+
+    private static final int SLOTS = 256; //One per possible sequence number
+
+    //System.nanoTime() each sequence number was sent, 0 when answered and negated once counted as lost
+    private final long[] sendTimes = new long[SLOTS];
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private int newestReply = -1; //Sequence number of the newest reply so far
+
+    private volatile long sentCount;
+    private volatile long lostCount; //Commands that never got a reply
+    private volatile long reorderedCount; //Replies that arrived after a reply to a newer command
+    private volatile long unmatchedCount; //Replies without a matching command, e.g. from before a reconnect
+
+    /*
+    Records that the command with the given sequence number was written at System.nanoTime() time
+     */
+    public synchronized void onSent(int sequence, long time){
+        sendTimes[sequence & 0xFF] = time == 0 ? 1 : time;
+        sentCount++;
+    }
+
+    /*
+    Records the reply to the command with the given sequence number, received at System.nanoTime() time.
+    A negative sequence number means the firmware did not echo one and is ignored
+     */
+    public synchronized void onReply(int sequence, long time){
+        if(sequence < 0){
+            return;
+        }
+        sequence &= 0xFF;
+
+        long sent = sendTimes[sequence];
+        if(sent == 0){ //Already answered, or sent before a reconnect
+            unmatchedCount++;
+            return;
+        }
+
+        int ahead = (sequence - newestReply) & 0xFF; //How far this reply is ahead of the newest one, modulo 256
+        if(newestReply >= 0 && (ahead == 0 || ahead > SLOTS / 2)){ //Older than a reply already seen
+            reorderedCount++;
+            if(sent < 0){ //It was counted as lost when the newer reply skipped over it
+                lostCount--;
+                sent = -sent;
+            }
+        }else{
+            //Every command between the previous newest reply and this one that is still unanswered is lost. Their send
+            //times are kept, negated, in case their replies turn up late
+            for(int i = 1; newestReply >= 0 && i < ahead; i++){
+                int skipped = (newestReply + i) & 0xFF;
+                if(sendTimes[skipped] > 0){
+                    sendTimes[skipped] = -sendTimes[skipped];
+                    lostCount++;
+                }
+            }
+            newestReply = sequence;
+        }
+
+        sendTimes[sequence] = 0;
+        histogram.recordNanos(time - sent);
+    }
+
+    /*
+    Forgets all outstanding commands, used after a reconnect so old sequence numbers are not matched
+     */
+    public synchronized void clearOutstanding(){
+        for(int i = 0; i < SLOTS; i++){
+            sendTimes[i] = 0;
+        }
+        newestReply = -1;
+    }
+
+    public synchronized void reset(){
+        clearOutstanding();
+        histogram.reset();
+        sentCount = 0;
+        lostCount = 0;
+        reorderedCount = 0;
+        unmatchedCount = 0;
+    }
+
+    public LatencyHistogram getHistogram(){
+        return histogram;
+    }
+
+    public long getSentCount(){
+        return sentCount;
+    }
+
+    public long getLostCount(){
+        return lostCount;
+    }
+
+    public long getReorderedCount(){
+        return reorderedCount;
+    }
+
+    /*
+    Multi-line text dump of the round trip statistics, for display or export
+     */
+    public synchronized String dump(){
+        StringBuilder sb = new StringBuilder();
+        sb.append("Command round trips\n");
+        sb.append("sent: ").append(sentCount).append('\n');
+        sb.append("replied: ").append(histogram.getCount()).append('\n');
+        sb.append("lost: ").append(lostCount).append('\n');
+        sb.append("reordered: ").append(reorderedCount).append('\n');
+        sb.append("unmatched: ").append(unmatchedCount).append('\n');
+        sb.append("p50: ").append(histogram.getPercentile(0.5) / 1000.0).append(" ms\n");
+        sb.append("p99: ").append(histogram.getPercentile(0.99) / 1000.0).append(" ms\n");
+        sb.append("max: ").append(histogram.getMax() / 1000.0).append(" ms\n");
+        sb.append("mean: ").append(histogram.getMean() / 1000.0).append(" ms\n");
+        return sb.toString();
+    }
+}
@@ -1,5 +1,8 @@
 package ece281.joshua.robotcontrolv3;
 
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.content.Intent;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
@@ -13,10 +16,15 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
-import android.widget.Button;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.widget.Toast;
-import java.util.Timer;
-import java.util.TimerTask;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 
 
 public class MainActivity extends ActionBarActivity implements SensorEventListener{
@@ -27,268 +35,656 @@ public class MainActivity extends ActionBarActivity implements SensorEventListen
     final int BUTTON_MODE = 1;
     final int ACCELEROMETER_MODE = 2;
     final int IDLE_MODE = 3;
-    //Which mode the robot is currently in
-    int mode;
-
-    final int BLUETOOTH_COM_INTERVAL = 100; //Interval, in milliseconds at which the app sends and receives data from the arduino
+    //Which mode the robot is currently in, the direction button flags and the motor speeds. Written by the UI and sensor
+    //threads and read by the command scheduler thread, so they are kept together in one atomically replaced snapshot
+    DriveState driveState = new DriveState(BUTTON_MODE);
+
+    final int BLUETOOTH_COM_INTERVAL = 100; //Interval, in milliseconds at which the app used to send and receive data from the arduino
+    final int MIN_COMMAND_INTERVAL = 40; //Minimum milliseconds between two commands, a little longer than one pass of the arduino's loop()
+    final int KEEP_ALIVE_INTERVAL = 250; //Milliseconds after which an unchanged command is resent, so distance readings keep coming
+    final int HEARTBEAT_INTERVAL = 1000; //Keep-alive milliseconds when the robot is stopped in manual mode
+    final int IDLE_INTERVAL = 2000; //Keep-alive milliseconds in idle mode
+    final int ACTIVE_TIMEOUT = 3000; //Milliseconds after the last input that manual driving keeps the full rate
+
+    //Adapts the keep-alive rate and the accelerometer to the mode, the link and recent input, so the phone sleeps when
+    //nothing needs doing. No keep-alives at all while the link is down
+    PowerPolicy powerPolicy = new PowerPolicy(new long[]{0, IDLE_INTERVAL, HEARTBEAT_INTERVAL, KEEP_ALIVE_INTERVAL,
+            BLUETOOTH_COM_INTERVAL}, ACTIVE_TIMEOUT);
 
     //Default speed for travelling forwards or backwards in a straight line. It is 238 and not 255 to account for scaling done by the arduino
     //in order to equalize the two motors so the robot travels in a straight line.
     int defaultSpeed = 238;
 
-    //Direction flags controlled by the four buttons in Button Control Mode
-    boolean left, right, forward, reverse;
-
-    private final int RECIEVE_MESSAGE = 1;
+    private final int ESTIMATE_MESSAGE = 1; //The filter consumer has a new distance for the display and the autopilot
+    private final int REPLAY_DISTANCE_MESSAGE = 2; //The replay has a new filtered distance for the display
+    private final int REPLAY_FINISHED_MESSAGE = 3;
+    private final int LINK_STATE_MESSAGE = 4; //The link to the robot went up or down
+    private final int COLLISION_MESSAGE = 5; //The filter consumer stopped the robot before an obstacle
+    private final int REPLAY_COMMAND_MESSAGE = 6; //The replay has read back a command
 
     // MAC-address of Bluetooth module.
     private static String address = "30:14:11:14:09:19";
 
+    //Connection to the robot. Replace with a TcpTransport (or a PipedTransport connected to an ArduinoEmulator) to run without a robot
+    RobotTransport transport = new BluetoothTransport(address);
+
+    //MAC-addresses of further robots driven together with the one above. They are sent the same manual commands, and run
+    //the arduino's own automatic mode in automatic mode
+    private static final String[] FLEET_ADDRESSES = {};
+    final int FLEET_THREADS = 2; //Threads servicing all of the further robots
+    FleetController fleet; //Null when FLEET_ADDRESSES is empty
+
     //Tag used for log
     private static final String TAG = "Robot Control V3";
 
-    //Integers representing the power of the two motors
-    int speedLeft, speedRight, xSpeed;
-    Timer updateTimer;
+    //Sends a command as soon as the state changes, and a keep-alive command when nothing changes
+    CommandScheduler commandScheduler;
 
     //SensorManager object for the accelerometer
     private SensorManager mSensorManager;
     //Sensor object for the accelerometer
     private Sensor mAccelerometer;
-
-
-    //DisplayScreen objects for each of the three ui/control modes
-    DisplayScreen buttonControlDisplayScreen;
-    DisplayScreen autoControlDisplayScreen;
-    DisplayScreen accelControlDisplayScreen;
+    private int accelerometerPeriod; //Microseconds between the accelerometer events asked for, 0 when not listening
+
+    final int TILT_SENSOR_PERIOD = 20000; //Microseconds between accelerometer events in accelerometer mode, 50 Hz
+    final int TILT_IDLE_PERIOD = 200000; //Microseconds between them while the phone has not been tilted for a while, 5 Hz
+    final float TILT_TIME_CONSTANT = 0.15f; //Seconds of smoothing applied to the tilt
+    final float TILT_DEADBAND = 1.0f; //Tilt in m/s^2 treated as level
+    final int TILT_STEPS = 4; //Speed steps in each direction
+
+    //Drives automatic mode from the phone with 'm' commands. false leaves it to the arduino's basicFunctionality() with 'a' commands
+    final boolean PHONE_AUTOPILOT = true;
+    Autopilot autopilot = new Autopilot();
+
+    //Stops the robot through the emergency stop when it would get within STOP_MARGIN of the obstacle in COLLISION_TIME,
+    //at the speed it is closing on it. Only forwards, the range finder faces the front. The autopilot turns away first
+    final float COLLISION_TIME = 0.3f; //Seconds
+    final float STOP_MARGIN = 5; //cm
+
+    final int MEDIAN_WINDOW = 3; //Readings the distance median is taken over
+    //Rejects timeouts and spikes and filters the readings before they are displayed or used by the autopilot
+    DistanceEstimator distanceEstimator = new DistanceEstimator(MEDIAN_WINDOW);
+
+    final int TELEMETRY_CAPACITY = 1 << 18; //Readings kept, 87 minutes at 50 Hz and 3.9 MB
+    final int RECENT_WINDOW = 10000; //Milliseconds of readings summarised in the statistics
+    //Keeps every reading with the command being sent when it arrived, and aggregates of the last RECENT_WINDOW. Rows
+    //are added by the filter consumer's thread and read by the statistics, both holding its lock, as is the estimator
+    TelemetryStore telemetryStore = new TelemetryStore(TELEMETRY_CAPACITY, System.nanoTime());
+    TelemetryStore.Window recentTelemetry = telemetryStore.addWindow(RECENT_WINDOW, Autopilot.CRITICAL_DISTANCE);
+    //Mode character of the last command sent in the upper 32 bits and its speeds, packed as in SpeedControl, in the
+    //lower. Written by the command scheduler thread and read with each reading
+    volatile long lastCommand = (long) 'i' << 32;
+
+    //Carries each reading from the connection thread to its consumers, each on a thread of its own, so the UI thread
+    //only draws the latest distance and runs the autopilot with it
+    TelemetryPipeline telemetry = new TelemetryPipeline();
+    //Filtered distance of the latest accepted reading in the upper 32 bits and the speed the robot is closing on it in
+    //the lower, as float bits. Written by the filter consumer and read by the UI thread on ESTIMATE_MESSAGE
+    volatile long latestEstimate;
+    volatile boolean estimatePosted; //An ESTIMATE_MESSAGE is waiting for the UI thread
+
+    //Filters and quantises the accelerometer into motor setpoints
+    TiltControl tiltControl = new TiltControl(TILT_TIME_CONSTANT, TILT_DEADBAND, TILT_STEPS, defaultSpeed);
+
+
+    //Distance graph shared by the three ui/control modes
+    DisplayScreen displayScreen;
+
+    //Control screens of the three modes, each inflated into controls the first time its mode is used and then only
+    //shown or hidden. Null until then
+    ViewGroup controls;
+    View buttonControls;
+    View autoControls;
+    View accelControls;
+    //false inflates a control screen again every time its mode is selected, as the app used to, to compare the timings
+    final boolean KEEP_SCREENS = true;
+
+    //Time from the start of onCreate, and from each mode change, to the next frame being drawn
+    long frameRequested; //System.nanoTime() of the change waiting for its frame, 0 if none
+    long firstFrameMicros; //Cold start to the first frame, 0 until drawn
+    LatencyHistogram modeSwitchLatency = new LatencyHistogram();
 
     //BluetoothConnection object. The BluetoothConnection class contains code to create and manage a bluetooth connection
     BluetoothConnection bluetoothConnection;
     StringBuilder sb;
 
+    //Encodes each command into a reused buffer. Binary frames are used by default, FORMAT_TEXT falls back to the
+    //original "m238n238" strings for robots running older firmware
+    CommandFrame commandFrame = new CommandFrame(CommandFrame.FORMAT_BINARY);
+
+    //Sends button mode as Trajectory uploads that ramp to the new speeds on the robot, instead of 'm' commands that
+    //change them in one jump. false sends 'm' commands as before, for robots running older firmware
+    final boolean TRAJECTORY_BUTTONS = true;
+    final float SLEW_RATE = 600; //Most a motor speed changes per second in a trajectory, 0 to full speed in about 0.4 s
+    final int HOLD_TIME = 1000; //Milliseconds a trajectory holds the new speeds, the robot stops if no newer one arrives
+    //Only used by the command scheduler thread
+    Trajectory trajectory = new Trajectory(SLEW_RATE);
+    long trajectoryStart; //System.nanoTime() the last trajectory was sent
+    boolean trajectorySent; //false after any other command, whose speeds are then in sentSpeeds
+    int sentSpeeds = SpeedControl.pack(0, 0);
+    volatile boolean robotStopped; //Set when an emergency stop is sent, so the next trajectory starts from a standstill
+
+    final String FLIGHT_RECORDING = "flight.rec"; //File in the app's private storage holding the flight recording
+    final int FLIGHT_RECORDER_CAPACITY = 65536; //Records kept, 1 MB and about an hour of driving at the keep-alive rate
+
+    //Records every command and distance reading so a misbehaving run can be replayed later. Null if the file could not be opened
+    FlightRecorder flightRecorder;
+    //Replays the recording while replaying is true, live readings are recorded but not displayed until it finishes
+    FlightReplayer flightReplayer;
+    volatile boolean replaying;
+    //Latest replayed filtered distance as float bits and latest replayed command as in lastCommand, written by the
+    //replay thread and drawn by the UI thread, which is only sent a message when it has taken the previous one
+    volatile int replayEstimate;
+    volatile boolean replayEstimatePosted;
+    volatile long replayCommand;
+    volatile boolean replayCommandPosted;
+
+    //File in the app's private storage the trace is saved to on demand, print it with Tracer.main(). Every thread of the
+    //app traces its commands, readings, link and mode changes (see Tracer)
+    final String TRACE_FILE = "trace.bin";
+
     /*
     The onCreate method is called automatically when the app is first started. It initializes the UI, accelerometer sensor, bluetoothConnection as well
-    as a timer used to transmit commands through bluetooth at a specific interval.
+    as the scheduler used to transmit commands through bluetooth whenever they change.
      */
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        long created = System.nanoTime();
         super.onCreate(savedInstanceState);
 
-        mode = BUTTON_MODE; //initializes mode to button mode
-        initializeButtonUI();
+        setContentView(R.layout.activity_main); //Use activity_main.xml, the graph and a container for the control screens
+        displayScreen = (DisplayScreen)findViewById(R.id.displayScreen);
+        controls = (ViewGroup)findViewById(R.id.controls);
+        setMode(BUTTON_MODE); //initializes mode to button mode
+        changeUI();
+        frameRequested = created;
         sb = new StringBuilder();
 
+        //Opens the flight recording, continuing the one left by the previous run
+        try {
+            flightRecorder = new FlightRecorder(new File(getFilesDir(), FLIGHT_RECORDING), FLIGHT_RECORDER_CAPACITY);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open the flight recording", e);
+        }
+
         //Sets up the accelerometer sensor
         mSensorManager = (SensorManager) getSystemService(SENSOR_SERVICE);
         mAccelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
 
+        //Processes the readings off the UI thread: the filter, the telemetry store and the collision check on one
+        //thread, the flight recorder on another
+        telemetry.addConsumer("filter", new FilterConsumer(distanceEstimator, null));
+        if(flightRecorder != null){
+            telemetry.addConsumer("recorder", new TelemetryPipeline.Consumer() {
+                public void onReading(long time, float distance, int sequence) {
+                    flightRecorder.recordDistance(distance, sequence); //The raw reading, so a replay shows what the robot really sent
+                }
+                public void onCaughtUp() {}
+            });
+        }
+        telemetry.start();
+
         //Creates a new bluetoothConnection object
-        bluetoothConnection = new BluetoothConnection(this, mHandler);
+        bluetoothConnection = new BluetoothConnection(this, mHandler, commandFrame, telemetry);
 
         //configureBluetooth() will turn the phone's bluetooth on if not on already
         bluetoothConnection.configureBluetooth();
 
-        //Creates a new timer that will communicate with the arduino at a set interval
-        updateTimer = new Timer();
-        CommunicationTimerTask comTimer = new CommunicationTimerTask(); //TimerTask that executes is executed at the set interval
-        updateTimer.schedule(comTimer, BLUETOOTH_COM_INTERVAL, BLUETOOTH_COM_INTERVAL);//schedules the CommunicationTimerTask
+        //Creates the controller for any further robots
+        if(FLEET_ADDRESSES.length > 0){
+            fleet = new FleetController(FLEET_THREADS);
+            for(String fleetAddress : FLEET_ADDRESSES){
+                fleet.add(new BluetoothTransport(fleetAddress), 0);
+            }
+        }
+
+        //Creates the scheduler that will communicate with the arduino whenever the command changes
+        commandScheduler = new CommandScheduler(new CommunicationSender(), BLUETOOTH_COM_INTERVAL, MIN_COMMAND_INTERVAL, KEEP_ALIVE_INTERVAL);
+        commandScheduler.start();
+        updatePower();
     }
 
     /*
-    The onResume method is called automatically shortly after onCreate. It registers the accelerometer sensor so that onSensorChanged
-    can be used to track changes in the accelerometer, and connects to the bluetooth module
+    The onResume method is called automatically shortly after onCreate. It registers the accelerometer sensor if accelerometer
+    control is active, and connects to the bluetooth module
      */
 
     @Override
     public void onResume() {
         super.onResume();
-        mSensorManager.registerListener(this, mAccelerometer, SensorManager.SENSOR_DELAY_NORMAL);//Listens for changes in the accelerometer
+        updatePower();
 
-        //Supplies bluetoothConnection with the bluetooth module's MAC adresses. A connection socket and thread will be created.
-        bluetoothConnection.connectToBluetoothDevice(address);
+        //Supplies bluetoothConnection with the transport to the bluetooth module. The connection is made in the background
+        //so resuming never waits for the bluetooth module
+        bluetoothConnection.connect(transport);
+        if(fleet != null){
+            fleet.start();
+        }
     }
 
     /*
-    Initializes the Button Control UI
+    Shows the Button Control UI, inflating it the first time
      */
     public void initializeButtonUI(){
-
-        setContentView(R.layout.button_control_layout); //Use button_control_layout.xml for the UI layout
-        buttonControlDisplayScreen = (DisplayScreen)findViewById(R.id.displayScreen);
+        if(buttonControls == null){
+            buttonControls = getLayoutInflater().inflate(R.layout.button_control_layout, controls, false); //Use button_control_layout.xml for the UI layout
+            controls.addView(buttonControls);
+
+            //The four direction buttons share one listener, which sets or clears the direction flag of the button
+            //pressed or lifted off
+            int[] buttons = {R.id.forwards_button, R.id.reverse_button, R.id.right_button, R.id.left_button};
+            for(int button : buttons){
+                buttonControls.findViewById(button).setOnTouchListener(directionListener);
+            }
+        }
+        showControls(buttonControls);
 
         //Resets motor values
-        speedLeft = 0;
-        speedRight = 0;
-
-
-        /*
-        Sets up onTouchListers for each of the four direction buttons.  The onTouch method will be called whenever the user
-        presses or lifts off the button and will set the appropriate direction stat flag to true or false/
-         */
-
-        Button forwardButton = (Button) findViewById(R.id.forwards_button);
-        forwardButton.setOnTouchListener(new View.OnTouchListener() {
-            @Override
-            public boolean onTouch(View view, MotionEvent motionevent) {
-                int action = motionevent.getAction();
-                if (action == MotionEvent.ACTION_DOWN) {
-                    forward = true;
-                } else if (action == MotionEvent.ACTION_UP) {
-                    forward = false;
-                }
-                return false;
-            }
-        });
+        setSpeed(0, 0);
+    }
 
-        Button reverseButton = (Button) findViewById(R.id.reverse_button);
-        reverseButton.setOnTouchListener(new View.OnTouchListener() {
-            @Override
-            public boolean onTouch(View view, MotionEvent motionevent) {
-                int action = motionevent.getAction();
-                if (action == MotionEvent.ACTION_DOWN) {
-                    reverse = true;
-                } else if (action == MotionEvent.ACTION_UP) {
-                    reverse = false;
-                }
-                return false;
+    /*
+    Sets the direction flag of the button touched while it is held down, and clears it when it is let go
+     */
+    final View.OnTouchListener directionListener = new View.OnTouchListener() {
+        @Override
+        public boolean onTouch(View view, MotionEvent motionevent) {
+            int flag;
+            switch (view.getId()){
+                case R.id.forwards_button: flag = DriveState.FLAG_FORWARD; break;
+                case R.id.reverse_button: flag = DriveState.FLAG_REVERSE; break;
+                case R.id.right_button: flag = DriveState.FLAG_RIGHT; break;
+                default: flag = DriveState.FLAG_LEFT; break;
             }
-        });
-
-        Button rightButton = (Button) findViewById(R.id.right_button);
-        rightButton.setOnTouchListener(new View.OnTouchListener() {
-            @Override
-            public boolean onTouch(View view, MotionEvent motionevent) {
-                int action = motionevent.getAction();
-                if (action == MotionEvent.ACTION_DOWN) {
-                    right = true;
-                } else if (action == MotionEvent.ACTION_UP) {
-                    right = false;                }
-                return false;
+            int action = motionevent.getAction();
+            if (action == MotionEvent.ACTION_DOWN || action == MotionEvent.ACTION_UP) {
+                powerPolicy.onInput(System.nanoTime());
             }
-        });
-
-
-        Button leftButton = (Button) findViewById(R.id.left_button);
-        leftButton.setOnTouchListener(new View.OnTouchListener() {
-            @Override
-            public boolean onTouch(View view, MotionEvent motionevent) {
-                int action = motionevent.getAction();
-                if (action == MotionEvent.ACTION_DOWN) {
-                    left = true;
-                } else if (action == MotionEvent.ACTION_UP) {
-                    left = false;                }
-                return false;
+            if (action == MotionEvent.ACTION_DOWN) {
+                driveState.setFlag(flag, true);
+                commandChanged();
+            } else if (action == MotionEvent.ACTION_UP) {
+                long state = driveState.setFlag(flag, false);
+                if(DriveState.flags(state) == 0){ //The last button was let go, stops without waiting for the scheduler
+                    emergencyStop(false);
+                }
+                commandChanged();
             }
-        });
-    }
+            return false;
+        }
+    };
 
     /*
-    Initializes the Accelerometer Control UI
+    Shows the Accelerometer Control UI, inflating it the first time
      */
     public void initializeAccelUI(){
-        setContentView(R.layout.accel_control_layout);//Use accel_control_layout.xml for the UI layout
-        accelControlDisplayScreen =(DisplayScreen)findViewById(R.id.displayScreenAccel);
+        if(accelControls == null){
+            accelControls = getLayoutInflater().inflate(R.layout.accel_control_layout, controls, false);//Use accel_control_layout.xml for the UI layout
+            controls.addView(accelControls);
+        }
+        showControls(accelControls);
     }
 
     public void initializeAutoUI(){
-        setContentView(R.layout.auto_control_layout);//Use auto_control_layout.xml for the UI layout
-        autoControlDisplayScreen = (DisplayScreen)findViewById(R.id.displayScreenAuto);
-        mode = IDLE_MODE; //Set mode to idle so the robot will do nothing until the start button is pressed
+        if(autoControls == null){
+            autoControls = getLayoutInflater().inflate(R.layout.auto_control_layout, controls, false);//Use auto_control_layout.xml for the UI layout
+            controls.addView(autoControls);
+        }
+        showControls(autoControls);
+        setMode(IDLE_MODE); //Set mode to idle so the robot will do nothing until the start button is pressed
+        commandChanged();
+    }
+
+    /*
+    Makes screen the only visible control screen. Unless KEEP_SCREENS, the others are thrown away
+     */
+    void showControls(View screen){
+        for(int i = controls.getChildCount() - 1; i >= 0; i--){
+            View child = controls.getChildAt(i);
+            if(child == screen){
+                child.setVisibility(View.VISIBLE);
+            }else if(KEEP_SCREENS){
+                child.setVisibility(View.GONE);
+            }else{
+                controls.removeViewAt(i);
+                if(child == buttonControls){
+                    buttonControls = null;
+                }else if(child == autoControls){
+                    autoControls = null;
+                }else{
+                    accelControls = null;
+                }
+            }
+        }
     }
 
+    /*
+    Records how long the last mode change, or the cold start, took to reach the screen, once its first frame is about to
+    be drawn
+     */
+    final ViewTreeObserver.OnPreDrawListener frameTimer = new ViewTreeObserver.OnPreDrawListener() {
+        @Override
+        public boolean onPreDraw() {
+            controls.getViewTreeObserver().removeOnPreDrawListener(this);
+            long micros = (System.nanoTime() - frameRequested) / 1000;
+            if(firstFrameMicros == 0){
+                firstFrameMicros = micros;
+            }else{
+                modeSwitchLatency.record(micros);
+            }
+            frameRequested = 0;
+            return true;
+        }
+    };
+
     //Called when the start button in automatic mode is pressed.
     //Sets the current mode to AUTO_MODE, so the robot will begin acting autonomously
     public void startButtonClick(View view){
-        mode = AUTO_MODE;
+        setMode(AUTO_MODE);
+        if(PHONE_AUTOPILOT){
+            autopilot.start(System.nanoTime());
+            autopilotChanged();
+        }
+        commandChanged();
     }
 
     //Called when the stop button in automatic mode is pressed.
-    //Sets the current mode to IDLE_MODE, so the robot will stop and wait for instructions
+    //Sets the current mode to IDLE_MODE, so the robot will stop and wait for instructions, and sends the stop straight away
     public void stopButtonClick(View view){
-        mode = IDLE_MODE;
+        autopilot.stop();
+        mHandler.removeCallbacks(autopilotTick);
+        setMode(IDLE_MODE);
+        emergencyStop(false);
+        commandChanged();
+    }
+
+    /*
+    Changes the drive mode and traces the change
+     */
+    void setMode(int mode){
+        int old = driveState.getMode();
+        driveState.setMode(mode);
+        if(mode != old){
+            Tracer.trace(Tracer.MODE_CHANGE, old, mode);
+        }
+    }
+
+    /*
+    Sends a stop on the emergency stop lane, ahead of the commands waiting to be sent. The drive state must already be
+    stopped, so the commands sent after it do not start the robot again
+     */
+    void emergencyStop(boolean automatic){
+        robotStopped = true;
+        bluetoothConnection.emergencyStop(automatic);
+    }
+
+    /*
+    Stops the robot because the reading predicts a collision, called on the filter consumer's thread. The drive state
+    is stopped first, so no command sent after the stop starts the robot again: in automatic mode the autopilot is
+    switched off as by the stop button, in button mode the held button has to be pressed again and in accelerometer mode
+    the phone tilted to a new step. The rest is done on the UI thread on COLLISION_MESSAGE
+     */
+    void collisionStop(){
+        int mode = driveState.getMode();
+        if(mode == AUTO_MODE){
+            setMode(IDLE_MODE);
+        }else if(mode == BUTTON_MODE){
+            driveState.set(BUTTON_MODE, 0, 0, 0);
+        }else{
+            driveState.setSpeeds(0, 0);
+        }
+        emergencyStop(true);
+        commandScheduler.requestSend();
+        mHandler.sendEmptyMessage(COLLISION_MESSAGE);
+    }
+
+    /*
+    Whether the command for the given drive state moves the robot towards what the range finder sees
+     */
+    boolean drivesForward(long state){
+        int mode = DriveState.mode(state);
+        if(mode == BUTTON_MODE){
+            return DriveState.isSet(state, DriveState.FLAG_FORWARD);
+        }
+        if(mode == ACCELEROMETER_MODE || (mode == AUTO_MODE && PHONE_AUTOPILOT)){
+            return DriveState.left(state) + DriveState.right(state) > 0;
+        }
+        return false; //Idle, or the arduino's own automatic mode which stops by itself
+    }
+
+    /*
+    Passes the autopilot's speeds on to the robot if they changed, and schedules its next timed tick (the end of a turn,
+    or the time after which it stops for lack of readings)
+     */
+    void autopilotChanged(){
+        if(driveState.getMode() != AUTO_MODE){ //The mode was changed from the menu, the autopilot is no longer in control
+            autopilot.stop();
+            mHandler.removeCallbacks(autopilotTick);
+            return;
+        }
+        int speeds = autopilot.getSpeeds();
+        long state = driveState.get();
+        if(SpeedControl.left(speeds) != DriveState.left(state) || SpeedControl.right(speeds) != DriveState.right(state)){
+            setSpeed(SpeedControl.left(speeds), SpeedControl.right(speeds));
+            commandChanged();
+        }
+
+        mHandler.removeCallbacks(autopilotTick);
+        long next = autopilot.getNextTick(System.nanoTime());
+        if(next >= 0){
+            mHandler.postDelayed(autopilotTick, next / 1000000 + 1);
+        }
     }
 
+    //Runs the autopilot's timed transitions on the UI thread
+    private final Runnable autopilotTick = new Runnable() {
+        @Override
+        public void run() {
+            autopilot.tick(System.nanoTime());
+            autopilotChanged();
+        }
+    };
+
+    /*
+    Called whenever the mode or a speed changes so the new command reaches the robot without waiting for the next keep-alive.
+    The keep-alive rate follows the new state (see updatePower())
+     */
+    void commandChanged(){
+        long state = driveState.get();
+        if(DriveState.mode(state) == AUTO_MODE || DriveState.flags(state) != 0 || DriveState.left(state) != 0
+                || DriveState.right(state) != 0){
+            bluetoothConnection.cancelEmergencyStop(); //Driving again, a stop still being retransmitted would halt it
+        }
+        updatePower();
+        commandScheduler.requestSend();
+    }
+
+    /*
+    Chooses the power level for the mode, the link and recent input, and sets the keep-alive rate, the link's silence
+    timeouts and the accelerometer to match. In automatic mode the autopilot and the distance display need a steady
+    stream of distance readings, which the arduino only sends in answer to commands, so keep-alives are sent at the
+    original rate there. The timeouts grow with the keep-alive interval, so a slow heartbeat is not taken for a lost
+    robot. Called on the UI thread whenever any of these change, and once more when manual driving runs out of input
+     */
+    void updatePower(){
+        if(commandScheduler == null){ //Still in onCreate, called again once everything exists
+            return;
+        }
+        long now = System.nanoTime();
+        long state = driveState.get();
+        int mode = DriveState.mode(state);
+        boolean moving = DriveState.flags(state) != 0 || DriveState.left(state) != 0 || DriveState.right(state) != 0;
+        int level = powerPolicy.update(now, bluetoothConnection.isConnected(), mode == IDLE_MODE, mode == AUTO_MODE,
+                moving);
+        commandScheduler.setKeepAliveInterval(powerPolicy.getKeepAliveInterval());
+        bluetoothConnection.setTimeouts(powerPolicy.getDegradedTimeout(), powerPolicy.getLostTimeout());
+        updateAccelerometer();
+
+        mHandler.removeCallbacks(powerCheck);
+        if(level == PowerPolicy.DRIVING && !moving){
+            mHandler.postDelayed(powerCheck, powerPolicy.timeUntilInactive(now) / 1000000 + 1);
+        }
+    }
+
+    private final Runnable powerCheck = new Runnable() {
+        @Override
+        public void run() {
+            updatePower();
+        }
+    };
+
     //Determines the appropriate command to send to the arduino based on current state flags
-    //and sends that command to the bluetoothConnection module to be transmitted
-    public void sendData(){
+    //and sends that command to the bluetoothConnection module to be transmitted. inputTime is the System.nanoTime() of
+    //the input it carries, 0 for a keep-alive
+    public void sendData(long inputTime){
+
+        //Reads the mode, flags and speeds as one snapshot, so the command is never a mix of two updates
+        long state = driveState.get();
+        int mode = DriveState.mode(state);
 
         char stateFlag; //Character that represents the next state/mode of the robot
+        int speedLeft, speedRight;
 
         //If we are currently in the button control mode, set the speed of each motor based on the direction flags
         if(mode == BUTTON_MODE){
-            if(forward){
-                setSpeed(defaultSpeed,defaultSpeed);
-            }else if(reverse){
-                setSpeed(-defaultSpeed,-defaultSpeed);
-            }else if(right){
-                setSpeed(defaultSpeed,-defaultSpeed);
-            }else if(left){
-                setSpeed(-defaultSpeed,defaultSpeed);
+            if(DriveState.isSet(state, DriveState.FLAG_FORWARD)){
+                speedLeft = defaultSpeed;
+                speedRight = defaultSpeed;
+            }else if(DriveState.isSet(state, DriveState.FLAG_REVERSE)){
+                speedLeft = -defaultSpeed;
+                speedRight = -defaultSpeed;
+            }else if(DriveState.isSet(state, DriveState.FLAG_RIGHT)){
+                speedLeft = defaultSpeed;
+                speedRight = -defaultSpeed;
+            }else if(DriveState.isSet(state, DriveState.FLAG_LEFT)){
+                speedLeft = -defaultSpeed;
+                speedRight = defaultSpeed;
             }else{
-                setSpeed(0,0);
+                speedLeft = 0;
+                speedRight = 0;
             }
             stateFlag = 'm'; //Set the stateFlag to 'm' for 'manual'
         }
-        //If we are currently in accelerometer control mode, each motor speed value will be determined by the accelerometer
+        //If we are currently in accelerometer control mode, each motor speed value was set by the accelerometer
         //orientation
         else if(mode == ACCELEROMETER_MODE){
+            speedLeft = DriveState.left(state);
+            speedRight = DriveState.right(state);
             stateFlag = 'm';//Set the stateFlag to 'm' for 'manual'
         }
+        //If we are currently in automatic mode with the autopilot on the phone, the speeds were set by the autopilot
+        else if(mode == AUTO_MODE && PHONE_AUTOPILOT){
+            speedLeft = DriveState.left(state);
+            speedRight = DriveState.right(state);
+            stateFlag = 'm';
+        }
         //If we are currently in automatic mode, set motor speed values to 0 (arbitrary) and set stateFlag to 'a' for 'automatic'
         else if(mode == AUTO_MODE){
-            setSpeed(0,0);
+            speedLeft = 0;
+            speedRight = 0;
             stateFlag = 'a';
         }
         //If we are not in button, acceleromenter, or automatic mode, then we are in idle mode
         else{
-            setSpeed(0,0); //Stop motors
+            speedLeft = 0; //Stop motors
+            speedRight = 0;
             stateFlag = 'i'; //set the stateFlag to 'i' for 'idle'
         }
 
-        //toSend is a 3 part string containing:
-        //  1. The stateFlag
-        //  2. The left motor speed followed by an 'n' character to seperate it from the
-        //  3. Right motor speed
-        String toSend = stateFlag + Integer.toString(speedLeft);
-        toSend += "n"+ Integer.toString(speedRight);
+        if(robotStopped){ //The emergency stop has halted the robot, whatever the last trajectory was doing
+            robotStopped = false;
+            trajectorySent = false;
+            sentSpeeds = SpeedControl.pack(0, 0);
+        }
 
-        Log.d(TAG, toSend);
+        if(mode == BUTTON_MODE && TRAJECTORY_BUTTONS){
+            //Plans a ramp from the speeds the robot is running at now to the button's speeds, then holds them
+            int length = planTrajectory(speedLeft, speedRight);
 
-        bluetoothConnection.sendData(toSend); //Calls the sendData method in the bluetoothConnection object that will transmit the command
+            if(flightRecorder != null){ //Recorded with the speeds the trajectory ends on
+                flightRecorder.recordCommand(Trajectory.MODE, speedLeft, speedRight, trajectory.getSequence());
+            }
+            lastCommand = (long) Trajectory.MODE << 32 | (SpeedControl.pack(speedLeft, speedRight) & 0xFFFFFFFFL);
+            Tracer.trace(Tracer.COMMAND, Trajectory.MODE, SpeedControl.pack(speedLeft, speedRight), trajectory.getSequence());
+
+            bluetoothConnection.sendData(Trajectory.MODE, trajectory.getBuffer(), length, trajectory.getSequence(),
+                    inputTime);
+        }else{
+            //Encodes the stateFlag and the left and right motor speeds into commandFrame's buffer, either as a binary frame
+            //or as the "<stateFlag><left>n<right>" text command depending on the selected format
+            int length = commandFrame.encode(stateFlag, speedLeft, speedRight);
+            trajectorySent = false;
+            sentSpeeds = SpeedControl.pack(speedLeft, speedRight);
+            lastCommand = (long) stateFlag << 32 | (sentSpeeds & 0xFFFFFFFFL);
+
+            if(flightRecorder != null){
+                flightRecorder.recordCommand(stateFlag, speedLeft, speedRight, commandFrame.getSequence());
+            }
+
+            Tracer.trace(Tracer.COMMAND, stateFlag, sentSpeeds, commandFrame.getSequence());
+
+            //Calls the sendData method in the bluetoothConnection object that will queue the command for transmission
+            bluetoothConnection.sendData(stateFlag, commandFrame.getBuffer(), length, commandFrame.getSequence(),
+                    inputTime);
+        }
+
+        //The further robots run their own automatic mode, as the autopilot only follows the main robot's readings
+        if(fleet != null){
+            if(mode == AUTO_MODE){
+                fleet.broadcast(FleetController.GROUP_ALL, 'a', 0, 0);
+            }else{
+                fleet.broadcast(FleetController.GROUP_ALL, stateFlag, speedLeft, speedRight);
+            }
+        }
+    }
+
+    /*
+    Plans the trajectory to left, right into trajectory and encodes it, returning its length. It starts from where the
+    last trajectory has got to by now, or from the last 'm' command's speeds, and a stop is a ramp down with no hold.
+    Every keep-alive sends a new plan, so the robot keeps going while they arrive and stops by itself HOLD_TIME after
+    they stop. Once stopped the plan is empty, and the frame only asks for a distance reading
+     */
+    int planTrajectory(int left, int right){
+        long now = System.nanoTime();
+        int current = trajectorySent ? trajectory.speedsAt((now - trajectoryStart) / 1000000) : sentSpeeds;
+        trajectory.clear(SpeedControl.left(current), SpeedControl.right(current));
+        trajectory.rampTo(left, right);
+        if(left != 0 || right != 0){
+            trajectory.hold(left, right, HOLD_TIME);
+        }
+        trajectoryStart = now;
+        trajectorySent = true;
+        return trajectory.encode(commandFrame.nextSequence());
     }
 
     /*
-    Sets the speed of the left and right motor
+    Sets the speed of the left and right motor, both at once
      */
     public void setSpeed(int left, int right){
 
         //If the speeds are not between -250, pwm on the arduino will not work. This should never happen though
-        if(left >= 255 || left <= -255 || right >= 255 || right <= -255){
-            Toast.makeText(getBaseContext(), "Invalid speed set, stopping motors", Toast.LENGTH_LONG).show();
-            speedLeft = 0;
-            speedRight = 0;
+        if(SpeedControl.isValidSpeed(left, right)){
+            driveState.setSpeeds(left, right);
         }else{
-            speedLeft = left;
-            speedRight = right;
+            Toast.makeText(getBaseContext(), "Invalid speed set, stopping motors", Toast.LENGTH_LONG).show();
+            driveState.setSpeeds(0, 0);
         }
     }
 
     //Will update the display based on a new distance read from the ultrasonic sensor
-   public void updateDisplay(int distance){
-
-       //Checks the current mode and updates the appropriate displayScreen object
-        if(mode == AUTO_MODE || mode == IDLE_MODE){
-            autoControlDisplayScreen.updateDisplay(distance);
-        }else if(mode == BUTTON_MODE){
-            buttonControlDisplayScreen.updateDisplay(distance);
-        }else if(mode == ACCELEROMETER_MODE){
-            accelControlDisplayScreen.updateDisplay(distance);
-        }
+    public void updateDisplay(int distance){
+        displayScreen.updateDisplay(distance);
     }
 
-    //Changes the UI based on the current mode
+    //Changes the UI based on the current mode, timing how long the change takes to reach the screen
     public void changeUI(){
+        if(frameRequested == 0){
+            controls.getViewTreeObserver().addOnPreDrawListener(frameTimer);
+        }
+        frameRequested = System.nanoTime();
+        powerPolicy.onInput(frameRequested);
+        int mode = driveState.getMode();
         if(mode == AUTO_MODE){
             initializeAutoUI();
         }else if(mode ==BUTTON_MODE){
@@ -296,6 +692,33 @@ public class MainActivity extends ActionBarActivity implements SensorEventListen
         }else if(mode == ACCELEROMETER_MODE){
             initializeAccelUI();
         }
+        updatePower();
+    }
+
+    /*
+    Listens to the accelerometer only while accelerometer control is active and the robot is connected, since its events
+    are not used otherwise. While the phone is not being tilted the events come at the slower TILT_IDLE_PERIOD, and the
+    first new tilt step brings back the full rate
+     */
+    void updateAccelerometer(){
+        int period = 0;
+        if(driveState.getMode() == ACCELEROMETER_MODE && powerPolicy.getLevel() != PowerPolicy.SUSPENDED){
+            period = powerPolicy.getLevel() == PowerPolicy.DRIVING ? TILT_SENSOR_PERIOD : TILT_IDLE_PERIOD;
+        }
+        if(period == accelerometerPeriod){
+            return;
+        }
+        if(accelerometerPeriod != 0){
+            mSensorManager.unregisterListener(this);
+        }else{
+            tiltControl.reset(); //Starts stopped, the first events set the speed
+            setSpeed(0, 0);
+        }
+        accelerometerPeriod = 0;
+        //The period in microseconds is used as the rate, older releases treat it as SENSOR_DELAY_NORMAL
+        if(period != 0 && mSensorManager.registerListener(this, mAccelerometer, period)){
+            accelerometerPeriod = period;
+        }
     }
 
     @Override
@@ -315,20 +738,32 @@ public class MainActivity extends ActionBarActivity implements SensorEventListen
 
         switch (id) {
             case R.id.button_mode_select: //If button Mode was selected change mode to button mode and change UI
-                mode = BUTTON_MODE;
+                setMode(BUTTON_MODE);
                 changeUI();
+                commandChanged();
                 return true;
             case R.id.auto_mode_select: //If AutoMode was selected change mode to auto mode and change UI
-                mode = AUTO_MODE;
+                setMode(AUTO_MODE);
                 changeUI();
+                commandChanged();
                 return true;
             case R.id.accel_mode_select: //If button Mode was selected change mode to accelerometer mode and change UI
-                mode = ACCELEROMETER_MODE;
+                setMode(ACCELEROMETER_MODE);
                 changeUI();
+                commandChanged();
+                return true;
+            case R.id.link_statistics: //If link statistics was selected, show the round trip times of commands
+                showLinkStatistics();
+                return true;
+            case R.id.replay_recording: //If replay recording was selected, ask for the speed and play back the flight recording
+                chooseReplaySpeed();
+                return true;
+            case R.id.save_trace: //If save trace was selected, write what every thread traced to a file
+                saveTrace();
                 return true;
             case R.id.reconnect_bluetooth: //If reconnect bluetooth was selected
                if(!bluetoothConnection.isConnected()){//Check to see if we have lost connection
-                    bluetoothConnection.connectToBluetoothDevice(address);//If so, try to reconnect
+                    bluetoothConnection.reconnect();//If so, try to reconnect now instead of waiting for the next attempt
                }
                 return true;
             default:
@@ -338,21 +773,323 @@ public class MainActivity extends ActionBarActivity implements SensorEventListen
     }
 
     /*
-    Called when the user minimizes out of the app. Closes the bluetooth socket so transmission stops
+    Shows the command round trip, tilt control and distance reading statistics in a dialog, with the option of sharing them as text (e.g. by email)
+     */
+    public void showLinkStatistics(){
+        String readings;
+        synchronized (telemetryStore){ //Both are updated by the filter consumer's thread
+            telemetryStore.expire(System.nanoTime());
+            readings = "accepted: " + distanceEstimator.getAcceptedCount() + "\n"
+                    + "timeouts: " + distanceEstimator.getTimeoutCount() + "\n"
+                    + "outliers: " + distanceEstimator.getOutlierCount() + "\n"
+                    + "confidence: " + distanceEstimator.getConfidence() + "\n"
+                    + "\nLast " + RECENT_WINDOW / 1000 + " s\n"
+                    + "readings: " + recentTelemetry.getReadings() + " of " + recentTelemetry.getRows() + "\n"
+                    + "distance: min " + recentTelemetry.getMin() + " cm, median " + recentTelemetry.getPercentile(0.5)
+                    + " cm, mean " + Math.round(recentTelemetry.getMean()) + " cm, max " + recentTelemetry.getMax() + " cm\n"
+                    + "below " + recentTelemetry.getThreshold() + " cm: " + recentTelemetry.getDips() + " times, "
+                    + Math.round(recentTelemetry.getBelowFraction() * 100) + "% of readings\n";
+        }
+        CommandWriter writer = bluetoothConnection.getCommandWriter();
+        ConnectionManager connection = bluetoothConnection.getConnectionManager();
+        final String statistics = (connection == null ? "" : connection.dump() + "\n")
+                + bluetoothConnection.getLatencyTracker().dump()
+                + (writer == null ? "" : "\nCommand writer\n"
+                + "written: " + writer.getCommandsWritten() + " (" + Math.round(writer.getBytesPerSecond()) + " bytes/s)\n"
+                + "superseded: " + writer.getSuperseded() + "\n"
+                + "mode changes: " + writer.getModeChanges() + "\n"
+                + "waiting: " + writer.getWaiting() + "\n"
+                + "write stall: " + writer.getStallTimeMicros() / 1000 + " ms total, " + writer.getMaxStallMicros() / 1000 + " ms max\n"
+                + "write errors: " + writer.getWriteErrors() + "\n"
+                + "input to wire: p50 " + writer.getInputToWire().getPercentile(0.5) / 1000.0 + " ms, p99 "
+                + writer.getInputToWire().getPercentile(0.99) / 1000.0 + " ms, max "
+                + writer.getInputToWire().getMax() / 1000.0 + " ms\n")
+                + (bluetoothConnection.getEmergencyStop() == null ? "" : "\n" + bluetoothConnection.getEmergencyStop().dump())
+                + "\nTilt control\n"
+                + "events: " + tiltControl.getEventCount() + " (" + Math.round(tiltControl.getEventRate()) + "/s)\n"
+                + "setpoints: " + tiltControl.getSetpointCount() + " (" + Math.round(tiltControl.getSetpointRate()) + "/s)\n"
+                + "\nDistance readings\n"
+                + readings
+                + "\nTelemetry pipeline\n"
+                + telemetry.dump()
+                + "\nPower\n"
+                + "wakeups: " + Math.round(commandScheduler.getWakeupsPerMinute()) + "/min\n"
+                + "commands: " + Math.round(commandScheduler.getSendsPerMinute()) + "/min, "
+                + commandScheduler.getSendCount() + " sent (" + commandScheduler.getChangeSendCount() + " changes), "
+                + commandScheduler.getSendsAvoided() + " avoided\n"
+                + "accelerometer: " + (accelerometerPeriod == 0 ? "off" : 1000000 / accelerometerPeriod + " Hz") + "\n"
+                + powerPolicy.dump(System.nanoTime())
+                + "\nTrace\n"
+                + Tracer.summary()
+                + "\nScreens\n"
+                + "first frame: " + firstFrameMicros / 1000 + " ms after start\n"
+                + "mode switch: " + modeSwitchLatency + "\n";
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_link_statistics)
+                .setMessage(statistics)
+                .setPositiveButton(android.R.string.ok, null)
+                .setNeutralButton(R.string.share, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        Intent share = new Intent(Intent.ACTION_SEND);
+                        share.setType("text/plain");
+                        share.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.action_link_statistics));
+                        share.putExtra(Intent.EXTRA_TEXT, statistics);
+                        startActivity(Intent.createChooser(share, getString(R.string.share)));
+                    }
+                })
+                .show();
+    }
+
+    /*
+    Writes the events every thread has traced to TRACE_FILE, in the compact binary format
+     */
+    public void saveTrace(){
+        Tracer.Snapshot snapshot = Tracer.snapshot();
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(getFilesDir(), TRACE_FILE))));
+            try {
+                snapshot.write(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save the trace", e);
+            Toast.makeText(getBaseContext(), "Could not save the trace", Toast.LENGTH_LONG).show();
+            return;
+        }
+        Toast.makeText(getBaseContext(), "Saved " + snapshot.size() + " events to " + TRACE_FILE, Toast.LENGTH_SHORT).show();
+    }
+
+    /*
+    Asks whether to replay the flight recording at the speed it was recorded or as fast as possible
+     */
+    public void chooseReplaySpeed(){
+        if(replaying){
+            flightReplayer.cancel(); //Selecting replay again while replaying stops the replay
+            return;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_replay_recording)
+                .setItems(R.array.replay_speeds, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        startReplay(which == 0 ? FlightReplayer.REAL_TIME : FlightReplayer.AS_FAST_AS_POSSIBLE);
+                    }
+                })
+                .show();
+    }
+
+    /*
+    Replays the flight recording on a background thread through a ReplaySink, which filters the recorded readings as
+    the live ones are and shows them with the recorded commands, without sending anything to the robot
+     */
+    public void startReplay(final float speed){
+        if(flightRecorder != null){
+            flightRecorder.flush();
+        }
+        try {
+            flightReplayer = new FlightReplayer(new File(getFilesDir(), FLIGHT_RECORDING));
+        } catch (IOException e) {
+            Toast.makeText(getBaseContext(), "No flight recording to replay", Toast.LENGTH_LONG).show();
+            return;
+        }
+        replaying = true;
+
+        Thread replayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ReplaySink sink = new ReplaySink();
+                long replayed = 0;
+                try {
+                    replayed = flightReplayer.replay(sink, speed);
+                } catch (InterruptedException e) {
+                    //Stops replaying
+                }
+                mHandler.obtainMessage(REPLAY_FINISHED_MESSAGE, (int) replayed, 0, sink).sendToTarget();
+            }
+        }, "FlightReplayer");
+        replayThread.setDaemon(true);
+        replayThread.start();
+    }
+
+    /*
+    Called when the user minimizes out of the app. Closes the bluetooth socket so transmission stops, and writes the flight
+    recording to storage
      */
     @Override
     public void onPause() {
         super.onPause();
         bluetoothConnection.closeSocket();
+        if(fleet != null){
+            fleet.stop();
+        }
+        if(accelerometerPeriod != 0){ //Stops the accelerometer while in the background
+            mSensorManager.unregisterListener(this);
+            accelerometerPeriod = 0;
+        }
+        if(flightRecorder != null){
+            flightRecorder.flush();
+        }
     }
     /*
-    This TimerTask is executed at a rate of 10hz, it simply starts the process of sending data to the arduino
+    Called when the app is closed. Stops the command scheduler thread and any replay
      */
-    public class CommunicationTimerTask extends TimerTask {
-        public void run(){
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        commandScheduler.stop();
+        telemetry.stop();
+        if(replaying){
+            flightReplayer.cancel();
+        }
+    }
+
+    /*
+    Filters each reading, keeps it in telemetryStore and stops the robot if it predicts a collision, on the filter
+    consumer's thread. Only the latest estimate is handed to the UI thread, once the consumer has caught up with the
+    readings, and only if the UI thread has taken the previous one. A consumer made for a replay has an estimator of its
+    own, stores nothing and hands each estimate to its ReplaySink instead of acting on it
+     */
+    public class FilterConsumer implements TelemetryPipeline.Consumer {
+
+        private final DistanceEstimator estimator;
+        private final ReplaySink replay; //Null for the live readings
+        private boolean updated; //An accepted reading since the last ESTIMATE_MESSAGE
+
+        FilterConsumer(DistanceEstimator estimator, ReplaySink replay){
+            this.estimator = estimator;
+            this.replay = replay;
+        }
+
+        public void onReading(long time, float reading, int sequence){
+            boolean accepted;
+            float filtered, closingSpeed;
+            synchronized (telemetryStore){
+                accepted = estimator.update(reading, time);
+                filtered = estimator.getFiltered();
+                closingSpeed = estimator.getClosingSpeed();
+
+                if(replay == null){ //Every reading is kept, rejected ones without a distance
+                    long command = lastCommand;
+                    telemetryStore.add(time, reading, accepted, filtered, (char) (command >>> 32),
+                            SpeedControl.left((int) command), SpeedControl.right((int) command));
+                }
+            }
+            if(!accepted){ //Timeouts and spikes are neither displayed nor acted on
+                return;
+            }
+            updated = true;
+            if(replay != null){
+                replay.onEstimate(time, filtered, closingSpeed);
+                return;
+            }
+            latestEstimate = ((long) Float.floatToIntBits(filtered) << 32) | (Float.floatToIntBits(closingSpeed) & 0xFFFFFFFFL);
+
+            if(drivesForward(driveState.get()) && EmergencyStop.predictsCollision(filtered, closingSpeed, COLLISION_TIME,
+                    STOP_MARGIN)){
+                collisionStop();
+            }
+        }
+
+        public void onCaughtUp(){
+            if(updated){
+                updated = false;
+                if(replay != null){
+                    replay.onCaughtUp();
+                }else if(!estimatePosted){ //Else the waiting message reads this estimate
+                    estimatePosted = true;
+                    mHandler.sendEmptyMessage(ESTIMATE_MESSAGE);
+                }
+            }
+        }
+    }
+
+    /*
+    Runs the replayed records through the code the live ones go through, on the replay thread: readings through a
+    FilterConsumer, the collision check against the replayed command and an autopilot of its own in the recording's
+    time. Nothing is sent: a collision stop is counted instead, and the autopilot's speeds are compared with the
+    recorded 'm' commands. The live readings are still filtered, stored and acted on during the replay
+     */
+    public class ReplaySink implements FlightReplayer.Sink {
+
+        private final DistanceEstimator estimator = new DistanceEstimator(MEDIAN_WINDOW);
+        private final FilterConsumer filter = new FilterConsumer(estimator, this);
+        private final Autopilot replayAutopilot = new Autopilot();
+        private long command = (long) 'i' << 32; //Latest replayed command, as in lastCommand
+        private long previousTime = -1; //Of the previous record, in nanoseconds
+
+        int collisionStops; //Readings the robot would have been stopped on
+        int manualCommands; //Recorded 'm' commands
+        int autopilotMatches; //Recorded 'm' commands with the speeds the replayed autopilot chose
+
+        public void onCommand(long time, char mode, int left, int right, int sequence){
+            long now = advance(time);
+            int speeds = SpeedControl.pack(left, right);
+            if(mode == 'm'){
+                manualCommands++;
+                if(replayAutopilot.getSpeeds() == speeds){
+                    autopilotMatches++;
+                }
+            }
+            command = (long) mode << 32 | (speeds & 0xFFFFFFFFL);
+            replayCommand = command;
+            if(!replayCommandPosted){ //Else the waiting message reads this command
+                replayCommandPosted = true;
+                mHandler.sendEmptyMessage(REPLAY_COMMAND_MESSAGE);
+            }
+        }
+
+        public void onDistance(long time, float distance, int sequence){
+            filter.onReading(advance(time), distance, sequence);
+            filter.onCaughtUp();
+        }
+
+        /*
+        Converts a record's time to nanoseconds and runs the autopilot's timed transitions up to it. The estimator and
+        the autopilot start over at the first record and after the app was off
+         */
+        private long advance(long time){
+            long now = time * 1000;
+            if(previousTime < 0 || now < previousTime || now - previousTime > FlightReplayer.MAX_GAP * 1000){
+                estimator.reset();
+                replayAutopilot.start(now);
+            }
+            previousTime = now;
+            replayAutopilot.tick(now);
+            return now;
+        }
+
+        void onEstimate(long now, float filtered, float closingSpeed){
+            replayEstimate = Float.floatToIntBits(filtered);
+            replayAutopilot.onDistance(filtered, closingSpeed, now);
+            char mode = (char) (command >>> 32);
+            if((mode == 'm' || mode == Trajectory.MODE)
+                    && SpeedControl.left((int) command) + SpeedControl.right((int) command) > 0
+                    && EmergencyStop.predictsCollision(filtered, closingSpeed, COLLISION_TIME, STOP_MARGIN)){
+                collisionStops++;
+            }
+        }
+
+        void onCaughtUp(){
+            if(!replayEstimatePosted){ //Else the waiting message reads this estimate
+                replayEstimatePosted = true;
+                mHandler.sendEmptyMessage(REPLAY_DISTANCE_MESSAGE);
+            }
+        }
+    }
+
+    /*
+    Called by commandScheduler whenever a command is due, it simply starts the process of sending data to the arduino
+     */
+    public class CommunicationSender implements CommandScheduler.Sender {
+        public boolean sendCommand(long inputTime){
             if(bluetoothConnection.isConnected()){//Checks to see if we are connected to the arduino through bluetooth
-              sendData();
+              sendData(inputTime);
+              return true;
             }
+            return false;
         }
     }
 
@@ -369,54 +1106,66 @@ public class MainActivity extends ActionBarActivity implements SensorEventListen
     public final void onSensorChanged(SensorEvent event) {
 
 
-        if(mode == ACCELEROMETER_MODE){
-            int x =  (int)Math.floor(event.values[0])+1; //the x-axis is used for left/right movement
-
-            int y =  (int)Math.floor(event.values[1]);//the y-axis is used for forwards/backwards movement
-            y = -y;
-
-            //z-axis is available but is not used
-
-            // Map 0 to +10 to 0 to 255 for going forward and back
-            int speed = 25*y;
-            speedLeft = speed;
-            speedRight = speed;
-
-            // If x axis turned more than 6, rotate in that direction
-            if (x > 3) {
-                speedLeft = -x*25;
-                speedRight = x*25;
-            }
-            else if (x < -2) {
-                speedLeft = -x*25;
-                speedRight = x*25;
+        if(driveState.getMode() == ACCELEROMETER_MODE){
+            //the x-axis is used for left/right movement and the y-axis for forwards/backwards movement, z is not used
+            if(tiltControl.update(event.values[0], event.values[1], event.timestamp)){
+                int speeds = tiltControl.getSpeeds();
+                setSpeed(SpeedControl.left(speeds), SpeedControl.right(speeds));
+                powerPolicy.onInput(System.nanoTime());
+                commandChanged(); //Only a new speed step needs a new command
             }
         }
     }
 
     /*
-    * Handler that processes the data sent from the arduino to the app. We use handler so that we can process the data on a different thread
-    * than the ConnectionThread in BluetoothConnection.
+    * Handler that brings to the UI thread what the other threads have for it: the latest distance from the filter consumer of the
+    * telemetry pipeline, collision stops, replayed readings and changes of the connection state.
     * */
     private final Handler mHandler = new Handler(){
         public void handleMessage(Message msg){
             switch (msg.what) {
-                case RECIEVE_MESSAGE: //If we have received a message from arduino                                                   /
-                    byte[] readBuf = (byte[]) msg.obj; // reads message as a byte buffer
-                    String readMessage= new String(readBuf, 0, msg.arg1); //Convertes byte buffer into string
-                    int endIndex = readMessage.indexOf("\n"); //Finds the index of the end of valid string
-                    readMessage = readMessage.substring(0, endIndex); //cuts of any invalid characters
-
-                    //Tries to parse a float from the string, then covert that float into an integer for graphing
-                    try{
-                        float f = Float.parseFloat(readMessage);
-                        int distance = Math.round(f);
-                        Log.d(TAG, Integer.toString(distance));
-
-                        updateDisplay(distance);//Updates the display graph with the new distance
-                    }catch(NumberFormatException e){
-                        Log.d(TAG, "Problem reading distance from arduino");
+                case ESTIMATE_MESSAGE: //The filter consumer has caught up with the readings, only the latest is used
+                    estimatePosted = false;
+                    long estimate = latestEstimate;
+                    float filtered = Float.intBitsToFloat((int) (estimate >>> 32));
+
+                    if(!replaying){
+                        updateDisplay(Math.round(filtered));//Updates the display graph with the new distance
                     }
+
+                    if(PHONE_AUTOPILOT && driveState.getMode() == AUTO_MODE){ //Lets the autopilot react to the reading straight away
+                        autopilot.onDistance(filtered, Float.intBitsToFloat((int) estimate), System.nanoTime());
+                        autopilotChanged();
+                    }
+                    break;
+                case COLLISION_MESSAGE: //The robot is already stopping
+                    autopilotChanged(); //Switches the autopilot off, the mode is no longer automatic
+                    commandChanged();
+                    Toast.makeText(getBaseContext(), "Stopped, obstacle ahead", Toast.LENGTH_SHORT).show();
+                    break;
+                case REPLAY_DISTANCE_MESSAGE: //Only the latest replayed estimate is drawn
+                    replayEstimatePosted = false;
+                    updateDisplay(Math.round(Float.intBitsToFloat(replayEstimate)));
+                    break;
+                case REPLAY_COMMAND_MESSAGE:
+                    replayCommandPosted = false;
+                    long command = replayCommand;
+                    displayScreen.showCommand((char) (command >>> 32), SpeedControl.left((int) command),
+                            SpeedControl.right((int) command));
+                    break;
+                case LINK_STATE_MESSAGE: //Suspends or resumes the keep-alives and the accelerometer
+                    updatePower();
+                    if(msg.arg1 == ConnectionManager.CONNECTED){ //The writer threw away what was waiting from before
+                        commandScheduler.requestSend();
+                    }
+                    break;
+                case REPLAY_FINISHED_MESSAGE:
+                    replaying = false;
+                    displayScreen.hideCommand();
+                    ReplaySink sink = (ReplaySink) msg.obj;
+                    Toast.makeText(getBaseContext(), "Replayed " + msg.arg1 + " records, " + sink.collisionStops
+                            + " collision stops, autopilot agreed with " + sink.autopilotMatches + " of "
+                            + sink.manualCommands + " commands", Toast.LENGTH_LONG).show();
                     break;
             }
         }
@@ -0,0 +1,206 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * In-process RobotTransport made of two bounded byte pipes. Whatever is written to one end can be read from its peer,
+ * so the app side can be connected directly to an ArduinoEmulator running on another thread:
+ *
+ *     PipedTransport transport = new PipedTransport(1024);
+ *     new ArduinoEmulator(seed).start(transport.getPeer());
+ *
+ * Unlike java.io.PipedInputStream the pipes are not tied to the threads that first used them.
+ */
+public class PipedTransport implements RobotTransport {
+
+    private final Pipe in; //Bytes travelling towards this end
+    private final Pipe out; //Bytes travelling towards the peer
+    private final PipedTransport peer;
+    private final String name;
+
+    /*
+    Creates a connected pair of transports, each direction buffering up to capacity bytes. This object is the app end,
+    getPeer() returns the robot end
+     */
+    public PipedTransport(int capacity){
+        in = new Pipe(capacity);
+        out = new Pipe(capacity);
+        name = "pipe";
+        peer = new PipedTransport(out, in, this);
+    }
+
+    private PipedTransport(Pipe in, Pipe out, PipedTransport peer){
+        this.in = in;
+        this.out = out;
+        this.peer = peer;
+        name = "pipe peer";
+    }
+
+    public PipedTransport getPeer(){
+        return peer;
+    }
+
+    /*
+    Nothing needs to be set up ahead of time for an in-process pipe
+     */
+    @Override
+    public void prepare() {
+    }
+
+    /*
+    Reopens both directions after a close(), discarding anything left in them
+     */
+    @Override
+    public void open() throws IOException {
+        in.reopen();
+        out.reopen();
+    }
+
+    /*
+    Waits until the transport has been opened again after a close(), by either end
+     */
+    void awaitOpen() throws InterruptedException {
+        in.awaitOpen();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in.inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out.outputStream;
+    }
+
+    /*
+    Closes both directions, so blocked readers and writers on either end see the disconnection
+     */
+    @Override
+    public void close() {
+        in.close();
+        out.close();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /*
+    Bounded circular byte buffer with blocking reads and writes
+     */
+    private static class Pipe {
+        private final byte[] buffer;
+        private int readPosition; //Index of the next byte to read
+        private int count; //Number of bytes currently buffered
+        private boolean closed;
+
+        final InputStream inputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] data, int offset, int length) throws IOException {
+                return Pipe.this.read(data, offset, length);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this){
+                    return count;
+                }
+            }
+        };
+
+        final OutputStream outputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                Pipe.this.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] data, int offset, int length) throws IOException {
+                Pipe.this.write(data, offset, length);
+            }
+        };
+
+        Pipe(int capacity){
+            buffer = new byte[capacity];
+        }
+
+        synchronized int read(byte[] data, int offset, int length) throws IOException {
+            if(length == 0){
+                return 0;
+            }
+            while(count == 0){
+                if(closed){
+                    return -1;
+                }
+                waitForChange();
+            }
+            int n = Math.min(length, count);
+            for(int i = 0; i < n; i++){
+                data[offset + i] = buffer[readPosition];
+                readPosition = (readPosition + 1) % buffer.length;
+            }
+            count -= n;
+            notifyAll(); //Wakes up writers waiting for space
+            return n;
+        }
+
+        synchronized void write(byte[] data, int offset, int length) throws IOException {
+            while(length > 0){
+                while(count == buffer.length && !closed){
+                    waitForChange();
+                }
+                if(closed){
+                    throw new IOException("Pipe closed");
+                }
+                int n = Math.min(length, buffer.length - count);
+                int writePosition = (readPosition + count) % buffer.length;
+                for(int i = 0; i < n; i++){
+                    buffer[writePosition] = data[offset + i];
+                    writePosition = (writePosition + 1) % buffer.length;
+                }
+                count += n;
+                offset += n;
+                length -= n;
+                notifyAll(); //Wakes up readers waiting for data
+            }
+        }
+
+        synchronized void close(){
+            closed = true;
+            notifyAll();
+        }
+
+        synchronized void reopen(){
+            closed = false;
+            readPosition = 0;
+            count = 0;
+            notifyAll(); //Wakes up awaitOpen()
+        }
+
+        synchronized void awaitOpen() throws InterruptedException {
+            while(closed){
+                wait();
+            }
+        }
+
+        private void waitForChange() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
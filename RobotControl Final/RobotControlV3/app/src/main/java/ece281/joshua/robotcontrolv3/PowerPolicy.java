@@ -0,0 +1,140 @@
+package ece281.joshua.robotcontrolv3;
+
+/**
+ * Chooses how hard the app works for the robot, so a phone left running the controller for hours is not kept awake
+ * sending commands nobody needs.
+ *
+ * There are five levels. Each has a keep-alive interval, the longest the command scheduler waits between two commands:
+ *  - SUSPENDED while the link is down: no keep-alives at all, only a change of input or of the link wakes anything
+ *  - IDLE in idle mode: a slow heartbeat, enough to keep the distance graph moving
+ *  - HEARTBEAT in manual mode with the robot stopped and no input for a while
+ *  - DRIVING while driving by hand, and for a while after the last input
+ *  - AUTOPILOT in automatic mode, which needs every reading it can get whether the phone's autopilot or the arduino
+ *    drives
+ * The intervals are given by the caller. The link to the robot is only heard from when a command is answered, so the
+ * timeouts after which ConnectionManager reports it silent are scaled to the keep-alive interval as well.
+ * Not thread safe, used on the UI thread.
+ */
+public class PowerPolicy {
+
+    public static final int SUSPENDED = 0;
+    public static final int IDLE = 1;
+    public static final int HEARTBEAT = 2;
+    public static final int DRIVING = 3;
+    public static final int AUTOPILOT = 4;
+    private static final String[] NAMES = {"suspended", "idle", "heartbeat", "driving", "autopilot"};
+    static final int DEGRADED_KEEP_ALIVES = 2; //Keep-alive intervals without a reading before the link is degraded
+    static final int LOST_KEEP_ALIVES = 4; //and before it is lost
+
+    private final long[] keepAliveIntervals; //Milliseconds for each level, 0 for no keep-alives
+    private final long activeTimeout; //Nanoseconds after the last input that manual driving stays DRIVING
+
+    private long lastInput; //System.nanoTime() of the last input from the user
+    private int level = -1;
+    private long levelSince; //System.nanoTime() the current level was entered
+    private final long[] timeAtLevel = new long[NAMES.length]; //Nanoseconds spent at each level before the current one
+    private long levelChanges;
+
+    /*
+    keepAliveIntervals holds the milliseconds between keep-alives for each level in order, 0 for none. activeTimeout is
+    the milliseconds manual driving stays DRIVING after the last input
+     */
+    public PowerPolicy(long[] keepAliveIntervals, long activeTimeout){
+        this.keepAliveIntervals = keepAliveIntervals.clone();
+        this.activeTimeout = activeTimeout * 1000000L;
+        lastInput = System.nanoTime();
+    }
+
+    /*
+    Reports input from the user: a button pressed or let go, or a new tilt step
+     */
+    public void onInput(long now){
+        lastInput = now;
+    }
+
+    /*
+    Chooses the level for the current state and returns it. connected is whether the link to the robot is up, idle
+    whether the app is in idle mode, automatic whether it is in automatic mode and moving whether the command being
+    sent has the robot moving
+     */
+    public int update(long now, boolean connected, boolean idle, boolean automatic, boolean moving){
+        int chosen;
+        if(!connected){
+            chosen = SUSPENDED;
+        }else if(idle){
+            chosen = IDLE;
+        }else if(automatic){
+            chosen = AUTOPILOT;
+        }else if(moving || now - lastInput < activeTimeout){
+            chosen = DRIVING;
+        }else{
+            chosen = HEARTBEAT;
+        }
+        if(chosen != level){
+            if(level >= 0){
+                timeAtLevel[level] += now - levelSince;
+            }
+            level = chosen;
+            levelSince = now;
+            levelChanges++;
+        }
+        return level;
+    }
+
+    /*
+    Nanoseconds from now until manual driving would drop out of DRIVING without further input, at least 0
+     */
+    public long timeUntilInactive(long now){
+        return Math.max(0, lastInput + activeTimeout - now);
+    }
+
+    public int getLevel(){
+        return level;
+    }
+
+    /*
+    Keep-alive interval of the current level in milliseconds, 0 for no keep-alives
+     */
+    public long getKeepAliveInterval(){
+        return keepAliveIntervals[Math.max(0, level)];
+    }
+
+    /*
+    Milliseconds the link may stay silent at the current level before it is reported DEGRADED, never less than
+    ConnectionManager's default
+     */
+    public long getDegradedTimeout(){
+        return Math.max(ConnectionManager.DEGRADED_TIMEOUT, DEGRADED_KEEP_ALIVES * getKeepAliveInterval());
+    }
+
+    /*
+    Milliseconds the link may stay silent at the current level before it is considered lost
+     */
+    public long getLostTimeout(){
+        return Math.max(ConnectionManager.LOST_TIMEOUT, LOST_KEEP_ALIVES * getKeepAliveInterval());
+    }
+
+    public long getLevelChanges(){
+        return levelChanges;
+    }
+
+    /*
+    Share of the time since the first update() spent at each level, as text
+     */
+    public String dump(long now){
+        long total = 0;
+        for(int i = 0; i < NAMES.length; i++){
+            total += timeAt(i, now);
+        }
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < NAMES.length; i++){
+            text.append(NAMES[i]).append(": ").append(total == 0 ? 0 : Math.round(timeAt(i, now) * 100.0 / total))
+                    .append("%\n");
+        }
+        return text.toString();
+    }
+
+    private long timeAt(int index, long now){
+        return timeAtLevel[index] + (index == level ? now - levelSince : 0);
+    }
+}
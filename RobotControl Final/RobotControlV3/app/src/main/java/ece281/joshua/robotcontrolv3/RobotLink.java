@@ -0,0 +1,153 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Manages the read/write loop of a connection to a robot over any RobotTransport. A ConnectionThread reads and decodes
+ * the distance readings sent back by the arduino, and write() sends commands to it.
+ *
+ * This class has no Android dependencies so the whole control path can be run on a plain JVM against ArduinoEmulator.
+ */
+public class RobotLink {
+
+    /*
+    Receives the events of a link. Both methods are called on the link's ConnectionThread. sequence is the sequence
+    number of the command the reading answers, or -1 if the firmware did not echo one
+     */
+    public interface Listener {
+        void onDistance(float distance, int sequence);
+        void onDisconnected();
+    }
+
+    private final RobotTransport transport;
+    private final Listener listener;
+
+    private ConnectionThread connectionThread;
+    private OutputStream outStream; //Stream for data to be sent to arduino
+    private final Object writeLock = new Object(); //Held for a whole write, so frames from two threads never interleave
+    private volatile boolean connected; //If the transport is open and the ConnectionThread is still reading
+
+    public RobotLink(RobotTransport transport, Listener listener){
+        this.transport = transport;
+        this.listener = listener;
+    }
+
+    /*
+    Opens the transport and starts the ConnectionThread. Blocks until the connection is made, throws IOException if it fails
+     */
+    public synchronized void connect() throws IOException {
+        if(connectionThread != null){
+            close(); //Drops any previous connection first
+        }
+
+        transport.open();
+        InputStream inStream;
+        try {
+            inStream = transport.getInputStream();
+            outStream = transport.getOutputStream();
+        } catch (IOException e) {
+            transport.close();
+            throw e;
+        }
+
+        connected = true;
+        connectionThread = new ConnectionThread(inStream);
+        connectionThread.start();
+    }
+
+    /*
+    Writes length bytes of data starting at offset to the robot as one frame: a write from another thread waits until
+    it is complete, even if the stream gives up its lock while blocked. Throws IOException if the link is down
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        OutputStream out = outStream;
+        if(!connected || out == null){
+            throw new IOException("Not connected");
+        }
+        synchronized (writeLock){
+            out.write(data, offset, length);
+            out.flush();
+        }
+    }
+
+    /*
+    Closes the transport, which also ends the ConnectionThread
+     */
+    public void close(){
+        connected = false;
+        transport.close(); //Not synchronized so it can abort a connect() that is still in progress
+        synchronized (this){
+            connectionThread = null;
+        }
+    }
+
+    public boolean isConnected(){
+        return connected;
+    }
+
+    public RobotTransport getTransport(){
+        return transport;
+    }
+
+    /*
+    Returns the decoder of the current connection, so its dropped/malformed counters can be read. Null if never connected
+     */
+    public TelemetryDecoder getDecoder(){
+        ConnectionThread thread = connectionThread;
+        return thread == null ? null : thread.decoder;
+    }
+
+    /*
+    ConnectionThread listens for incoming data from the arduino and decodes it into distance readings
+     */
+    private class ConnectionThread extends Thread implements TelemetryDecoder.Listener {
+
+        private final InputStream mmInStream; //Stream for data from arduino
+        private final TelemetryDecoder decoder = new TelemetryDecoder(this); //Turns the received bytes into distances
+
+        ConnectionThread(InputStream inStream){
+            super("RobotLink " + transport.getName());
+            mmInStream = inStream;
+            setDaemon(true);
+        }
+
+        //Reads a stream of bytes into a buffer, which is decoded on this thread so that only finished readings reach the listener
+        @Override
+        public void run() {
+            byte[] buffer = new byte[256];  //buffer for the input stream.
+            int bytes; // bytes returned from read()
+
+            // Keep listening to the InputStream until an exception occurs or the stream ends
+            while (true) {
+                try {
+                    bytes = mmInStream.read(buffer);        // Get number of bytes and message in "buffer"
+                    if(bytes < 0){ //End of stream, the robot closed the connection
+                        break;
+                    }
+                    decoder.feed(buffer, 0, bytes); //Calls onDistance for every complete reading in the buffer
+                } catch (IOException e) {
+                    break;
+                }
+            }
+
+            //Only report the loss if this thread still belongs to the current connection (not replaced by connect() or close())
+            boolean current;
+            synchronized (RobotLink.this){
+                current = connectionThread == this;
+                if(current){
+                    connected = false;
+                }
+            }
+            if(current){
+                listener.onDisconnected();
+            }
+        }
+
+        @Override
+        public void onDistance(float distance, int sequence) {
+            listener.onDistance(distance, sequence);
+        }
+    }
+}
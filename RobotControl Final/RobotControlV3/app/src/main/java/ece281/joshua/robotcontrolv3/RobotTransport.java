@@ -0,0 +1,43 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte stream connection to a robot. BluetoothTransport talks to the HC-05 module on a real robot, while TcpTransport
+ * and PipedTransport allow the same control code to be run against ArduinoEmulator without a phone or a robot.
+ */
+public interface RobotTransport {
+
+    /*
+    Does the slow setup work of the next open() ahead of time, e.g. creating the socket, so that open() only has to connect.
+    Calling open() without prepare() is allowed, it then does this work itself
+     */
+    void prepare() throws IOException;
+
+    /*
+    Opens the connection, blocking until it is established. Throws IOException if the robot cannot be reached
+     */
+    void open() throws IOException;
+
+    /*
+    Stream of bytes sent by the robot. Only valid after open() succeeded
+     */
+    InputStream getInputStream() throws IOException;
+
+    /*
+    Stream of bytes sent to the robot. Only valid after open() succeeded
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /*
+    Closes the connection, unblocking any thread reading from the input stream. Safe to call more than once
+     */
+    void close();
+
+    /*
+    Short human readable description of the robot end, e.g. a MAC address or host:port
+     */
+    String getName();
+}
@@ -0,0 +1,80 @@
+package ece281.joshua.robotcontrolv3;
+
+/**
+ * Fixed capacity ring of float samples that keeps the most recent ones, used to draw the scrolling distance graph.
+ * Adding a sample or downsampling the ring for drawing never allocates.
+ *
+ * Not thread safe, samples are added and read on the UI thread.
+ */
+public class SampleRing {
+
+    private final float[] samples;
+    private final int mask;
+    private long count; //Total samples ever added, the newest is at (count - 1) & mask
+
+    /*
+    capacity is rounded up to a power of two
+     */
+    public SampleRing(int capacity){
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        samples = new float[size];
+        mask = size - 1;
+    }
+
+    public void add(float sample){
+        samples[(int) (count & mask)] = sample;
+        count++;
+    }
+
+    public int capacity(){
+        return samples.length;
+    }
+
+    /*
+    Number of samples currently held
+     */
+    public int size(){
+        return (int) Math.min(count, samples.length);
+    }
+
+    /*
+    Returns the sample age samples before the newest one (0 is the newest)
+     */
+    public float get(int age){
+        return samples[(int) ((count - 1 - age) & mask)];
+    }
+
+    /*
+    Reduces the newest span samples to columns columns, oldest first, writing the smallest and largest sample of each
+    column into min and max. A column covering no samples (not enough received yet) gets NaN.
+    Returns the number of samples per column as a float, which may be below one when zoomed in
+     */
+    public float downsample(int span, int columns, float[] min, float[] max){
+        float perColumn = (float) span / columns;
+        int available = size();
+        long first = count - span; //Sequence number of the oldest sample in the span, may be before the first sample
+
+        for(int column = 0; column < columns; column++){
+            long from = first + (long) (column * perColumn);
+            long to = Math.max(from + 1, first + (long) ((column + 1) * perColumn)); //Exclusive
+            float low = Float.NaN;
+            float high = Float.NaN;
+            for(long i = Math.max(from, count - available); i < to && i < count; i++){
+                float sample = samples[(int) (i & mask)];
+                if(!(sample >= low)){ //Also true while low is NaN
+                    low = sample;
+                }
+                if(!(sample <= high)){
+                    high = sample;
+                }
+            }
+            min[column] = low;
+            max[column] = high;
+        }
+        return perColumn;
+    }
+
+    public void clear(){
+        count = 0;
+    }
+}
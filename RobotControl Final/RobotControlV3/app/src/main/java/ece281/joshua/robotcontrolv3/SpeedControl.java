@@ -0,0 +1,58 @@
+package ece281.joshua.robotcontrolv3;
+
+/**
+ * Motor speed calculations that run on every tick, kept free of Android dependencies so they can be benchmarked on a
+ * plain JVM.
+ *
+ * A pair of speeds is returned packed into a single int (left in the high 16 bits, right in the low 16 bits) so that no
+ * object has to be allocated per call. Use left() and right() to unpack it.
+ */
+public final class SpeedControl {
+
+    public static final int PWM_LIMIT = 255; //Speeds must stay strictly between -255 and 255 for pwm on the arduino
+
+    private SpeedControl(){}
+
+    /*
+    Returns whether both speeds can be sent to the arduino
+     */
+    public static boolean isValidSpeed(int left, int right){
+        return left < PWM_LIMIT && left > -PWM_LIMIT && right < PWM_LIMIT && right > -PWM_LIMIT;
+    }
+
+    /*
+    Maps the accelerometer's x (left/right) and y (forwards/backwards) readings to packed motor speeds.
+    Tilting forwards or backwards drives both motors at 25 per m/s^2, tilting sideways far enough spins on the spot.
+    This is the original unfiltered mapping, MainActivity now uses TiltControl and this is kept for comparison
+     */
+    public static int tiltToSpeeds(float xAxis, float yAxis){
+        int x = (int)Math.floor(xAxis)+1; //the x-axis is used for left/right movement
+
+        int y = (int)Math.floor(yAxis);//the y-axis is used for forwards/backwards movement
+        y = -y;
+
+        // Map 0 to +10 to 0 to 255 for going forward and back
+        int speed = 25*y;
+        int left = speed;
+        int right = speed;
+
+        // If x axis is turned far enough, rotate in that direction
+        if (x > 3 || x < -2) {
+            left = -x*25;
+            right = x*25;
+        }
+        return pack(left, right);
+    }
+
+    public static int pack(int left, int right){
+        return (left << 16) | (right & 0xFFFF);
+    }
+
+    public static int left(int speeds){
+        return speeds >> 16;
+    }
+
+    public static int right(int speeds){
+        return (short) speeds;
+    }
+}
@@ -0,0 +1,83 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * RobotTransport over a TCP socket, used to talk to an ArduinoEmulator (or a serial-to-TCP bridge) on another machine.
+ */
+public class TcpTransport implements RobotTransport {
+
+    private final String host;
+    private final int port;
+    private final int connectTimeout; //Milliseconds to wait for the connection before giving up
+    private volatile Socket socket;
+    private InetSocketAddress resolved; //Address looked up by prepare()
+
+    public TcpTransport(String host, int port, int connectTimeout){
+        this.host = host;
+        this.port = port;
+        this.connectTimeout = connectTimeout;
+    }
+
+    /*
+    Looks up the host name, so open() does not have to wait for DNS
+     */
+    @Override
+    public synchronized void prepare() throws IOException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if(address.isUnresolved()){
+            throw new IOException("Unknown host " + host);
+        }
+        resolved = address;
+    }
+
+    @Override
+    public void open() throws IOException {
+        InetSocketAddress address;
+        synchronized (this){
+            if(resolved == null){
+                prepare();
+            }
+            address = resolved;
+        }
+
+        Socket s = new Socket();
+        socket = s; //Set before connecting so close() can abort the attempt
+        try {
+            s.setTcpNoDelay(true); //Commands are tiny and latency sensitive, never wait to coalesce them
+            s.connect(address, connectTimeout);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public void close() {
+        Socket s = socket;
+        if(s != null){
+            try {
+                s.close();
+            } catch (IOException e) { } //Socket failed to close, there is nothing else to release
+        }
+    }
+
+    @Override
+    public String getName() {
+        return host + ":" + port;
+    }
+}
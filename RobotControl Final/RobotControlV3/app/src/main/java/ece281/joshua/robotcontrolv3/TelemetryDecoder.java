@@ -0,0 +1,215 @@
+package ece281.joshua.robotcontrolv3;
+
+/**
+ * Incrementally decodes the distance readings the arduino sends with println(distance), e.g. "23.45\r\n". Firmware that
+ * echoes command sequence numbers sends the sequence number of the command being answered after a space, e.g.
+ * "23.45 17\r\n".
+ *
+ * Bytes are fed in exactly as they come out of read(), so a reading split across two reads or several readings
+ * coalesced into one read are both handled. Bytes are kept in a fixed ring buffer until a newline arrives and are then
+ * parsed straight into a float, so decoding a reading does not allocate.
+ *
+ * A decoder must only be fed from one thread (the thread reading from the connection).
+ */
+public class TelemetryDecoder {
+
+    /*
+    Receives every successfully decoded reading, called on the thread that calls feed(). sequence is the echoed command
+    sequence number, or -1 if the reading did not carry one
+     */
+    public interface Listener {
+        void onDistance(float distance, int sequence);
+    }
+
+    private static final int CAPACITY = 64; //Longest line that can be decoded, must be a power of two
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_DIGITS = 9; //More digits than this cannot be held exactly in the mantissa
+
+    public static final int MAX_FORMATTED_LENGTH = 20; //Longest line format() writes, for distances below 1000000 cm
+
+    private static final float[] POWERS_OF_TEN = {1f, 10f, 100f, 1000f, 10000f, 100000f, 1000000f, 10000000f,
+            100000000f, 1000000000f};
+
+    private final byte[] ring = new byte[CAPACITY]; //Bytes of the line currently being received
+    private int head; //Position of the first byte of the current line
+    private int tail; //Position after the last byte received, head + CAPACITY at most
+    private boolean overflowed; //Set when the current line did not fit in the ring and has to be dropped
+
+    private final Listener listener;
+
+    //Counters, written only by the feeding thread but readable from any thread
+    private volatile long decodedCount; //Readings delivered to the listener
+    private volatile long droppedCount; //Lines that were too long to buffer
+    private volatile long malformedCount; //Lines that were not a valid decimal number
+
+    public TelemetryDecoder(Listener listener){
+        this.listener = listener;
+    }
+
+    /*
+    Feeds count bytes of data starting at offset into the decoder. The listener is called once for every complete
+    reading contained in the data. The array is not kept, so the caller can reuse it for the next read
+     */
+    public void feed(byte[] data, int offset, int count){
+        for(int i = offset; i < offset + count; i++){
+            byte b = data[i];
+            if(b == '\n'){
+                if(overflowed){
+                    droppedCount++;
+                    Tracer.trace(Tracer.PARSE_ERROR, Tracer.PARSE_TOO_LONG);
+                    overflowed = false;
+                }else{
+                    parseLine();
+                }
+                head = 0; //The next line starts at the start of the ring, so the positions never grow past CAPACITY
+                tail = 0;
+            }else if(tail - head == CAPACITY){
+                overflowed = true; //Line is longer than any valid reading, discard the rest of it
+            }else if(!overflowed){
+                ring[tail & MASK] = b;
+                tail++;
+            }
+        }
+    }
+
+    /*
+    Discards any partially received line, used when the connection is reset
+     */
+    public void reset(){
+        head = 0;
+        tail = 0;
+        overflowed = false;
+    }
+
+    public long getDecodedCount(){
+        return decodedCount;
+    }
+
+    public long getDroppedCount(){
+        return droppedCount;
+    }
+
+    public long getMalformedCount(){
+        return malformedCount;
+    }
+
+    /*
+    Parses the bytes between head and tail as an optionally signed decimal number, optionally followed by a space and a
+    sequence number, and delivers it to the listener
+     */
+    private void parseLine(){
+        int start = head;
+        int end = tail;
+
+        //Trims the carriage return sent by println and any surrounding spaces
+        while(start < end && isSpace(ring[start & MASK])){
+            start++;
+        }
+        while(end > start && isSpace(ring[(end - 1) & MASK])){
+            end--;
+        }
+
+        //Splits off the sequence number, if there is one
+        int separator = start;
+        while(separator < end && ring[separator & MASK] != ' ' && ring[separator & MASK] != ','){
+            separator++;
+        }
+        int sequence = -1;
+        if(separator < end){
+            sequence = 0;
+            for(int i = separator + 1; i < end; i++){
+                byte b = ring[i & MASK];
+                if(b < '0' || b > '9' || sequence > 0xFFFF){
+                    malformed();
+                    return;
+                }
+                sequence = sequence * 10 + (b - '0');
+            }
+            end = separator;
+        }
+
+        boolean negative = false;
+        if(start < end && (ring[start & MASK] == '-' || ring[start & MASK] == '+')){
+            negative = ring[start & MASK] == '-';
+            start++;
+        }
+
+        long mantissa = 0;
+        int digits = 0; //Digits accumulated into mantissa
+        int fractionDigits = 0; //How many of those digits are after the decimal point
+        boolean seenPoint = false;
+
+        for(int i = start; i < end; i++){
+            byte b = ring[i & MASK];
+            if(b >= '0' && b <= '9'){
+                if(digits < MAX_DIGITS){
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                    if(seenPoint){
+                        fractionDigits++;
+                    }
+                }else if(!seenPoint){ //Too many integer digits to be a distance
+                    malformed();
+                    return;
+                }
+            }else if(b == '.' && !seenPoint){
+                seenPoint = true;
+            }else{ //Anything else, e.g. "nan", "ovf" or line noise
+                malformed();
+                return;
+            }
+        }
+
+        if(digits == 0){
+            malformed();
+            return;
+        }
+
+        float value = mantissa / POWERS_OF_TEN[fractionDigits];
+        decodedCount++;
+        listener.onDistance(negative ? -value : value, sequence);
+    }
+
+    /*
+    Writes a reading the way the arduino sends it, print(distance) with two decimals, then the 0 to 255 sequence number
+    after a space if it is not negative, then "\r\n". Returns the number of bytes written at offset, at most
+    MAX_FORMATTED_LENGTH
+     */
+    public static int format(float distance, int sequence, byte[] buffer, int offset){
+        int hundredths = Math.round(distance * 100);
+        int length = offset;
+        int whole = hundredths / 100;
+        int divisor = 1;
+        while(divisor * 10 <= whole){
+            divisor *= 10;
+        }
+        for(; divisor > 0; divisor /= 10){
+            buffer[length++] = (byte) ('0' + (whole / divisor) % 10);
+        }
+        buffer[length++] = '.';
+        buffer[length++] = (byte) ('0' + (hundredths / 10) % 10);
+        buffer[length++] = (byte) ('0' + hundredths % 10);
+        if(sequence >= 0){
+            buffer[length++] = ' ';
+            if(sequence >= 100){
+                buffer[length++] = (byte) ('0' + sequence / 100);
+            }
+            if(sequence >= 10){
+                buffer[length++] = (byte) ('0' + (sequence / 10) % 10);
+            }
+            buffer[length++] = (byte) ('0' + sequence % 10);
+        }
+        buffer[length++] = '\r';
+        buffer[length++] = '\n';
+        return length - offset;
+    }
+
+    private void malformed(){
+        malformedCount++;
+        Tracer.trace(Tracer.PARSE_ERROR, Tracer.PARSE_MALFORMED);
+    }
+
+    private static boolean isSpace(byte b){
+        return b == '\r' || b == ' ' || b == '\t';
+    }
+}
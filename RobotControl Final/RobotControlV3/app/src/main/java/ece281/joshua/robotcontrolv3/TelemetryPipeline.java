@@ -0,0 +1,243 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands the decoded distance readings from the connection thread to any number of consumers (the distance filter and
+ * display, the flight recorder, ...), each on a thread of its own, so none of them runs on the UI thread or holds up
+ * the connection thread or the others.
+ *
+ * The connection thread is the only producer. publish() writes a reading into a slot of a ring of pre-allocated
+ * columns (time, and the distance and sequence number packed in one long) and then advances the count of readings
+ * published, so it takes no lock and allocates nothing, and never waits for a consumer. Each slot has a stamp, the
+ * number of the reading in it, which publish() sets to -1 before writing the slot and to the reading's number after.
+ * The columns and stamps are AtomicLongArrays, so no long can tear and a consumer's reads of a slot are ordered between
+ * its two reads of the stamp. Each consumer has a Cursor: the sequence number of the next reading it reads, and a
+ * thread that sleeps until something is published past it. The thread passes every reading to the Consumer in turn,
+ * and calls onCaughtUp() once it has read all that was published, which is where a consumer that only needs the
+ * latest reading (e.g. the display) does its work.
+ *
+ * A consumer that falls more than CAPACITY readings behind loses the oldest ones, which are overwritten: it skips to
+ * the oldest reading still in the ring, and a reading whose stamp is not its number both before and after it is read
+ * was overwritten, and is thrown away. Both are counted as dropped. The lag of each cursor (readings published it has
+ * not read yet), the largest lag seen and the delay from publish() to each reading being handed to the consumer are
+ * kept for the statistics.
+ */
+public class TelemetryPipeline {
+
+    static final int CAPACITY = 1024; //Readings kept, a power of two. 20 s at 50 Hz, 24 KB
+
+    /**
+     * Reads the readings on its Cursor's thread
+     */
+    public interface Consumer {
+        /*
+        Called with each reading in order. time is the System.nanoTime() it was published at
+         */
+        void onReading(long time, float distance, int sequence);
+
+        /*
+        Called after the last reading published so far, before the thread waits for the next
+         */
+        void onCaughtUp();
+    }
+
+    private final AtomicLongArray time = new AtomicLongArray(CAPACITY);
+    private final AtomicLongArray reading = new AtomicLongArray(CAPACITY); //Distance float bits and sequence number
+    private final AtomicLongArray stamp = new AtomicLongArray(CAPACITY); //Number of the reading in the slot, -1 while written
+    private final int mask = CAPACITY - 1;
+    private volatile long published; //Readings ever published, written after the reading
+
+    private Cursor[] cursors = new Cursor[0]; //Replaced, never changed, when a consumer is added
+
+    /*
+    Adds a consumer, whose Cursor starts at the next reading published. Its thread, named after it, runs from start()
+     */
+    public synchronized Cursor addConsumer(String name, Consumer consumer){
+        Cursor cursor = new Cursor(name, consumer, published);
+        Cursor[] grown = new Cursor[cursors.length + 1];
+        System.arraycopy(cursors, 0, grown, 0, cursors.length);
+        grown[cursors.length] = cursor;
+        cursors = grown;
+        return cursor;
+    }
+
+    /*
+    Starts the thread of every consumer that is not running
+     */
+    public synchronized void start(){
+        for(Cursor cursor : cursors){
+            cursor.start();
+        }
+    }
+
+    /*
+    Stops the consumers' threads once they have finished the reading they are on. Readings published meanwhile are kept
+    for when they are started again, as far as the ring holds them
+     */
+    public synchronized void stop(){
+        for(Cursor cursor : cursors){
+            cursor.stop();
+        }
+    }
+
+    /*
+    Called on the connection thread with each reading and the System.nanoTime() it arrived at. Only one thread may
+    publish
+     */
+    public void publish(long now, float distance, int readingSequence){
+        long next = published;
+        int position = (int) (next & mask);
+        stamp.set(position, -1);
+        time.set(position, now);
+        reading.set(position, (long) Float.floatToIntBits(distance) << 32 | (readingSequence & 0xFFFFFFFFL));
+        stamp.set(position, next);
+        published = next + 1;
+
+        Cursor[] all = cursors;
+        for(Cursor cursor : all){
+            if(cursor.waiting){
+                LockSupport.unpark(cursor.thread);
+            }
+        }
+    }
+
+    public long getPublished(){
+        return published;
+    }
+
+    public synchronized Cursor[] getCursors(){
+        return cursors.clone();
+    }
+
+    /**
+     * One consumer's position in the ring, and the thread reading from it
+     */
+    public class Cursor {
+
+        private final String name;
+        private final Consumer consumer;
+        private volatile long position; //Sequence number of the next reading to read
+        private volatile Thread thread; //Null while stopped
+        private volatile boolean waiting; //The thread is parked, or about to be, until a reading is published
+
+        //Statistics, written only by the thread
+        private volatile long consumed;
+        private volatile long dropped; //Readings overwritten before they were read
+        private volatile long maxLag;
+        private final LatencyHistogram delay = new LatencyHistogram(); //publish() to onReading()
+
+        Cursor(String name, Consumer consumer, long position){
+            this.name = name;
+            this.consumer = consumer;
+            this.position = position;
+        }
+
+        void start(){
+            if(thread != null){
+                return;
+            }
+            thread = new Thread("Telemetry " + name){
+                @Override
+                public void run() {
+                    loop(this);
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void stop(){
+            Thread running = thread;
+            thread = null;
+            if(running != null){
+                LockSupport.unpark(running);
+            }
+        }
+
+        private void loop(Thread self){
+            while(thread == self){
+                long available = published;
+                if(position == available){
+                    waiting = true;
+                    if(published == position && thread == self){ //Checked again, publish() may not have seen waiting
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                    continue;
+                }
+                if(available - position > maxLag){
+                    maxLag = available - position;
+                }
+                while(position < available && thread == self){
+                    long next = Math.max(position, published - CAPACITY); //Skips what was overwritten
+                    if(next != position){
+                        dropped += next - position;
+                        position = next;
+                        if(next >= available){ //Skipped past the batch, published has moved on
+                            break;
+                        }
+                    }
+                    int slot = (int) (next & mask);
+                    long before = stamp.get(slot);
+                    long readingTime = time.get(slot);
+                    long packed = reading.get(slot);
+                    long after = stamp.get(slot);
+                    position = next + 1;
+                    if(before != next || after != next){ //Overwritten before or while it was read
+                        dropped++;
+                        continue;
+                    }
+                    delay.recordNanos(System.nanoTime() - readingTime);
+                    consumed++;
+                    consumer.onReading(readingTime, Float.intBitsToFloat((int) (packed >>> 32)), (int) packed);
+                }
+                consumer.onCaughtUp();
+            }
+        }
+
+        public String getName(){
+            return name;
+        }
+
+        /*
+        Readings published that the consumer has not read yet
+         */
+        public long getLag(){
+            return Math.max(0, published - position);
+        }
+
+        public long getMaxLag(){
+            return maxLag;
+        }
+
+        public long getConsumed(){
+            return consumed;
+        }
+
+        public long getDropped(){
+            return dropped;
+        }
+
+        public LatencyHistogram getDelay(){
+            return delay;
+        }
+    }
+
+    /*
+    Multi-line text dump of the pipeline statistics, for display or export
+     */
+    public String dump(){
+        StringBuilder sb = new StringBuilder();
+        sb.append("published: ").append(published).append('\n');
+        for(Cursor cursor : getCursors()){
+            sb.append(cursor.getName()).append(": ").append(cursor.getConsumed()).append(" read, lag ")
+                    .append(cursor.getLag()).append(" (").append(cursor.getMaxLag()).append(" max), ")
+                    .append(cursor.getDropped()).append(" dropped, delay p50 ")
+                    .append(cursor.getDelay().getPercentile(0.5) / 1000.0).append(" ms, p99 ")
+                    .append(cursor.getDelay().getPercentile(0.99) / 1000.0).append(" ms\n");
+        }
+        return sb.toString();
+    }
+}
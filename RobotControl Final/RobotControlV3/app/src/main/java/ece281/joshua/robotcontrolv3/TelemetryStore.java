@@ -0,0 +1,323 @@
+package ece281.joshua.robotcontrolv3;
+
+/**
+ * Keeps the most recent distance readings together with the command that was being sent when each arrived, so questions
+ * like "what was the closest the robot came to a wall in the last 10 s" can be answered after the reading was drawn.
+ *
+ * Rows are stored in columns, one primitive array per field, in a ring of fixed capacity that overwrites the oldest
+ * row, so memory stays bounded however long the app runs: about 15 bytes per row, 3.9 MB for the default capacity.
+ *
+ * A Window keeps running aggregates of the filtered distance over the rows of the last few seconds: smallest and largest
+ * (monotonic queues), mean (running sum), percentiles (a histogram with 1 cm buckets) and the number of dips below a
+ * threshold. Each row is added to and removed from every window exactly once, so keeping them up to date costs O(1)
+ * amortised per row, and reading them never copies or allocates. Percentiles scan the histogram, HISTOGRAM_RANGE steps
+ * at most.
+ *
+ * Not thread safe. MainActivity adds rows on the filter consumer's thread of its TelemetryPipeline and queries them on
+ * the UI thread, holding the store's lock for both.
+ */
+public class TelemetryStore {
+
+    public static final int NO_DISTANCE = -1; //Distance of a row whose reading was rejected, and of an empty window
+    static final int HISTOGRAM_RANGE = 400; //cm, the range finder's limit. Distances are kept between 0 and this
+    static final int MAX_RATE = 50; //Rows per second the windows are sized for, they drop older rows beyond that
+
+    //Columns, row i of the ring at position i & mask
+    private final int[] time; //Milliseconds since the store was created
+    private final float[] raw; //Reading as received, 0 for a timeout
+    private final short[] distance; //Filtered reading rounded to cm, 0 to HISTOGRAM_RANGE, NO_DISTANCE if rejected
+    private final short[] speedLeft; //Speeds of the command being sent
+    private final short[] speedRight;
+    private final byte[] mode; //Mode character of the command being sent
+    private final int mask;
+    private long count; //Rows ever added, the newest is row count - 1
+
+    private final long startTime; //System.nanoTime() time 0 refers to
+    private Window[] windows = new Window[0];
+
+    /*
+    capacity is rounded up to a power of two. now is the current System.nanoTime()
+     */
+    public TelemetryStore(int capacity, long now){
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        time = new int[size];
+        raw = new float[size];
+        distance = new short[size];
+        speedLeft = new short[size];
+        speedRight = new short[size];
+        mode = new byte[size];
+        mask = size - 1;
+        startTime = now;
+    }
+
+    /*
+    Creates a window over the last duration milliseconds, which counts dips below threshold cm. It aggregates the rows
+    added from now on
+     */
+    public Window addWindow(int duration, int threshold){
+        Window window = new Window(duration, threshold);
+        Window[] grown = new Window[windows.length + 1];
+        System.arraycopy(windows, 0, grown, 0, windows.length);
+        grown[windows.length] = window;
+        windows = grown;
+        return window;
+    }
+
+    /*
+    Adds a row: a reading received at now (System.nanoTime()), whether it was accepted, the filtered distance, and the
+    command being sent at the time. The distance is rounded to cm and kept between 0 and HISTOGRAM_RANGE, a rejected
+    reading has NO_DISTANCE
+     */
+    public void add(long now, float rawReading, boolean accepted, float filtered, char commandMode, int left,
+                    int right){
+        int position = (int) (count & mask);
+        int millis = toMillis(now);
+        time[position] = millis;
+        raw[position] = rawReading;
+        distance[position] = (short) (accepted ? Math.max(0, Math.min(HISTOGRAM_RANGE, Math.round(filtered)))
+                : NO_DISTANCE);
+        speedLeft[position] = (short) left;
+        speedRight[position] = (short) right;
+        mode[position] = (byte) commandMode;
+        count++;
+        for(Window window : windows){
+            window.expire(millis);
+            window.add(count - 1);
+        }
+    }
+
+    /*
+    Drops rows older than their windows from the windows, for when the readings have stopped. add() does this itself
+     */
+    public void expire(long now){
+        int millis = toMillis(now);
+        for(Window window : windows){
+            window.expire(millis);
+        }
+    }
+
+    public int capacity(){
+        return mask + 1;
+    }
+
+    /*
+    Number of rows currently held
+     */
+    public int size(){
+        return (int) Math.min(count, mask + 1);
+    }
+
+    /*
+    The columns of the row age rows before the newest (0 is the newest)
+     */
+    public int getTime(int age){
+        return time[position(age)];
+    }
+
+    public float getRaw(int age){
+        return raw[position(age)];
+    }
+
+    public int getDistance(int age){
+        return distance[position(age)];
+    }
+
+    public int getSpeedLeft(int age){
+        return speedLeft[position(age)];
+    }
+
+    public int getSpeedRight(int age){
+        return speedRight[position(age)];
+    }
+
+    public char getMode(int age){
+        return (char) mode[position(age)];
+    }
+
+    private int position(int age){
+        return (int) ((count - 1 - age) & mask);
+    }
+
+    private int toMillis(long now){
+        return (int) ((now - startTime) / 1000000);
+    }
+
+    /**
+     * Aggregates of the filtered distance over the rows of the last duration milliseconds. Rejected readings are in the
+     * window but not in its aggregates. If rows arrive faster than MAX_RATE the window holds only the newest
+     * duration * MAX_RATE of them.
+     */
+    public class Window {
+
+        private final int duration;
+        private final int threshold;
+        private final int maxRows;
+        private long head; //Oldest row in the window, the newest is count - 1
+
+        private int readings; //Rows with a distance
+        private long sum;
+        private final int[] histogram = new int[HISTOGRAM_RANGE + 1];
+        private int below; //Readings below threshold
+        private int dips; //Readings below threshold whose previous reading was not
+        private final boolean[] dipped; //Whether each row started a dip, at row % maxRows
+        private boolean wasBelow; //Whether the last reading added was below threshold
+
+        //Rows whose distance may still become the smallest (increasing distances) and largest (decreasing), as rings
+        //of row % maxRows positions, oldest first
+        private final long[] minQueue, maxQueue;
+        private int minHead, minSize, maxHead, maxSize;
+
+        private Window(int duration, int threshold){
+            this.duration = duration;
+            this.threshold = threshold;
+            maxRows = (int) Math.min(mask + 1, Math.max(1L, (long) duration * MAX_RATE / 1000));
+            dipped = new boolean[maxRows];
+            minQueue = new long[maxRows];
+            maxQueue = new long[maxRows];
+            head = count;
+        }
+
+        private void add(long row){
+            if(row - head >= maxRows){
+                remove();
+            }
+            int d = distance[(int) (row & mask)];
+            boolean isBelow = false;
+            if(d != NO_DISTANCE){
+                readings++;
+                sum += d;
+                histogram[d]++;
+                isBelow = d < threshold;
+                if(isBelow){
+                    below++;
+                }
+                while(minSize > 0 && distanceOf(minQueue[(minHead + minSize - 1) % maxRows]) >= d){
+                    minSize--;
+                }
+                minQueue[(minHead + minSize++) % maxRows] = row;
+                while(maxSize > 0 && distanceOf(maxQueue[(maxHead + maxSize - 1) % maxRows]) <= d){
+                    maxSize--;
+                }
+                maxQueue[(maxHead + maxSize++) % maxRows] = row;
+            }
+            boolean dip = isBelow && !wasBelow;
+            dipped[(int) (row % maxRows)] = dip;
+            if(dip){
+                dips++;
+            }
+            if(d != NO_DISTANCE){
+                wasBelow = isBelow;
+            }
+        }
+
+        private void expire(int now){
+            while(head < count && now - time[(int) (head & mask)] > duration){
+                remove();
+            }
+        }
+
+        /*
+        Removes the oldest row
+         */
+        private void remove(){
+            int d = distance[(int) (head & mask)];
+            if(d != NO_DISTANCE){
+                readings--;
+                sum -= d;
+                histogram[d]--;
+                if(d < threshold){
+                    below--;
+                }
+                if(minSize > 0 && minQueue[minHead] == head){
+                    minHead = (minHead + 1) % maxRows;
+                    minSize--;
+                }
+                if(maxSize > 0 && maxQueue[maxHead] == head){
+                    maxHead = (maxHead + 1) % maxRows;
+                    maxSize--;
+                }
+            }
+            if(dipped[(int) (head % maxRows)]){
+                dips--;
+            }
+            head++;
+        }
+
+        private int distanceOf(long row){
+            return distance[(int) (row & mask)];
+        }
+
+        public int getDuration(){
+            return duration;
+        }
+
+        public int getThreshold(){
+            return threshold;
+        }
+
+        /*
+        Rows in the window, including rejected readings
+         */
+        public int getRows(){
+            return (int) (count - head);
+        }
+
+        /*
+        Readings in the window with a distance
+         */
+        public int getReadings(){
+            return readings;
+        }
+
+        /*
+        Smallest distance in the window, NO_DISTANCE if it has no readings
+         */
+        public int getMin(){
+            return minSize == 0 ? NO_DISTANCE : distanceOf(minQueue[minHead]);
+        }
+
+        public int getMax(){
+            return maxSize == 0 ? NO_DISTANCE : distanceOf(maxQueue[maxHead]);
+        }
+
+        /*
+        Mean distance in the window, NaN if it has no readings
+         */
+        public float getMean(){
+            return readings == 0 ? Float.NaN : (float) sum / readings;
+        }
+
+        /*
+        The distance that fraction (0 to 1) of the readings in the window are at or below, to the cm. NO_DISTANCE if it
+        has no readings
+         */
+        public int getPercentile(double fraction){
+            if(readings == 0){
+                return NO_DISTANCE;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * readings));
+            int seen = 0;
+            for(int d = 0; d < HISTOGRAM_RANGE; d++){
+                seen += histogram[d];
+                if(seen >= rank){
+                    return d;
+                }
+            }
+            return HISTOGRAM_RANGE;
+        }
+
+        /*
+        Times the distance went below the threshold in the window
+         */
+        public int getDips(){
+            return dips;
+        }
+
+        /*
+        Fraction of the readings in the window below the threshold, 0 if it has none
+         */
+        public float getBelowFraction(){
+            return readings == 0 ? 0 : (float) below / readings;
+        }
+    }
+}
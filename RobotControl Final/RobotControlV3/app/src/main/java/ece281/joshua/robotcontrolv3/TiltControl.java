@@ -0,0 +1,161 @@
+package ece281.joshua.robotcontrolv3;
+
+/**
+ * Turns accelerometer events into motor setpoints for accelerometer control mode.
+ *
+ * Each event goes through a low-pass filter (timed from the event timestamps, so it behaves the same at any sensor rate),
+ * a deadband around level, and is then quantised to one of a few speed steps. A new setpoint is only produced when the
+ * quantised step changes, so hand tremor neither reaches the motors nor produces extra commands. A step only changes
+ * once the tilt is past the step boundary by a margin, so holding the phone right on a boundary does not flip between
+ * two steps either.
+ *
+ * Tilting forwards or backwards drives both motors, tilting sideways past SPIN_THRESHOLD spins on the spot.
+ *
+ * Not thread safe, events are fed from the sensor thread (the UI thread by default).
+ */
+public class TiltControl {
+
+    public static final float FULL_TILT = 9.5f; //Tilt in m/s^2 that gives full speed, nearly vertical
+    public static final float SPIN_THRESHOLD = 3.0f; //Sideways tilt in m/s^2 past which the robot spins instead of driving
+    public static final float X_OFFSET = 1.0f; //Added to the sideways tilt, as the original mapping did, so a slightly tilted grip counts as level
+    static final float HYSTERESIS = 0.25f; //Fraction of a step the tilt must go past a boundary before the step changes
+
+    private final float timeConstant; //Seconds, larger is smoother but slower to respond
+    private final float deadband; //Tilt in m/s^2 treated as level
+    private final int steps; //Speed steps on each side of stopped
+    private final int maxSpeed;
+
+    private float filteredX, filteredY;
+    private long lastTimestamp; //Nanoseconds, 0 before the first event
+    private int driveStep; //Current step, negative for backwards
+    private int spinStep; //Current spin step, positive spins right
+    private int speeds = SpeedControl.pack(0, 0);
+
+    //Rate statistics
+    private long firstTimestamp;
+    private long eventCount; //Events fed in
+    private long setpointCount; //Setpoints produced
+
+    public TiltControl(float timeConstant, float deadband, int steps, int maxSpeed){
+        this.timeConstant = timeConstant;
+        this.deadband = deadband;
+        this.steps = steps;
+        this.maxSpeed = maxSpeed;
+    }
+
+    /*
+    Feeds one accelerometer event, x for left/right and y for forwards/backwards in m/s^2 and the event time in
+    nanoseconds. Returns true if the setpoint changed, in which case getSpeeds() returns the new one
+     */
+    public boolean update(float x, float y, long timestamp){
+        eventCount++;
+        x += X_OFFSET;
+
+        if(lastTimestamp == 0){ //First event, nothing to filter against
+            firstTimestamp = timestamp;
+            filteredX = x;
+            filteredY = y;
+        }else{
+            float dt = (timestamp - lastTimestamp) / 1e9f;
+            float alpha = dt <= 0 ? 0 : dt / (timeConstant + dt);
+            filteredX += alpha * (x - filteredX);
+            filteredY += alpha * (y - filteredY);
+        }
+        lastTimestamp = timestamp;
+
+        //Spinning takes priority over driving, as in the original mapping. The spin threshold takes the place of the
+        //deadband on the x-axis
+        int newSpin = quantise(filteredX, SPIN_THRESHOLD, spinStep);
+        int newDrive = newSpin != 0 ? 0 : quantise(-filteredY, deadband, driveStep); //Tilting forwards makes y negative
+        if(newSpin == spinStep && newDrive == driveStep){
+            return false;
+        }
+        spinStep = newSpin;
+        driveStep = newDrive;
+
+        if(spinStep != 0){
+            int speed = stepToSpeed(spinStep);
+            speeds = SpeedControl.pack(-speed, speed);
+        }else{
+            int speed = stepToSpeed(driveStep);
+            speeds = SpeedControl.pack(speed, speed);
+        }
+        setpointCount++;
+        return true;
+    }
+
+    /*
+    The current setpoint, packed as in SpeedControl
+     */
+    public int getSpeeds(){
+        return speeds;
+    }
+
+    /*
+    Stops and forgets the filter state, used when accelerometer mode is entered
+     */
+    public void reset(){
+        lastTimestamp = 0;
+        driveStep = 0;
+        spinStep = 0;
+        speeds = SpeedControl.pack(0, 0);
+        eventCount = 0;
+        setpointCount = 0;
+    }
+
+    public long getEventCount(){
+        return eventCount;
+    }
+
+    public long getSetpointCount(){
+        return setpointCount;
+    }
+
+    /*
+    Sensor events per second since the last reset
+     */
+    public float getEventRate(){
+        return rate(eventCount);
+    }
+
+    /*
+    Setpoints produced per second since the last reset
+     */
+    public float getSetpointRate(){
+        return rate(setpointCount);
+    }
+
+    /*
+    Quantises a tilt to a step between -steps and steps, with 0 for anything inside the deadband. The current step is
+    kept unless the tilt has moved past its boundaries by the hysteresis margin
+     */
+    private int quantise(float tilt, float deadband, int current){
+        float magnitude = Math.abs(tilt);
+        float level = magnitude <= deadband ? 0 : Math.min(1, (magnitude - deadband) / (FULL_TILT - deadband)) * steps;
+        if(tilt < 0){
+            level = -level;
+        }
+
+        //Step k covers levels from k - 1 to k, widened by the hysteresis margin for the current step. Stopping needs the
+        //tilt back inside the deadband
+        if(current > 0 && level > Math.max(current - 1 - HYSTERESIS, 0) && level <= current + HYSTERESIS){
+            return current;
+        }
+        if(current < 0 && level < Math.min(current + 1 + HYSTERESIS, 0) && level >= current - HYSTERESIS){
+            return current;
+        }
+        if(current == 0 && Math.abs(level) <= HYSTERESIS){
+            return 0;
+        }
+        return level > 0 ? (int) Math.ceil(level) : (int) Math.floor(level);
+    }
+
+    private int stepToSpeed(int step){
+        return step * maxSpeed / steps;
+    }
+
+    private float rate(long count){
+        long elapsed = lastTimestamp - firstTimestamp;
+        return elapsed <= 0 ? 0 : count * 1e9f / elapsed;
+    }
+}
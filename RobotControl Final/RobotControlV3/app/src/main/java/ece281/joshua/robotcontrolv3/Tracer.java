@@ -0,0 +1,408 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * In-process trace of what the app does, cheap enough to stay on in release builds, in place of Log.d calls that built
+ * a String and made a logcat call on every command and reading.
+ *
+ * Events are of a few types registered below, each with up to three int fields whose meaning depends on the type.
+ * trace() stores the time, the type and the fields in the calling thread's own ring: primitive arrays of
+ * RING_CAPACITY events that overwrite the oldest. Only the owning thread writes to a ring, so tracing takes no lock and
+ * allocates nothing once the thread has its ring. A type can be sampled, recording only every n-th event of it.
+ *
+ * snapshot() copies every ring without stopping the threads tracing into them, dropping any event overwritten while
+ * it was copied. A Snapshot can be written as text merged in time order, or to a compact binary file which main()
+ * turns back into text on any JVM.
+ *
+ * Rings belong to thread names rather than threads, so a thread that replaces one that ended (e.g. the RobotLink
+ * thread of each new connection) continues its ring. Threads beyond MAX_RINGS names are not traced.
+ */
+public class Tracer {
+
+    //Event types and their fields
+    public static final int COMMAND = 0; //Command submitted to the robot: mode, speeds packed as in SpeedControl, sequence
+    public static final int READING = 1; //Distance reply received: float bits of the distance, sequence
+    public static final int PARSE_ERROR = 2; //Telemetry line thrown away: PARSE_MALFORMED or PARSE_TOO_LONG
+    public static final int LINK_STATE = 3; //Connection state changed: the ConnectionManager state
+    public static final int MODE_CHANGE = 4; //Drive mode changed: the old and the new MainActivity mode
+    public static final int EMERGENCY_STOP = 5; //Emergency stop triggered: 1 if automatic, 0 if by the user
+    static final String[] NAMES = {"command", "reading", "parse error", "link", "mode", "emergency stop"};
+
+    public static final int PARSE_MALFORMED = 0;
+    public static final int PARSE_TOO_LONG = 1;
+
+    static final int RING_CAPACITY = 4096; //Events kept per thread, a power of two. About 86 KB per ring
+    static final int MAX_RINGS = 16;
+
+    static final int MAGIC = 0x54524345; //"TRCE"
+    static final int VERSION = 1;
+
+    private static final long BASE_NANOS = System.nanoTime(); //Time 0 of the trace
+    private static final long BASE_MILLIS = System.currentTimeMillis(); //Wall clock at time 0
+
+    private static volatile boolean enabled = true;
+    private static final int[] sampleEvery = {1, 1, 1, 1, 1, 1}; //Record one in every n events of each type
+
+    private static Ring[] rings = new Ring[0]; //Every ring handed out, guarded by Tracer.class
+    private static final Ring NOT_TRACED = new Ring("", null, 1); //Given to threads beyond MAX_RINGS
+
+    private static final ThreadLocal<Ring> currentRing = new ThreadLocal<Ring>(){
+        @Override
+        protected Ring initialValue() {
+            return ringFor(Thread.currentThread());
+        }
+    };
+
+    /*
+    Records an event of the given type with its fields on the calling thread's ring
+     */
+    public static void trace(int type, int a, int b, int c){
+        if(enabled){
+            currentRing.get().add(type, a, b, c);
+        }
+    }
+
+    public static void trace(int type, int a, int b){
+        trace(type, a, b, 0);
+    }
+
+    public static void trace(int type, int a){
+        trace(type, a, 0, 0);
+    }
+
+    public static void setEnabled(boolean on){
+        enabled = on;
+    }
+
+    /*
+    Records only one in every every events of type, e.g. to keep readings from pushing everything else out of the ring.
+    1 records all of them
+     */
+    public static void setSampling(int type, int every){
+        sampleEvery[type] = Math.max(1, every);
+    }
+
+    /*
+    Events of each type traced so far over all threads, including those not recorded because of sampling, as text
+     */
+    public static String summary(){
+        long[] traced = new long[NAMES.length];
+        long[] recorded = new long[NAMES.length];
+        Ring[] all;
+        synchronized (Tracer.class){
+            all = rings;
+        }
+        for(Ring ring : all){
+            for(int type = 0; type < NAMES.length; type++){
+                traced[type] += ring.traced[type];
+                recorded[type] += ring.recorded[type];
+            }
+        }
+        StringBuilder text = new StringBuilder();
+        text.append("threads: ").append(all.length).append('\n');
+        for(int type = 0; type < NAMES.length; type++){
+            text.append(NAMES[type]).append(": ").append(traced[type]);
+            if(recorded[type] != traced[type]){
+                text.append(" (").append(recorded[type]).append(" recorded)");
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    /*
+    Copies the events currently held by every ring
+     */
+    public static Snapshot snapshot(){
+        Ring[] all;
+        synchronized (Tracer.class){
+            all = rings;
+        }
+        Snapshot snapshot = new Snapshot(all.length, BASE_MILLIS);
+        for(int i = 0; i < all.length; i++){
+            all[i].copyInto(snapshot, i);
+        }
+        return snapshot;
+    }
+
+    /*
+    The ring for a thread tracing for the first time: the ring of an ended thread with the same name, else a new one
+     */
+    private static synchronized Ring ringFor(Thread thread){
+        String name = thread.getName();
+        for(Ring ring : rings){
+            if(ring.name.equals(name) && !ring.owner.isAlive()){
+                ring.owner = thread;
+                return ring;
+            }
+        }
+        if(rings.length == MAX_RINGS){
+            return NOT_TRACED;
+        }
+        Ring ring = new Ring(name, thread, RING_CAPACITY);
+        Ring[] grown = new Ring[rings.length + 1];
+        System.arraycopy(rings, 0, grown, 0, rings.length);
+        grown[rings.length] = ring;
+        rings = grown;
+        return ring;
+    }
+
+    /**
+     * Events of one thread, stored in columns
+     */
+    private static class Ring {
+
+        final String name;
+        volatile Thread owner; //The only thread that adds to the ring
+        private final long[] time; //System.nanoTime() - BASE_NANOS
+        private final byte[] type;
+        private final int[] a, b, c;
+        private final int mask;
+        private volatile long count; //Events ever added, written after the event so readers never count a partial one
+
+        final long[] traced = new long[NAMES.length]; //Events traced of each type, sampled out or not
+        final long[] recorded = new long[NAMES.length];
+        private final int[] untilSample = new int[NAMES.length]; //Events of each type until the next one recorded
+
+        Ring(String name, Thread owner, int capacity){
+            this.name = name;
+            this.owner = owner;
+            time = new long[capacity];
+            type = new byte[capacity];
+            a = new int[capacity];
+            b = new int[capacity];
+            c = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        void add(int eventType, int first, int second, int third){
+            if(owner == null){ //NOT_TRACED
+                return;
+            }
+            traced[eventType]++;
+            if(--untilSample[eventType] > 0){
+                return;
+            }
+            untilSample[eventType] = sampleEvery[eventType];
+            recorded[eventType]++;
+            long next = count;
+            int position = (int) (next & mask);
+            time[position] = System.nanoTime() - BASE_NANOS;
+            type[position] = (byte) eventType;
+            a[position] = first;
+            b[position] = second;
+            c[position] = third;
+            count = next + 1;
+        }
+
+        /*
+        Copies the ring's events into entry index of snapshot, without the ones the owner overwrote meanwhile
+         */
+        void copyInto(Snapshot snapshot, int index){
+            int capacity = mask + 1;
+            long end = count;
+            long start = Math.max(0, end - capacity);
+            int length = (int) (end - start);
+            long[] times = new long[length];
+            byte[] types = new byte[length];
+            int[] as = new int[length], bs = new int[length], cs = new int[length];
+            for(int i = 0; i < length; i++){
+                int position = (int) ((start + i) & mask);
+                times[i] = time[position];
+                types[i] = type[position];
+                as[i] = a[position];
+                bs[i] = b[position];
+                cs[i] = c[position];
+            }
+            //While copying the owner may have overwritten events up to the one it is writing now, count
+            int skip = (int) Math.max(0, Math.min(length, count - capacity + 1 - start));
+            snapshot.set(index, name, skip, times, types, as, bs, cs);
+        }
+    }
+
+    /**
+     * The events of every ring at one moment
+     */
+    public static class Snapshot {
+
+        private final long baseMillis; //Wall clock at time 0
+        private final String[] threads;
+        private final long[][] times; //Nanoseconds since time 0
+        private final byte[][] types;
+        private final int[][] a, b, c;
+
+        Snapshot(int rings, long baseMillis){
+            this.baseMillis = baseMillis;
+            threads = new String[rings];
+            times = new long[rings][];
+            types = new byte[rings][];
+            a = new int[rings][];
+            b = new int[rings][];
+            c = new int[rings][];
+        }
+
+        void set(int ring, String thread, int skip, long[] ringTimes, byte[] ringTypes, int[] ringA, int[] ringB,
+                 int[] ringC){
+            int length = ringTimes.length - skip;
+            threads[ring] = thread;
+            times[ring] = new long[length];
+            types[ring] = new byte[length];
+            a[ring] = new int[length];
+            b[ring] = new int[length];
+            c[ring] = new int[length];
+            System.arraycopy(ringTimes, skip, times[ring], 0, length);
+            System.arraycopy(ringTypes, skip, types[ring], 0, length);
+            System.arraycopy(ringA, skip, a[ring], 0, length);
+            System.arraycopy(ringB, skip, b[ring], 0, length);
+            System.arraycopy(ringC, skip, c[ring], 0, length);
+        }
+
+        /*
+        Total number of events
+         */
+        public int size(){
+            int size = 0;
+            for(long[] ring : times){
+                size += ring.length;
+            }
+            return size;
+        }
+
+        /*
+        Writes the events as lines of text in time order, e.g. "12.345 CommandScheduler command m 238/238 #17"
+         */
+        public void writeText(Writer out) throws IOException {
+            int[] next = new int[threads.length]; //Next event of each ring
+            StringBuilder line = new StringBuilder();
+            while(true){
+                int ring = -1;
+                for(int i = 0; i < threads.length; i++){
+                    if(next[i] < times[i].length && (ring < 0 || times[i][next[i]] < times[ring][next[ring]])){
+                        ring = i;
+                    }
+                }
+                if(ring < 0){
+                    break;
+                }
+                int event = next[ring]++;
+                line.setLength(0);
+                format(line, times[ring][event], threads[ring], types[ring][event], a[ring][event], b[ring][event],
+                        c[ring][event]);
+                out.write(line.toString());
+            }
+            out.flush();
+        }
+
+        /*
+        Writes the events in the binary format read by read(): a header (magic, version, wall clock milliseconds at
+        time 0 and the number of rings), then for each ring its thread name, its number of events and each event as
+        time (long), type (byte) and its three fields (ints), 21 bytes per event
+         */
+        public void write(DataOutputStream out) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(baseMillis);
+            out.writeInt(threads.length);
+            for(int ring = 0; ring < threads.length; ring++){
+                out.writeUTF(threads[ring]);
+                out.writeInt(times[ring].length);
+                for(int i = 0; i < times[ring].length; i++){
+                    out.writeLong(times[ring][i]);
+                    out.writeByte(types[ring][i]);
+                    out.writeInt(a[ring][i]);
+                    out.writeInt(b[ring][i]);
+                    out.writeInt(c[ring][i]);
+                }
+            }
+            out.flush();
+        }
+
+        /*
+        Reads a snapshot written by write()
+         */
+        public static Snapshot read(DataInputStream in) throws IOException {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION){
+                throw new IOException("Not a trace");
+            }
+            long baseMillis = in.readLong();
+            Snapshot snapshot = new Snapshot(in.readInt(), baseMillis);
+            for(int ring = 0; ring < snapshot.threads.length; ring++){
+                String thread = in.readUTF();
+                int length = in.readInt();
+                long[] times = new long[length];
+                byte[] types = new byte[length];
+                int[] as = new int[length], bs = new int[length], cs = new int[length];
+                for(int i = 0; i < length; i++){
+                    times[i] = in.readLong();
+                    types[i] = in.readByte();
+                    as[i] = in.readInt();
+                    bs[i] = in.readInt();
+                    cs[i] = in.readInt();
+                }
+                snapshot.set(ring, thread, 0, times, types, as, bs, cs);
+            }
+            return snapshot;
+        }
+
+        public long getBaseMillis(){
+            return baseMillis;
+        }
+    }
+
+    /*
+    Appends one event as a line of text: milliseconds since time 0, the thread and the event with its fields
+     */
+    static void format(StringBuilder line, long time, String thread, int type, int a, int b, int c){
+        line.append(time / 1000000).append('.');
+        long micros = time / 1000 % 1000;
+        line.append(micros < 100 ? micros < 10 ? "00" : "0" : "").append(micros).append(' ').append(thread).append(' ');
+        line.append(type >= 0 && type < NAMES.length ? NAMES[type] : "type " + type);
+        switch (type){
+            case COMMAND:
+                line.append(' ').append((char) a).append(' ').append(SpeedControl.left(b)).append('/')
+                        .append(SpeedControl.right(b)).append(" #").append(c);
+                break;
+            case READING:
+                line.append(' ').append(Float.intBitsToFloat(a)).append(" #").append(b);
+                break;
+            case PARSE_ERROR:
+                line.append(a == PARSE_TOO_LONG ? " too long" : " malformed");
+                break;
+            case MODE_CHANGE:
+                line.append(' ').append(a).append(" -> ").append(b);
+                break;
+            case EMERGENCY_STOP:
+                line.append(a != 0 ? " automatic" : " user");
+                break;
+            default:
+                line.append(' ').append(a);
+        }
+        line.append('\n');
+    }
+
+    /*
+    Prints the trace in each binary file given as text
+     */
+    public static void main(String[] args) throws IOException {
+        Writer out = new OutputStreamWriter(System.out, "UTF-8");
+        for(String path : args){
+            DataInputStream in = new DataInputStream(new FileInputStream(new File(path)));
+            try {
+                Snapshot snapshot = Snapshot.read(in);
+                out.write("# " + path + ": " + snapshot.size() + " events, time 0 at " + snapshot.getBaseMillis()
+                        + " ms since 1970\n");
+                snapshot.writeText(out);
+            } finally {
+                in.close();
+            }
+        }
+        out.flush();
+    }
+}
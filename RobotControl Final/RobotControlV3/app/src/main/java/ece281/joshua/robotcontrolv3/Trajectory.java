@@ -0,0 +1,224 @@
+package ece281.joshua.robotcontrolv3;
+
+/**
+ * A short plan of motor speeds that the robot runs by itself, so the link carries one upload per manoeuvre instead of a
+ * setpoint every tick, and a late or lost command no longer turns into a jerk of the motors.
+ *
+ * A trajectory is a list of segments, each a left speed, a right speed and a duration in milliseconds. hold() appends a
+ * segment and rampTo() appends the steps of a slew limited change from the speeds the trajectory ends on so far. When
+ * the last segment is over the robot stops, so a trajectory that is not renewed in time stops the robot.
+ *
+ * encode() writes a trajectory frame into a reused buffer:
+ *      [SYNC][count][sequence][segment 1]...[segment count][checksum]
+ * where each segment is 4 bytes, [left magnitude][right magnitude][left sign, right sign, duration high 6 bits]
+ * [duration low], and the checksum is the low byte of the sum of every byte after SYNC, as for CommandFrame. A frame
+ * with no segments only asks for a distance reading and leaves a running trajectory alone. The longest frame fits in
+ * the arduino's 64 byte receive buffer. A new trajectory replaces the running one, and any other command cancels it.
+ *
+ * Not thread safe, a trajectory is planned and encoded on one thread.
+ */
+public class Trajectory {
+
+    public static final byte SYNC = (byte) 0xA6; //First byte of a trajectory frame, like CommandFrame.SYNC never a mode character
+    public static final char MODE = 't'; //Mode character trajectories are submitted under, it is not sent
+    public static final int MAX_SEGMENTS = 12;
+    public static final int HEADER_LENGTH = 3;
+    public static final int SEGMENT_LENGTH = 4;
+    public static final int MAX_LENGTH = HEADER_LENGTH + MAX_SEGMENTS * SEGMENT_LENGTH + 1;
+    public static final int MAX_DURATION = 0x3FFF; //Longest segment in milliseconds, 14 bits
+
+    static final int RAMP_STEP = 50; //Milliseconds per step of a ramp, unless there are too few segments left for that
+
+    private final short[] left = new short[MAX_SEGMENTS];
+    private final short[] right = new short[MAX_SEGMENTS];
+    private final int[] duration = new int[MAX_SEGMENTS];
+    private int count;
+    private int endLeft, endRight; //Speeds at the end of the trajectory so far, where the next ramp starts
+    private float slewRate; //Largest change of either speed per second
+
+    private final byte[] buffer = new byte[MAX_LENGTH];
+
+    /*
+    slewRate is the most either speed may change in a second
+     */
+    public Trajectory(float slewRate){
+        this.slewRate = slewRate;
+    }
+
+    public void setSlewRate(float slewRate){
+        this.slewRate = slewRate;
+    }
+
+    /*
+    Empties the trajectory. The robot is running at left, right, which is where the first ramp starts from
+     */
+    public void clear(int left, int right){
+        count = 0;
+        endLeft = left;
+        endRight = right;
+    }
+
+    /*
+    Appends running at left, right for duration milliseconds, split into several segments if longer than MAX_DURATION.
+    Returns false, appending nothing, if there is no room
+     */
+    public boolean hold(int left, int right, int duration){
+        int rest = duration; //What does not fit in the last segment and needs new ones
+        if(count > 0 && this.left[count - 1] == left && this.right[count - 1] == right){
+            rest -= MAX_DURATION - this.duration[count - 1];
+        }
+        if(count + Math.max(0, (rest + MAX_DURATION - 1) / MAX_DURATION) > MAX_SEGMENTS){
+            return false;
+        }
+        while(duration > 0){
+            duration -= append(left, right, duration);
+        }
+        return true;
+    }
+
+    /*
+    Appends a ramp from the current end speeds to left, right in equal steps, changing neither speed faster than the
+    slew rate. Steps are RAMP_STEP long when there are enough segments left, longer otherwise, and the last step reaches
+    the target. Returns false, appending nothing, if not even one segment is left
+     */
+    public boolean rampTo(int left, int right){
+        int change = Math.max(Math.abs(left - endLeft), Math.abs(right - endRight));
+        if(change == 0){
+            return true;
+        }
+        if(count == MAX_SEGMENTS){
+            return false;
+        }
+        int time = (int) Math.ceil(change * 1000 / slewRate); //Milliseconds the change takes at the slew rate
+        int steps = Math.max(1, Math.min(MAX_SEGMENTS - count, (time + RAMP_STEP - 1) / RAMP_STEP));
+        int stepTime = Math.max(1, (time + steps - 1) / steps);
+        int startLeft = endLeft, startRight = endRight;
+        for(int i = 1; i <= steps; i++){
+            append(startLeft + (left - startLeft) * i / steps, startRight + (right - startRight) * i / steps,
+                    stepTime);
+        }
+        return true;
+    }
+
+    public int getCount(){
+        return count;
+    }
+
+    public int getLeft(int segment){
+        return left[segment];
+    }
+
+    public int getRight(int segment){
+        return right[segment];
+    }
+
+    public int getDuration(int segment){
+        return duration[segment];
+    }
+
+    /*
+    Milliseconds from the start of the trajectory to the end of its last segment
+     */
+    public int getTotalDuration(){
+        int total = 0;
+        for(int i = 0; i < count; i++){
+            total += duration[i];
+        }
+        return total;
+    }
+
+    /*
+    The speeds time milliseconds after the start, packed as in SpeedControl, and 0, 0 once the trajectory is over
+     */
+    public int speedsAt(long time){
+        for(int i = 0; i < count; i++){
+            if(time < duration[i]){
+                return SpeedControl.pack(left[i], right[i]);
+            }
+            time -= duration[i];
+        }
+        return SpeedControl.pack(0, 0);
+    }
+
+    /*
+    Encodes the trajectory into the internal buffer with the given sequence number (see CommandFrame.nextSequence())
+    and returns the number of bytes to send
+     */
+    public int encode(int sequence){
+        buffer[0] = SYNC;
+        buffer[1] = (byte) count;
+        buffer[2] = (byte) sequence;
+        int position = HEADER_LENGTH;
+        for(int i = 0; i < count; i++){
+            buffer[position] = (byte) Math.abs(left[i]);
+            buffer[position + 1] = (byte) Math.abs(right[i]);
+            buffer[position + 2] = (byte) ((left[i] < 0 ? 0x80 : 0) | (right[i] < 0 ? 0x40 : 0) | (duration[i] >> 8));
+            buffer[position + 3] = (byte) duration[i];
+            position += SEGMENT_LENGTH;
+        }
+        buffer[position] = CommandFrame.checksum(buffer, 1, position - 1);
+        return position + 1;
+    }
+
+    /*
+    Sequence number of the last encoded trajectory
+     */
+    public int getSequence(){
+        return buffer[2] & 0xFF;
+    }
+
+    /*
+    Returns the buffer holding the last encoded trajectory, overwritten by the next call to encode()
+     */
+    public byte[] getBuffer(){
+        return buffer;
+    }
+
+    /*
+    Length of a whole frame with the given number of segments
+     */
+    public static int frameLength(int segments){
+        return HEADER_LENGTH + segments * SEGMENT_LENGTH + 1;
+    }
+
+    /*
+    Decodes the left speed of the given segment of a received frame
+     */
+    public static int segmentLeft(byte[] frame, int segment){
+        int position = HEADER_LENGTH + segment * SEGMENT_LENGTH;
+        int magnitude = frame[position] & 0xFF;
+        return (frame[position + 2] & 0x80) != 0 ? -magnitude : magnitude;
+    }
+
+    public static int segmentRight(byte[] frame, int segment){
+        int position = HEADER_LENGTH + segment * SEGMENT_LENGTH;
+        int magnitude = frame[position + 1] & 0xFF;
+        return (frame[position + 2] & 0x40) != 0 ? -magnitude : magnitude;
+    }
+
+    public static int segmentDuration(byte[] frame, int segment){
+        int position = HEADER_LENGTH + segment * SEGMENT_LENGTH;
+        return ((frame[position + 2] & 0x3F) << 8) | (frame[position + 3] & 0xFF);
+    }
+
+    /*
+    Appends up to duration milliseconds at left, right, merging with the last segment if it runs at the same speeds.
+    Returns the milliseconds appended, less than duration if a segment became full
+     */
+    private int append(int left, int right, int duration){
+        endLeft = left;
+        endRight = right;
+        if(count > 0 && this.left[count - 1] == left && this.right[count - 1] == right
+                && this.duration[count - 1] < MAX_DURATION){
+            int added = Math.min(duration, MAX_DURATION - this.duration[count - 1]);
+            this.duration[count - 1] += added;
+            return added;
+        }
+        int added = Math.min(duration, MAX_DURATION);
+        this.left[count] = (short) left;
+        this.right[count] = (short) right;
+        this.duration[count] = added;
+        count++;
+        return added;
+    }
+}
@@ -0,0 +1,55 @@
+package ece281.joshua.robotcontrolv3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning the current state flag and motor speeds into bytes to send, as done by MainActivity.sendData() on
+ * every tick. legacyString() is the original String concatenation kept as a baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandEncodingBenchmark {
+
+    private static final int[] SPEEDS = {238, -238, 0, 125, -100, 7, 250, -5};
+
+    private final CommandFrame binaryFrame = new CommandFrame(CommandFrame.FORMAT_BINARY);
+    private final CommandFrame textFrame = new CommandFrame(CommandFrame.FORMAT_TEXT);
+    private int tick;
+
+    @Setup
+    public void setup(){
+        tick = 0;
+    }
+
+    @Benchmark
+    public byte[] legacyString(){
+        tick++;
+        char stateFlag = 'm';
+        String toSend = stateFlag + Integer.toString(SPEEDS[tick & 7]);
+        toSend += "n"+ Integer.toString(SPEEDS[(tick + 3) & 7]);
+        return toSend.getBytes();
+    }
+
+    @Benchmark
+    public int binaryFrame(){
+        tick++;
+        return binaryFrame.encode('m', SPEEDS[tick & 7], SPEEDS[(tick + 3) & 7]);
+    }
+
+    @Benchmark
+    public int textFrame(){
+        tick++;
+        return textFrame.encode('m', SPEEDS[tick & 7], SPEEDS[(tick + 3) & 7]);
+    }
+}
@@ -0,0 +1,74 @@
+package ece281.joshua.robotcontrolv3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip time of one command to one robot of a fleet of emulated robots, as the fleet grows. Every robot in the
+ * fleet is connected and kept alive by the same two fleet threads, so the time staying flat as robots is raised shows
+ * that servicing more robots does not slow down each one. A round trip ends at the reply echoing the sequence number of
+ * a command carrying the benchmark's own command, and fails the run after REPLY_TIMEOUT without one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FleetBenchmark {
+
+    static final long REPLY_TIMEOUT = 2000000000L; //Nanoseconds
+
+    @Param({"1", "10", "50", "100"})
+    public int robots;
+
+    private FleetController fleet;
+    private int next;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        fleet = new FleetController(2);
+        for(int i = 0; i < robots; i++){
+            PipedTransport transport = new PipedTransport(4096);
+            new ArduinoEmulator(i).start(transport.getPeer());
+            fleet.add(transport, 0);
+        }
+        fleet.start();
+        for(int i = 0; i < robots; i++){
+            while(!fleet.get(i).isConnected()){
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown(){
+        fleet.stop();
+    }
+
+    @Benchmark
+    public int roundTrip(){
+        FleetRobot robot = fleet.get(next++ % robots);
+        int version = DriveState.version(robot.command('m', 0, next & 0xFF));
+        long deadline = System.nanoTime() + REPLY_TIMEOUT;
+        while(robot.getAnsweredVersion() != version){
+            if(System.nanoTime() - deadline > 0){
+                throw new IllegalStateException("No reply from robot " + robot.getId());
+            }
+            Thread.yield();
+        }
+        return version;
+    }
+}
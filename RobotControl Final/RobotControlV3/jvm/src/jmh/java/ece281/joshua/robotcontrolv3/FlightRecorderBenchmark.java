@@ -0,0 +1,58 @@
+package ece281.joshua.robotcontrolv3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Cost of recording one command and one distance reading into the flight recorder, compared with building the strings
+ * the Log.d calls used to log for the same events.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlightRecorderBenchmark {
+
+    private File file;
+    private FlightRecorder recorder;
+    private int sequence;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = File.createTempFile("flight", ".rec");
+        recorder = new FlightRecorder(file, 65536);
+    }
+
+    @TearDown
+    public void tearDown(){
+        file.delete();
+    }
+
+    @Benchmark
+    public int logStrings(){
+        int s = sequence++;
+        String toSend = "m" + 238 + "n" + (s & 0xFF) + "s" + (s & 0xFF);
+        String distance = Integer.toString(s & 0x7F);
+        return toSend.length() + distance.length();
+    }
+
+    @Benchmark
+    public long recorder(){
+        int s = sequence++;
+        recorder.recordCommand('m', 238, s & 0xFF, s & 0xFF);
+        recorder.recordDistance(s & 0x7F, s & 0xFF);
+        return recorder.getCount();
+    }
+}
@@ -0,0 +1,52 @@
+package ece281.joshua.robotcontrolv3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the per-event speed calculations: the accelerometer mapping done in MainActivity.onSensorChanged(), first the
+ * original unfiltered tiltToSpeeds() and then the TiltControl pipeline that replaced it, and the range validation done in
+ * MainActivity.setSpeed()
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpeedControlBenchmark {
+
+    //Accelerometer readings covering flat, forwards, backwards and both sideways tilts
+    private static final float[] X_AXIS = {0.1f, -0.4f, 4.7f, -5.2f, 1.9f, 0.0f, -1.1f, 8.3f};
+    private static final float[] Y_AXIS = {0.2f, -6.3f, 3.1f, 0.5f, -9.6f, 7.7f, -2.4f, 0.0f};
+    private static final int[] SPEEDS = {238, -238, 0, 255, -100, 7, -255, 254};
+
+    private final TiltControl tiltControl = new TiltControl(0.15f, 1.0f, 4, 238);
+    private long timestamp;
+    private int event;
+
+    @Benchmark
+    public int tiltToSpeeds(){
+        int i = event++ & 7;
+        return SpeedControl.tiltToSpeeds(X_AXIS[i], Y_AXIS[i]);
+    }
+
+    @Benchmark
+    public int tiltControl(){
+        int i = event++ & 7;
+        timestamp += 20000000; //50 Hz
+        tiltControl.update(X_AXIS[i], Y_AXIS[i], timestamp);
+        return tiltControl.getSpeeds();
+    }
+
+    @Benchmark
+    public boolean isValidSpeed(){
+        int i = event++ & 7;
+        return SpeedControl.isValidSpeed(SPEEDS[i], SPEEDS[(i + 5) & 7]);
+    }
+}
@@ -0,0 +1,56 @@
+package ece281.joshua.robotcontrolv3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning one received distance line into an int for the display. legacyHandler() is the String based parse
+ * that used to run in MainActivity's handler, decoder() is TelemetryDecoder fed the same bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TelemetryParseBenchmark implements TelemetryDecoder.Listener {
+
+    private static final byte[][] LINES = {
+            "23.45\r\n".getBytes(), "187.02\r\n".getBytes(), "0.00\r\n".getBytes(), "64.90\r\n".getBytes()
+    };
+
+    private final TelemetryDecoder decoder = new TelemetryDecoder(this);
+    private int lastDistance;
+    private int line;
+
+    @Benchmark
+    public int legacyHandler(){
+        byte[] readBuf = LINES[line++ & 3];
+        String readMessage= new String(readBuf, 0, readBuf.length);
+        int endIndex = readMessage.indexOf("\n");
+        readMessage = readMessage.substring(0, endIndex);
+        try{
+            float f = Float.parseFloat(readMessage);
+            return Math.round(f);
+        }catch(NumberFormatException e){
+            return -1;
+        }
+    }
+
+    @Benchmark
+    public int decoder(){
+        byte[] readBuf = LINES[line++ & 3];
+        decoder.feed(readBuf, 0, readBuf.length);
+        return lastDistance;
+    }
+
+    @Override
+    public void onDistance(float distance, int sequence) {
+        lastDistance = Math.round(distance);
+    }
+}
@@ -0,0 +1,47 @@
+package ece281.joshua.robotcontrolv3;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of tracing one command and one reading, compared with building the strings the Log.d calls used to log for the
+ * same events, on one thread and on four tracing at once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TracerBenchmark {
+
+    private int sequence;
+
+    @Benchmark
+    public int logStrings(){
+        int s = sequence++;
+        String command = 'm' + Integer.toString(238) + "n" + (s & 0xFF) + " #" + (s & 0xFF);
+        String distance = Integer.toString(s & 0x7F);
+        return command.length() + distance.length();
+    }
+
+    @Benchmark
+    public int trace(){
+        int s = sequence++;
+        Tracer.trace(Tracer.COMMAND, 'm', SpeedControl.pack(238, s & 0xFF), s & 0xFF);
+        Tracer.trace(Tracer.READING, Float.floatToIntBits(s & 0x7F), s & 0xFF);
+        return s;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int traceFourThreads(){
+        return trace();
+    }
+}
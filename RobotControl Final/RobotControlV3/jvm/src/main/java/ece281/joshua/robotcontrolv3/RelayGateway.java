@@ -0,0 +1,408 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless gateway that owns the link to one robot and shares it over TCP: one controlling client sends commands and any
+ * number of viewers watch the distance readings.
+ *
+ * The robot is kept connected by a ConnectionManager, the same read loop the app uses, over any RobotTransport.
+ *
+ * The controller sends binary CommandFrame frames. Each valid frame replaces the command to send (latest wins) and a
+ * CommandScheduler forwards it to the robot through a CommandWriter, so a controller sending faster than the robot can
+ * take commands only makes the older commands get skipped, and a stalled link does not hold up the scheduler. A second controller is refused while one is connected, and the robot is stopped when
+ * the controller disconnects. The controller also receives the readings, like a viewer.
+ *
+ * Each reading is formatted once, as "distance\r\n" without the gateway's own sequence numbers, straight into the newest
+ * of a ring of BLOCKS blocks, and published by advancing the block's length. The bytes of a block are never changed once
+ * published, and a full block is replaced in the ring by a new one rather than reused, so every viewer writes the
+ * published bytes to its socket straight from the shared block, with no copy of its own and no check for overwriting.
+ * Every viewer has its own thread and cursor. The reading thread never waits for a viewer: a viewer that falls more than
+ * half the ring behind, or finds its next block already replaced, skips ahead to the newest reading and the bytes it
+ * missed are counted. A viewer stuck in a write keeps only its current block from being collected.
+ *
+ * Usage: RelayGateway <host:port of the robot, or "emulator"> [control port] [viewer port]
+ */
+public class RelayGateway implements ConnectionManager.Listener {
+
+    static final int BLOCK_SIZE = 4096; //Bytes of readings per block, so at most this many are written to a viewer at once
+    static final int BLOCKS = 16; //Blocks kept for viewers, a power of two
+    static final int BLOCK_MASK = BLOCKS - 1;
+    static final long MIN_INTERVAL = 40; //Milliseconds between two commands to the robot
+    static final long KEEP_ALIVE_INTERVAL = 100; //Milliseconds after which the command is resent, so readings keep coming
+
+    private final ConnectionManager robot;
+    private final CommandScheduler scheduler;
+    private final CommandWriter writer;
+    private final CommandFrame commandFrame = new CommandFrame(CommandFrame.FORMAT_BINARY); //Guarded by itself
+    private final DriveState command = new DriveState('i'); //Latest command from the controller, mode is its character
+
+    /*
+    Readings formatted for the viewers. Only the first length bytes are published, and those never change
+     */
+    private static final class Block {
+        final long number; //Blocks ever started before this one
+        final long start; //Reading bytes ever published before this block
+        final byte[] bytes = new byte[BLOCK_SIZE];
+        volatile int length;
+
+        Block(long number, long start){
+            this.number = number;
+            this.start = start;
+        }
+    }
+
+    //Readings for the viewers. Blocks are only added by the robot's ConnectionThread, and the newest is published last
+    private final Block[] ring = new Block[BLOCKS];
+    private volatile Block newest = new Block(0, 0);
+    private final Object ringLock = new Object(); //Viewers wait on it for the next reading
+    private volatile boolean running;
+
+    private final Object controllerLock = new Object();
+    private Socket controller; //Guarded by controllerLock
+
+    //Statistics
+    private volatile long commandsReceived; //Valid frames from the controller
+    private volatile long rejectedFrames; //Frames from the controller with a bad checksum
+    private final AtomicLong viewerCount = new AtomicLong(); //Viewers currently connected, including the controller
+    private final AtomicLong skippedBytes = new AtomicLong(); //Reading bytes skipped by viewers that fell behind
+    private final AtomicLong overruns = new AtomicLong(); //Blocks replaced before a viewer got to them
+
+    public RelayGateway(RobotTransport transport){
+        ring[0] = newest;
+        robot = new ConnectionManager(transport, this);
+        writer = new CommandWriter(robot, null);
+        scheduler = new CommandScheduler(new CommandScheduler.Sender() {
+            @Override
+            public boolean sendCommand(long inputTime) {
+                return forward(inputTime);
+            }
+        }, KEEP_ALIVE_INTERVAL, MIN_INTERVAL, KEEP_ALIVE_INTERVAL);
+    }
+
+    /*
+    Connects to the robot and starts forwarding commands
+     */
+    public void start(){
+        running = true;
+        robot.start();
+        writer.start();
+        scheduler.start();
+    }
+
+    /*
+    Stops the robot, disconnects from it and releases every viewer thread
+     */
+    public void stop(){
+        running = false;
+        scheduler.stop();
+        writer.stop();
+        command.set('i', 0, 0, 0);
+        if(robot.isConnected()){
+            synchronized (commandFrame){ //Written straight away rather than queued, so it is sent before disconnecting
+                int length = commandFrame.encode('i', 0, 0);
+                try {
+                    robot.write(commandFrame.getBuffer(), 0, length);
+                } catch (IOException e) {
+                    //Already disconnected
+                }
+            }
+        }
+        robot.stop();
+        synchronized (ringLock){
+            ringLock.notifyAll();
+        }
+    }
+
+    /*
+    Accepts controllers on port, on a new daemon thread
+     */
+    public ServerSocket listenForController(int port) throws IOException {
+        return listen(port, true);
+    }
+
+    /*
+    Accepts viewers on port, on a new daemon thread
+     */
+    public ServerSocket listenForViewers(int port) throws IOException {
+        return listen(port, false);
+    }
+
+    /*
+    Serves one controlling client on the calling thread until it disconnects. Returns false straight away if another
+    controller is already connected
+     */
+    public boolean control(Socket socket) throws IOException {
+        synchronized (controllerLock){
+            if(controller != null){
+                return false;
+            }
+            controller = socket;
+        }
+        Thread viewer = startViewer(socket);
+        try {
+            readCommands(socket.getInputStream());
+        } finally {
+            synchronized (controllerLock){
+                controller = null;
+            }
+            command.set('i', 0, 0, 0); //Nobody is in control any more, so the robot stops
+            scheduler.requestSend();
+            socket.close();
+            viewer.interrupt();
+        }
+        return true;
+    }
+
+    /*
+    Sends readings to one viewer on the calling thread until it disconnects or the gateway stops
+     */
+    public void view(OutputStream out) throws IOException {
+        viewerCount.incrementAndGet();
+        try {
+            Block block = newest;
+            int offset = block.length; //Starts with the next reading. Always at the start of a line
+            while(running){
+                Block latest;
+                int length;
+                synchronized (ringLock){
+                    while((latest = newest) == block && (length = block.length) == offset && running){
+                        try {
+                            ringLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    length = block.length;
+                }
+
+                if(length > offset){
+                    out.write(block.bytes, offset, length - offset);
+                    out.flush();
+                    offset = length;
+                }
+                if(latest != block && offset == block.length){ //Full, as the next block was started
+                    Block next = ring[(int) ((block.number + 1) & BLOCK_MASK)];
+                    if(next.number != block.number + 1){
+                        overruns.incrementAndGet();
+                    }
+                    if(next.number != block.number + 1 || latest.number - block.number > BLOCKS / 2){
+                        int newestLength = latest.length; //Skips to the newest reading
+                        skippedBytes.addAndGet(latest.start + newestLength - block.start - offset);
+                        block = latest;
+                        offset = newestLength;
+                    }else{
+                        block = next;
+                        offset = 0;
+                    }
+                }
+            }
+        } finally {
+            viewerCount.decrementAndGet();
+        }
+    }
+
+    public ConnectionManager getRobot(){
+        return robot;
+    }
+
+    public CommandScheduler getScheduler(){
+        return scheduler;
+    }
+
+    public CommandWriter getWriter(){
+        return writer;
+    }
+
+    public long getCommandsReceived(){
+        return commandsReceived;
+    }
+
+    public long getRejectedFrames(){
+        return rejectedFrames;
+    }
+
+    public long getViewerCount(){
+        return viewerCount.get();
+    }
+
+    public long getSkippedBytes(){
+        return skippedBytes.get();
+    }
+
+    public long getOverruns(){
+        return overruns.get();
+    }
+
+    /*
+    Called by the robot's ConnectionThread with each reading, publishes it to the viewers
+     */
+    @Override
+    public void onDistance(float distance, int sequence) {
+        Block block = newest;
+        int offset = block.length;
+        if(BLOCK_SIZE - offset < TelemetryDecoder.MAX_FORMATTED_LENGTH){ //Lines never span two blocks
+            block = new Block(block.number + 1, block.start + offset);
+            ring[(int) (block.number & BLOCK_MASK)] = block;
+            offset = 0;
+        }
+        int length = TelemetryDecoder.format(distance, -1, block.bytes, offset); //Past the published bytes
+        synchronized (ringLock){
+            block.length = offset + length;
+            newest = block;
+            ringLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void onStateChanged(int state) {
+        System.out.println("Robot " + robot.getLink().getTransport().getName() + " state " + state);
+        writer.linkChanged();
+        if(state == ConnectionManager.CONNECTED){ //The writer threw away what was waiting from before
+            scheduler.requestSend();
+        }
+    }
+
+    /*
+    Hands the latest command to the writer, called on the scheduler thread. Returns false while the robot is not
+    connected
+     */
+    private boolean forward(long inputTime){
+        if(!robot.isConnected()){
+            return false;
+        }
+        long snapshot = command.get();
+        synchronized (commandFrame){
+            char mode = (char) DriveState.mode(snapshot);
+            int length = commandFrame.encode(mode, DriveState.left(snapshot), DriveState.right(snapshot));
+            writer.submit(mode, commandFrame.getBuffer(), length, commandFrame.getSequence(), inputTime);
+        }
+        return true;
+    }
+
+    /*
+    Reads frames from the controller until it disconnects, replacing the command with each valid one
+     */
+    private void readCommands(InputStream in) throws IOException {
+        byte[] buffer = new byte[256];
+        byte[] frame = new byte[CommandFrame.BINARY_LENGTH];
+        int frameIndex = 0;
+        while(true){
+            int bytes = in.read(buffer);
+            if(bytes < 0){
+                return;
+            }
+            for(int i = 0; i < bytes; i++){
+                byte b = buffer[i];
+                if(frameIndex == 0 && b != CommandFrame.SYNC){
+                    continue; //Not the start of a frame
+                }
+                frame[frameIndex++] = b;
+                if(frameIndex == CommandFrame.BINARY_LENGTH){
+                    frameIndex = 0;
+                    if(CommandFrame.checksum(frame, 1, 6) == frame[7]){
+                        command.set(frame[1] & 0xFF, 0, (short) ((frame[2] << 8) | (frame[3] & 0xFF)),
+                                (short) ((frame[4] << 8) | (frame[5] & 0xFF)));
+                        commandsReceived++;
+                        scheduler.requestSend();
+                    }else{
+                        rejectedFrames++;
+                    }
+                }
+            }
+        }
+    }
+
+    private ServerSocket listen(int port, final boolean controllers) throws IOException {
+        final ServerSocket server = new ServerSocket(port);
+        Thread thread = new Thread(controllers ? "RelayGateway controllers" : "RelayGateway viewers"){
+            @Override
+            public void run() {
+                while(running && !server.isClosed()){
+                    try {
+                        Socket socket = server.accept();
+                        socket.setTcpNoDelay(true);
+                        if(controllers){
+                            startController(socket);
+                        }else{
+                            startViewer(socket);
+                        }
+                    } catch (IOException e) {
+                        return; //Server socket closed
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    private void startController(final Socket socket){
+        Thread thread = new Thread("RelayGateway controller " + socket.getRemoteSocketAddress()){
+            @Override
+            public void run() {
+                try {
+                    if(!control(socket)){
+                        socket.close(); //Somebody else is in control
+                    }
+                } catch (IOException e) {
+                    //Controller disconnected
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private Thread startViewer(final Socket socket){
+        Thread thread = new Thread("RelayGateway viewer " + socket.getRemoteSocketAddress()){
+            @Override
+            public void run() {
+                try {
+                    view(socket.getOutputStream());
+                } catch (IOException e) {
+                    //Viewer disconnected
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException e) { }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if(args.length < 1){
+            System.out.println("Usage: RelayGateway <host:port of the robot, or emulator> [control port] [viewer port]");
+            return;
+        }
+        RobotTransport transport;
+        if(args[0].equals("emulator")){
+            PipedTransport piped = new PipedTransport(4096);
+            new ArduinoEmulator(0).start(piped.getPeer());
+            transport = piped;
+        }else{
+            int colon = args[0].lastIndexOf(':');
+            transport = new TcpTransport(args[0].substring(0, colon), Integer.parseInt(args[0].substring(colon + 1)), 5000);
+        }
+        int controlPort = args.length > 1 ? Integer.parseInt(args[1]) : 9700;
+        int viewerPort = args.length > 2 ? Integer.parseInt(args[2]) : 9701;
+
+        RelayGateway gateway = new RelayGateway(transport);
+        gateway.start();
+        gateway.listenForController(controlPort);
+        gateway.listenForViewers(viewerPort);
+        System.out.println("Relaying " + transport.getName() + ", controller on port " + controlPort + ", viewers on port "
+                + viewerPort);
+        Thread.currentThread().join(); //Serves until the process is killed
+    }
+}
@@ -0,0 +1,612 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.util.Random;
+
+/**
+ * Deterministic simulation of the robot running Project1_Final.ino in a SimulatedRoom, so speeds and control changes can
+ * be tried against many layouts instead of by driving the real robot into walls.
+ *
+ * Unlike ArduinoEmulator, which answers each command straight away from a one dimensional model, this runs the
+ * firmware's loop() pass by pass in simulated time, and each pass takes as long as it does on the arduino:
+ *  - bytes arrive and leave at 9600 baud, SoftwareSerial keeps at most RX_BUFFER unread bytes and printing the reply
+ *    blocks the loop until it has been sent
+ *  - getDistance() waits for the echo, and when no echo starts pulseIn() waits for its whole timeout and returns 0
+ *  - lcdPrint() initialises the LCD again every time it is called
+ *  - the automatic left turn busy waits LEFT_TIME and every pass ends with delay(30)
+ * Commands are the exact binary frames or text commands MainActivity.sendData() produces, handled by the same steps as
+ * the firmware. The speeds of a manual command are read after its mode character, as ArduinoEmulator does. Trajectory
+ * frames are run segment by segment at the end of each pass, as the firmware's runTrajectory() does.
+ *
+ * The robot is a differential drive whose wheels follow their motors' PWM with a short lag, the left motor being weaker
+ * by the firmware's corFactor unless setLeftMotorStrength() says otherwise. The range finder is ray cast across its beam
+ * against the room's walls, walls struck at a glancing angle reflect the sound away, and the echo time goes through the
+ * firmware's getDistance() formula.
+ *
+ * Time is in microseconds from the start of the simulation and only moves on in advanceTo(), so a run takes as long as
+ * its arithmetic rather than the simulated time and a given seed always gives the same run. Not thread safe, each
+ * simulator is used by one thread (see SimulationRunner for running many in parallel).
+ */
+public class RobotSimulator {
+
+    //Firmware timing, in microseconds
+    static final long BYTE_TIME = 1042; //One byte at 9600 baud, with its start and stop bits
+    static final int RX_BUFFER = 64; //SoftwareSerial's receive buffer, bytes arriving while it is full are lost
+    static final long LOOP_DELAY = 30000; //delay(30) at the end of every pass of loop()
+    static final long LCD_PRINT_TIME = 62000; //lcd.begin() waits 50 ms for the LCD to power up, then initialises and clears it
+    static final long TRIGGER_TIME = 500; //Trigger pulse, temperature reading and the sensor's burst before the echo starts
+    static final long PULSE_IN_TIMEOUT = 1000000; //pulseIn()'s default timeout
+    static final long NO_ECHO_PULSE = 38000; //Echo pulse the range finder gives when nothing is in range
+    static final long LEFT_TIME = 700000; //The firmware's busy waited left turn
+
+    //Firmware constants from Project1_Final.ino
+    static final int WARNING_DISTANCE = 30;
+    static final int CRITICAL_DISTANCE = 20;
+    static final int FORWARD = 0;
+    static final int LEFT = 1;
+    static final int SLOWING = 2;
+    static final int STARTSTATE = 3;
+    static final int IDLE = 5;
+
+    //Robot
+    static final float WHEEL_BASE = 15.3f; //cm, turns the robot 90 degrees in LEFT_TIME at the firmware's turningSpeed
+    static final float ROBOT_RADIUS = 10; //cm
+    static final float SENSOR_OFFSET = 8; //cm from the centre of the robot to the range finder
+    static final float CONTACT_RELEASE = 1; //cm the robot must get clear of a wall before touching it again is a new collision
+    static final float CM_PER_SECOND_PER_PWM = 34.36f / 200; //The firmware's conversion for the speed on the LCD
+    static final float MOTOR_TIME_CONSTANT = 0.05f; //Seconds for a wheel to make 63% of a change in speed
+    static final long PHYSICS_STEP = 1000; //Microseconds the drive is integrated over at a time
+
+    //Range finder
+    static final float MAX_RANGE = 400; //cm, further walls give no echo
+    static final float BEAM_HALF_ANGLE = (float) Math.toRadians(7.5);
+    static final int BEAM_RAYS = 5; //Rays cast across the beam, the nearest echo is measured
+    static final float MIN_ECHO_COS = (float) Math.cos(Math.toRadians(45)); //Walls struck further from square on than this reflect the sound away
+    static final float MILLIVOLTS_PER_COUNT = 5000f / 1024; //analogRead() with the 5V reference
+    static final float MILLIVOLTS_PER_DEGREE = 10; //LM35
+
+    private static final int QUEUE_SIZE = 4096; //Bytes of each direction in flight or waiting, a power of two
+    private static final int QUEUE_MASK = QUEUE_SIZE - 1;
+    private static final float STEP_ALPHA = 1 - (float) Math.exp(-PHYSICS_STEP / 1e6 / MOTOR_TIME_CONSTANT);
+
+    private final SimulatedRoom room;
+    private final Random random;
+
+    //Configuration
+    private int maxSpeed = 238;
+    private int turningSpeed = 100;
+    private double corFactor = 1.042;
+    private float leftStrength = (float) (1 / 1.042); //Speed of the left wheel compared with the right at the same PWM
+    private float noise = 0.3f; //Standard deviation of the range finder in cm
+    private float timeoutProbability; //Chance of no echo starting at all
+    private float temperature = 22; //Degrees C, sets the real speed of sound and the firmware's estimate of it
+
+    private long time; //Latest time passed to advanceTo()
+    private long clock; //The firmware's time while it runs a pass of loop(), and when the next pass starts between them
+
+    //Pose as of physicsTime, which may run ahead of time by the rest of a pass
+    private long physicsTime;
+    private float x, y, heading; //cm, and radians anticlockwise from the x axis
+    private float leftVelocity, rightVelocity; //cm/s of each wheel
+    private boolean touching; //Pressed against a wall
+
+    //Motor outputs as the firmware last wrote them
+    private int leftPwm, rightPwm; //E1 and E2
+    private boolean leftForward = true, rightForward = true; //M1 and M2
+
+    //Firmware variables
+    private int currentState = STARTSTATE;
+    private int commandSequence;
+    private final byte[] frame = new byte[CommandFrame.BINARY_LENGTH];
+    private int frameIndex;
+    private final byte[] command = new byte[RX_BUFFER * 2]; //The String s built from the received bytes
+    private int commandLength;
+    private final byte[] trajectoryFrame = new byte[Trajectory.MAX_LENGTH];
+    private int trajectoryIndex;
+    private final int[] trajectoryLeft = new int[Trajectory.MAX_SEGMENTS];
+    private final int[] trajectoryRight = new int[Trajectory.MAX_SEGMENTS];
+    private final long[] trajectoryDuration = new long[Trajectory.MAX_SEGMENTS]; //Microseconds
+    private int trajectoryCount; //0 when no trajectory is running
+    private int trajectorySegment;
+    private long segmentStart; //clock when the running segment started
+
+    //Bytes in flight, each with the time it has been completely received
+    private final byte[] rxData = new byte[QUEUE_SIZE];
+    private final long[] rxTime = new long[QUEUE_SIZE];
+    private int rxHead, rxTail; //Next byte for the firmware to read, next free slot
+    private long rxFree; //When the link is free for the next byte sent to the robot
+    private final byte[] txData = new byte[QUEUE_SIZE];
+    private final long[] txTime = new long[QUEUE_SIZE];
+    private int txHead, txTail;
+    private final byte[] line = new byte[TelemetryDecoder.MAX_FORMATTED_LENGTH];
+
+    //Statistics
+    private long passes; //Passes of loop()
+    private long commandCount; //Passes that received a command
+    private long readingCount; //getDistance() calls
+    private long timeoutCount; //getDistance() calls that returned 0
+    private long droppedBytes; //Bytes lost to a full receive buffer
+    private long collisions; //Times the robot ran into a wall
+    private float travelled; //cm
+    private float minGap = Float.MAX_VALUE; //Closest the robot's edge came to a wall, in cm
+
+    /*
+    A robot in room with its centre at (x, y), facing heading radians anticlockwise from the x axis. seed sets the
+    range finder's noise and timeouts
+     */
+    public RobotSimulator(SimulatedRoom room, float x, float y, float heading, long seed){
+        this.room = room;
+        this.x = x;
+        this.y = y;
+        this.heading = heading;
+        random = new Random(seed);
+    }
+
+    /*
+    Changes the firmware's maxSpeed, turningSpeed and corFactor
+     */
+    public void setFirmware(int maxSpeed, int turningSpeed, double corFactor){
+        this.maxSpeed = maxSpeed;
+        this.turningSpeed = turningSpeed;
+        this.corFactor = corFactor;
+    }
+
+    /*
+    Sets how fast the left wheel turns compared with the right at the same PWM
+     */
+    public void setLeftMotorStrength(float strength){
+        leftStrength = strength;
+    }
+
+    /*
+    Sets the standard deviation of the range finder's measurement in cm and the chance of a reading timing out
+     */
+    public void setSensor(float noise, float timeoutProbability){
+        this.noise = noise;
+        this.timeoutProbability = timeoutProbability;
+    }
+
+    public void setTemperature(float temperature){
+        this.temperature = temperature;
+    }
+
+    /*
+    Sends bytes to the robot at the current time. They arrive one by one at 9600 baud, after anything still on its way
+     */
+    public void receive(byte[] data, int offset, int count){
+        long arrival = Math.max(time, rxFree);
+        for(int i = offset; i < offset + count; i++){
+            if(rxTail - rxHead == QUEUE_SIZE){
+                droppedBytes++;
+                continue;
+            }
+            arrival += BYTE_TIME;
+            rxData[rxTail & QUEUE_MASK] = data[i];
+            rxTime[rxTail & QUEUE_MASK] = arrival;
+            rxTail++;
+        }
+        rxFree = arrival;
+    }
+
+    /*
+    Runs the firmware and the robot up to time until, in microseconds since the start
+     */
+    public void advanceTo(long until){
+        while(clock <= until){
+            loop();
+        }
+        if(until > time){
+            time = until;
+        }
+        moveTo(until);
+    }
+
+    /*
+    Number of reply bytes the robot has finished sending by the current time
+     */
+    public int available(){
+        int count = 0;
+        while(txHead + count != txTail && txTime[(txHead + count) & QUEUE_MASK] <= time){
+            count++;
+        }
+        return count;
+    }
+
+    /*
+    Copies up to length reply bytes the robot has finished sending by the current time into buffer. Returns how many
+     */
+    public int read(byte[] buffer, int offset, int length){
+        int count = 0;
+        while(count < length && txHead != txTail && txTime[txHead & QUEUE_MASK] <= time){
+            buffer[offset + count++] = txData[txHead & QUEUE_MASK];
+            txHead++;
+        }
+        return count;
+    }
+
+    public long getTime(){
+        return time;
+    }
+
+    public float getX(){
+        return x;
+    }
+
+    public float getY(){
+        return y;
+    }
+
+    public float getHeading(){
+        return heading;
+    }
+
+    public long getPasses(){
+        return passes;
+    }
+
+    public long getCommandCount(){
+        return commandCount;
+    }
+
+    public long getReadingCount(){
+        return readingCount;
+    }
+
+    public long getTimeoutCount(){
+        return timeoutCount;
+    }
+
+    public long getDroppedBytes(){
+        return droppedBytes;
+    }
+
+    public long getCollisions(){
+        return collisions;
+    }
+
+    public float getTravelled(){
+        return travelled;
+    }
+
+    /*
+    Closest the edge of the robot has come to a wall in cm, 0 if it ran into one
+     */
+    public float getMinGap(){
+        return minGap;
+    }
+
+    /*
+    One pass of loop(), starting at clock
+     */
+    private void loop(){
+        passes++;
+        commandLength = 0;
+        int arrived = 0;
+        while(rxHead + arrived != rxTail && rxTime[(rxHead + arrived) & QUEUE_MASK] <= clock){
+            arrived++;
+        }
+
+        if(arrived > 0){
+            //The receive buffer was emptied by the last pass that read it, anything beyond it since then was lost
+            for(int i = 0; i < arrived; i++){
+                if(i < RX_BUFFER){
+                    receiveByte(rxData[rxHead & QUEUE_MASK]);
+                }else{
+                    droppedBytes++;
+                }
+                rxHead++;
+            }
+            int sequenceIndex = indexOf('s');
+            if(sequenceIndex >= 0){
+                commandSequence = toInt(sequenceIndex + 1, commandLength);
+                commandLength = sequenceIndex;
+            }
+            commandCount++;
+
+            float distance = getDistance();
+            int length = TelemetryDecoder.format(distance, commandSequence, line, 0);
+            for(int i = 0; i < length; i++){ //SoftwareSerial sends each byte before returning
+                clock += BYTE_TIME;
+                txData[txTail & QUEUE_MASK] = line[i];
+                txTime[txTail & QUEUE_MASK] = clock;
+                txTail++;
+                if(txTail - txHead > QUEUE_SIZE){
+                    txHead++; //Nobody is reading the replies, the oldest are forgotten
+                }
+            }
+        }
+
+        char operatingMode = commandLength > 0 ? (char) command[0] : 0;
+        if(operatingMode == 'a' || operatingMode == 'm' || operatingMode == 'i'){
+            trajectoryCount = 0;
+        }
+        if(operatingMode == 'a'){
+            basicFunctionality();
+        }else if(operatingMode == 'm'){
+            clock += LCD_PRINT_TIME;
+            extraFunctionality();
+        }else if(operatingMode == 'i'){
+            clock += LCD_PRINT_TIME;
+            setMotors(leftForward, 0, rightForward, 0);
+        }
+
+        runTrajectory();
+        clock += LOOP_DELAY;
+    }
+
+    /*
+    The firmware's handling of one received byte, building s from text bytes and binary frames
+     */
+    private void receiveByte(byte b){
+        if(trajectoryIndex > 0 || (frameIndex == 0 && b == Trajectory.SYNC)){
+            trajectoryFrame[trajectoryIndex++] = b;
+            int count = trajectoryFrame[1] & 0xFF;
+            if(trajectoryIndex == 2 && count > Trajectory.MAX_SEGMENTS){
+                trajectoryIndex = 0;
+            }else if(trajectoryIndex > 2 && trajectoryIndex == Trajectory.frameLength(count)){
+                int length = trajectoryIndex;
+                trajectoryIndex = 0;
+                if(CommandFrame.checksum(trajectoryFrame, 1, length - 2) == trajectoryFrame[length - 1]){
+                    startTrajectory(count);
+                    commandSequence = trajectoryFrame[2] & 0xFF;
+                }
+            }
+        }else if(frameIndex > 0 || b == CommandFrame.SYNC){
+            frame[frameIndex++] = b;
+            if(frameIndex == CommandFrame.BINARY_LENGTH){
+                frameIndex = 0;
+                if(CommandFrame.checksum(frame, 1, 6) == frame[7]){
+                    //s = frameToCommand()
+                    commandLength = 0;
+                    append(frame[1]);
+                    appendInt((short) ((frame[2] << 8) | (frame[3] & 0xFF)));
+                    append((byte) 'n');
+                    appendInt((short) ((frame[4] << 8) | (frame[5] & 0xFF)));
+                    commandSequence = frame[6] & 0xFF;
+                }
+            }
+        }else{
+            append(b);
+        }
+    }
+
+    private void startTrajectory(int count){
+        if(count == 0){
+            return;
+        }
+        for(int i = 0; i < count; i++){
+            trajectoryLeft[i] = Trajectory.segmentLeft(trajectoryFrame, i);
+            trajectoryRight[i] = Trajectory.segmentRight(trajectoryFrame, i);
+            trajectoryDuration[i] = Trajectory.segmentDuration(trajectoryFrame, i) * 1000L;
+        }
+        trajectoryCount = count;
+        trajectorySegment = 0;
+        segmentStart = clock;
+        driveMotors(trajectoryLeft[0], trajectoryRight[0]);
+    }
+
+    private void runTrajectory(){
+        while(trajectoryCount > 0 && clock - segmentStart >= trajectoryDuration[trajectorySegment]){
+            segmentStart += trajectoryDuration[trajectorySegment];
+            trajectorySegment++;
+            if(trajectorySegment == trajectoryCount){
+                trajectoryCount = 0;
+                setMotors(leftForward, 0, rightForward, 0); //idle()
+            }else{
+                driveMotors(trajectoryLeft[trajectorySegment], trajectoryRight[trajectorySegment]);
+            }
+        }
+    }
+
+    private void basicFunctionality(){
+        float distance = getDistance();
+
+        if(distance > WARNING_DISTANCE){
+            currentState = FORWARD;
+        }else if(distance > CRITICAL_DISTANCE){
+            currentState = SLOWING;
+        }else if(distance != 0){
+            currentState = LEFT;
+        }
+
+        if(currentState == STARTSTATE){
+            distance = 50;
+            currentState = FORWARD;
+        }
+
+        if(currentState == FORWARD){
+            setMotors(true, analogWrite((int) (maxSpeed * corFactor)), rightForward, analogWrite(maxSpeed));
+        }else if(currentState == SLOWING){
+            setMotors(true, analogWrite((int) (maxSpeed * corFactor)), rightForward,
+                    analogWrite(stateSpeed((int) distance)));
+        }else if(currentState == LEFT){
+            clock += LCD_PRINT_TIME;
+            setMotors(false, analogWrite(turningSpeed), rightForward, analogWrite(turningSpeed));
+            clock += LEFT_TIME;
+            currentState = FORWARD;
+        }else{
+            currentState = IDLE;
+        }
+        clock += LCD_PRINT_TIME;
+    }
+
+    private void extraFunctionality(){
+        int n = indexOf('n');
+        int motor1 = toInt(1, n < 0 ? commandLength : n);
+        int motor2 = toInt(n + 1, commandLength);
+        driveMotors(motor1, motor2);
+    }
+
+    private void driveMotors(int motor1, int motor2){
+        setMotors(motor1 >= 0, analogWrite(Math.abs(motor1)), motor2 >= 0, analogWrite(Math.abs(motor2)));
+    }
+
+    private int stateSpeed(int distance){
+        if(distance <= WARNING_DISTANCE && distance >= CRITICAL_DISTANCE + 5){
+            return distance * 7;
+        }else if(distance <= CRITICAL_DISTANCE + 5 && distance > CRITICAL_DISTANCE){
+            return 125;
+        }
+        return 0;
+    }
+
+    /*
+    The firmware's getDistance(), taking as long as the echo does
+     */
+    private float getDistance(){
+        clock += TRIGGER_TIME;
+        moveTo(clock);
+        readingCount++;
+        if(random.nextFloat() < timeoutProbability){
+            timeoutCount++;
+            clock += PULSE_IN_TIMEOUT;
+            return 0;
+        }
+
+        float range = sense();
+        long pulseWidth;
+        if(range < 0 || range > MAX_RANGE){
+            pulseWidth = NO_ECHO_PULSE;
+        }else{
+            float speedOfSound = (331.3f + 0.606f * temperature) / 1e4f; //The real one, in cm/us
+            pulseWidth = Math.max(0, (long) (2 * (range + noise * (float) random.nextGaussian()) / speedOfSound));
+        }
+        clock += pulseWidth;
+
+        //The firmware uses the raw analogRead() value of the LM35 as the temperature
+        int temp = (int) (temperature * MILLIVOLTS_PER_DEGREE / MILLIVOLTS_PER_COUNT);
+        float speedOfSound = 331.5f + (0.6f * temp);
+        return pulseWidth / ((1 / speedOfSound) * 20000);
+    }
+
+    /*
+    Distance from the range finder to the nearest wall that echoes within its beam, or -1 if none does
+     */
+    private float sense(){
+        float sensorX = x + SENSOR_OFFSET * (float) Math.cos(heading);
+        float sensorY = y + SENSOR_OFFSET * (float) Math.sin(heading);
+        float nearest = -1;
+        for(int i = 0; i < BEAM_RAYS; i++){
+            float angle = heading - BEAM_HALF_ANGLE + i * 2 * BEAM_HALF_ANGLE / (BEAM_RAYS - 1);
+            float distance = room.castRay(sensorX, sensorY, angle, MIN_ECHO_COS);
+            if(distance >= 0 && (nearest < 0 || distance < nearest)){
+                nearest = distance;
+            }
+        }
+        return nearest;
+    }
+
+    /*
+    Writes new motor outputs at clock, once the robot has moved under the old ones up to then
+     */
+    private void setMotors(boolean m1, int e1, boolean m2, int e2){
+        moveTo(clock);
+        leftForward = m1;
+        leftPwm = e1;
+        rightForward = m2;
+        rightPwm = e2;
+    }
+
+    /*
+    analogWrite() keeps the low byte of the value in the timer's 8 bit compare register
+     */
+    private static int analogWrite(int value){
+        return value & 0xFF;
+    }
+
+    /*
+    Moves the robot under the current motor outputs up to until
+     */
+    private void moveTo(long until){
+        while(physicsTime < until){
+            long step = Math.min(PHYSICS_STEP, until - physicsTime);
+            physicsTime += step;
+            float dt = step / 1e6f;
+            float alpha = step == PHYSICS_STEP ? STEP_ALPHA : 1 - (float) Math.exp(-dt / MOTOR_TIME_CONSTANT);
+
+            float leftTarget = (leftForward ? 1 : -1) * leftPwm * CM_PER_SECOND_PER_PWM * leftStrength;
+            float rightTarget = (rightForward ? 1 : -1) * rightPwm * CM_PER_SECOND_PER_PWM;
+            leftVelocity += alpha * (leftTarget - leftVelocity);
+            rightVelocity += alpha * (rightTarget - rightVelocity);
+
+            float velocity = (leftVelocity + rightVelocity) / 2;
+            heading += (rightVelocity - leftVelocity) / WHEEL_BASE * dt;
+            if(heading > Math.PI){
+                heading -= 2 * Math.PI;
+            }else if(heading < -Math.PI){
+                heading += 2 * Math.PI;
+            }
+            if(velocity == 0){
+                continue;
+            }
+
+            float newX = x + velocity * (float) Math.cos(heading) * dt;
+            float newY = y + velocity * (float) Math.sin(heading) * dt;
+            float gap = room.clearance(newX, newY) - ROBOT_RADIUS;
+            if(gap < 0){ //Pushing against a wall, the wheels slip
+                if(!touching){
+                    collisions++;
+                    touching = true;
+                }
+                minGap = 0;
+                continue;
+            }
+            if(gap > CONTACT_RELEASE){
+                touching = false;
+            }
+            travelled += Math.abs(velocity) * dt;
+            x = newX;
+            y = newY;
+            minGap = Math.min(minGap, gap);
+        }
+    }
+
+    private void append(byte b){
+        if(commandLength < command.length){
+            command[commandLength++] = b;
+        }
+    }
+
+    private void appendInt(int value){
+        if(value < 0){
+            append((byte) '-');
+            value = -value;
+        }
+        int start = commandLength;
+        do{
+            append((byte) ('0' + value % 10));
+            value /= 10;
+        }while(value > 0);
+        for(int i = start, j = commandLength - 1; i < j; i++, j--){ //Digits were written least significant first
+            byte swap = command[i];
+            command[i] = command[j];
+            command[j] = swap;
+        }
+    }
+
+    private int indexOf(char c){
+        for(int i = 0; i < commandLength; i++){
+            if(command[i] == c){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+    String.toInt() of s between start and end, which like atol() skips leading spaces and stops at the first non-digit
+     */
+    private int toInt(int start, int end){
+        while(start < end && command[start] == ' '){
+            start++;
+        }
+        boolean negative = start < end && command[start] == '-';
+        if(negative || (start < end && command[start] == '+')){
+            start++;
+        }
+        int value = 0;
+        for(int i = start; i < end && command[i] >= '0' && command[i] <= '9'; i++){
+            value = value * 10 + (command[i] - '0');
+        }
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,152 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.util.Random;
+
+/**
+ * A flat 2-D room for RobotSimulator, made of straight walls. Positions are in cm.
+ *
+ * Walls are kept as the end points of line segments in one float array, so ray casts and clearance checks are plain
+ * loops over it with nothing allocated. A room is not changed once a simulation is using it, so one room can be shared
+ * by simulators on several threads.
+ */
+public class SimulatedRoom {
+
+    static final float MIN_BOX = 20; //cm, smallest side of a random box
+    static final float MAX_BOX = 80; //cm, largest side of a random box
+    static final int MAX_PLACEMENT_TRIES = 50; //Attempts at placing each random box clear of the start
+
+    private float[] walls = new float[16 * 4]; //x1, y1, x2, y2 of each wall
+    private int wallCount;
+    private final float width, height;
+
+    /*
+    An empty room with no walls, width by height cm. Use rectangle() for a room with its outer walls
+     */
+    public SimulatedRoom(float width, float height){
+        this.width = width;
+        this.height = height;
+    }
+
+    /*
+    A width by height cm room with just its four outer walls, the corner at (0, 0)
+     */
+    public static SimulatedRoom rectangle(float width, float height){
+        SimulatedRoom room = new SimulatedRoom(width, height);
+        room.addBox(0, 0, width, height);
+        return room;
+    }
+
+    /*
+    A rectangle() room with boxes of random sizes in random places, none of them closer than clearRadius to (clearX,
+    clearY) so the robot can start there. The same seed always gives the same room
+     */
+    public static SimulatedRoom random(long seed, float width, float height, int boxes, float clearX, float clearY,
+                                       float clearRadius){
+        Random random = new Random(seed);
+        SimulatedRoom room = rectangle(width, height);
+        for(int i = 0; i < boxes; i++){
+            for(int attempt = 0; attempt < MAX_PLACEMENT_TRIES; attempt++){
+                float w = MIN_BOX + random.nextFloat() * (MAX_BOX - MIN_BOX);
+                float h = MIN_BOX + random.nextFloat() * (MAX_BOX - MIN_BOX);
+                float x = random.nextFloat() * (width - w);
+                float y = random.nextFloat() * (height - h);
+                //Closest point of the box to the start
+                float dx = clearX - Math.max(x, Math.min(clearX, x + w));
+                float dy = clearY - Math.max(y, Math.min(clearY, y + h));
+                if(dx * dx + dy * dy >= clearRadius * clearRadius){
+                    room.addBox(x, y, w, h);
+                    break;
+                }
+            }
+        }
+        return room;
+    }
+
+    public void addWall(float x1, float y1, float x2, float y2){
+        if((wallCount + 1) * 4 > walls.length){
+            float[] grown = new float[walls.length * 2];
+            System.arraycopy(walls, 0, grown, 0, walls.length);
+            walls = grown;
+        }
+        int i = wallCount * 4;
+        walls[i] = x1;
+        walls[i + 1] = y1;
+        walls[i + 2] = x2;
+        walls[i + 3] = y2;
+        wallCount++;
+    }
+
+    /*
+    Adds the four walls of a w by h rectangle with its lower corner at (x, y)
+     */
+    public void addBox(float x, float y, float w, float h){
+        addWall(x, y, x + w, y);
+        addWall(x + w, y, x + w, y + h);
+        addWall(x + w, y + h, x, y + h);
+        addWall(x, y + h, x, y);
+    }
+
+    public int getWallCount(){
+        return wallCount;
+    }
+
+    public float getWidth(){
+        return width;
+    }
+
+    public float getHeight(){
+        return height;
+    }
+
+    /*
+    Distance from (x, y) along angle (radians, anticlockwise from the x axis) to the nearest wall, or -1 if there is no
+    wall that way or the nearest one is hit at such a glancing angle that the cosine of the angle of incidence is below
+    minCos, so nothing is reflected back
+     */
+    public float castRay(float x, float y, float angle, float minCos){
+        float dx = (float) Math.cos(angle);
+        float dy = (float) Math.sin(angle);
+        float nearest = Float.MAX_VALUE;
+        float nearestCos = 0;
+        for(int i = 0; i < wallCount * 4; i += 4){
+            float ex = walls[i + 2] - walls[i];
+            float ey = walls[i + 3] - walls[i + 1];
+            float denominator = dx * ey - dy * ex;
+            if(denominator == 0){
+                continue; //Parallel to the wall
+            }
+            float ax = walls[i] - x;
+            float ay = walls[i + 1] - y;
+            float t = (ax * ey - ay * ex) / denominator; //Along the ray
+            float u = (ax * dy - ay * dx) / denominator; //Along the wall
+            if(t > 0 && u >= 0 && u <= 1 && t < nearest){
+                nearest = t;
+                //The sine of the angle between the ray and the wall is the cosine of the angle of incidence
+                nearestCos = Math.abs(denominator) / (float) Math.sqrt(ex * ex + ey * ey);
+            }
+        }
+        if(nearest == Float.MAX_VALUE || nearestCos < minCos){
+            return -1;
+        }
+        return nearest;
+    }
+
+    /*
+    Distance from (x, y) to the closest point of any wall
+     */
+    public float clearance(float x, float y){
+        float closest = Float.MAX_VALUE;
+        for(int i = 0; i < wallCount * 4; i += 4){
+            float ex = walls[i + 2] - walls[i];
+            float ey = walls[i + 3] - walls[i + 1];
+            float px = x - walls[i];
+            float py = y - walls[i + 1];
+            float lengthSquared = ex * ex + ey * ey;
+            float u = lengthSquared == 0 ? 0 : Math.max(0, Math.min(1, (px * ex + py * ey) / lengthSquared));
+            float cx = px - u * ex;
+            float cy = py - u * ey;
+            closest = Math.min(closest, cx * cx + cy * cy);
+        }
+        return (float) Math.sqrt(closest);
+    }
+}
@@ -0,0 +1,268 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many independent RobotSimulator scenarios in parallel, each driven the way the app drives the robot, so a change
+ * to the speeds or the control code can be checked against hundreds of room layouts in seconds.
+ *
+ * Every TICK of simulated time the scenario's Driver is given the readings decoded from the robot's replies and asked
+ * for a command, which is encoded by a CommandFrame exactly as MainActivity.sendData() encodes it. Scenarios share
+ * nothing but their (unchanging) rooms, so they are simply handed out to a fixed number of threads, one at a time.
+ *
+ * Usage: SimulationRunner [scenarios] [simulated seconds each] [threads] [maxSpeed turningSpeed corFactor]
+ */
+public class SimulationRunner {
+
+    static final long TICK = 5000; //Microseconds of simulated time between two calls to the driver
+    static final float MIN_ROOM = 200; //cm, smallest side of a random room
+    static final float MAX_ROOM = 600; //cm
+    static final int MAX_BOXES = 8; //Most obstacles in a random room
+    static final float START_CLEARANCE = 40; //cm around the start kept free of obstacles
+
+    /*
+    Controls one simulated robot. Times are nanoseconds, like the System.nanoTime() values the app's code expects
+     */
+    public interface Driver {
+        /*
+        Called with each distance reading the robot sends back
+         */
+        void onDistance(float distance, int sequence, long now);
+
+        /*
+        Called every TICK. Encodes the command to send now into frame and returns its length, or returns 0 to send
+        nothing
+         */
+        int command(CommandFrame frame, long now);
+    }
+
+    /*
+    One robot in one room with its driver, and what happened once it has run
+     */
+    public static class Scenario implements TelemetryDecoder.Listener {
+
+        private final String name;
+        private final RobotSimulator simulator;
+        private final Driver driver;
+        private final long duration; //Microseconds
+        private final CommandFrame commandFrame = new CommandFrame(CommandFrame.FORMAT_BINARY);
+        private final TelemetryDecoder decoder = new TelemetryDecoder(this);
+        private long now; //Nanoseconds, for the driver
+        private long commandsSent;
+
+        public Scenario(String name, RobotSimulator simulator, Driver driver, long duration){
+            this.name = name;
+            this.simulator = simulator;
+            this.driver = driver;
+            this.duration = duration;
+        }
+
+        /*
+        Runs the scenario to the end on the calling thread
+         */
+        public void run(){
+            byte[] buffer = new byte[256];
+            for(long time = 0; time <= duration; time += TICK){
+                simulator.advanceTo(time);
+                now = time * 1000;
+                int count;
+                while((count = simulator.read(buffer, 0, buffer.length)) > 0){
+                    decoder.feed(buffer, 0, count);
+                }
+                int length = driver.command(commandFrame, now);
+                if(length > 0){
+                    simulator.receive(commandFrame.getBuffer(), 0, length);
+                    commandsSent++;
+                }
+            }
+        }
+
+        @Override
+        public void onDistance(float distance, int sequence) {
+            driver.onDistance(distance, sequence, now);
+        }
+
+        public String getName(){
+            return name;
+        }
+
+        public RobotSimulator getSimulator(){
+            return simulator;
+        }
+
+        public Driver getDriver(){
+            return driver;
+        }
+
+        public long getCommandsSent(){
+            return commandsSent;
+        }
+
+        public long getRepliesReceived(){
+            return decoder.getDecodedCount();
+        }
+    }
+
+    /*
+    Automatic mode with the arduino's own basicFunctionality(): sends 'a' at the rate the app does
+     */
+    public static class FirmwareAutopilot implements Driver {
+
+        static final long INTERVAL = 100000000L; //BLUETOOTH_COM_INTERVAL
+
+        private long lastSend = -INTERVAL;
+
+        @Override
+        public void onDistance(float distance, int sequence, long now) {
+        }
+
+        @Override
+        public int command(CommandFrame frame, long now) {
+            if(now - lastSend < INTERVAL){
+                return 0;
+            }
+            lastSend = now;
+            return frame.encode('a', 0, 0);
+        }
+    }
+
+    /*
+    Automatic mode with the Autopilot on the phone, fed through a DistanceEstimator as MainActivity does. The speeds are
+    sent as 'm' commands as soon as they change, no more often than MIN_INTERVAL, and resent every KEEP_ALIVE_INTERVAL
+     */
+    public static class PhoneAutopilot implements Driver {
+
+        static final long MIN_INTERVAL = 40000000L; //MIN_COMMAND_INTERVAL
+        static final long KEEP_ALIVE_INTERVAL = 100000000L; //BLUETOOTH_COM_INTERVAL, used in automatic mode
+
+        private final Autopilot autopilot = new Autopilot();
+        private final DistanceEstimator estimator = new DistanceEstimator(3);
+        private boolean started;
+        private long lastSend = -KEEP_ALIVE_INTERVAL;
+        private int sentSpeeds = SpeedControl.pack(0, 0);
+
+        @Override
+        public void onDistance(float distance, int sequence, long now) {
+            if(estimator.update(distance, now)){
+                autopilot.onDistance(estimator.getFiltered(), estimator.getClosingSpeed(), now);
+            }
+        }
+
+        @Override
+        public int command(CommandFrame frame, long now) {
+            if(!started){
+                started = true;
+                autopilot.start(now);
+            }else{
+                autopilot.tick(now);
+            }
+            int speeds = autopilot.getSpeeds();
+            boolean changed = speeds != sentSpeeds;
+            if(!(changed && now - lastSend >= MIN_INTERVAL) && now - lastSend < KEEP_ALIVE_INTERVAL){
+                return 0;
+            }
+            lastSend = now;
+            sentSpeeds = speeds;
+            return frame.encode('m', SpeedControl.left(speeds), SpeedControl.right(speeds));
+        }
+
+        public Autopilot getAutopilot(){
+            return autopilot;
+        }
+    }
+
+    /*
+    Runs every scenario on threadCount threads and returns once they have all finished. A scenario that throws stops its
+    thread, and the first such exception is rethrown here once the others are done
+     */
+    public static void run(final List<Scenario> scenarios, int threadCount) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger();
+        final RuntimeException[] failure = new RuntimeException[1];
+        Thread[] threads = new Thread[threadCount];
+        for(int i = 0; i < threadCount; i++){
+            threads[i] = new Thread("SimulationRunner " + i){
+                @Override
+                public void run() {
+                    int index;
+                    while((index = next.getAndIncrement()) < scenarios.size()){
+                        try {
+                            scenarios.get(index).run();
+                        } catch (RuntimeException e) {
+                            synchronized (failure){
+                                if(failure[0] == null){
+                                    failure[0] = e;
+                                }
+                            }
+                            return;
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+        if(failure[0] != null){
+            throw failure[0];
+        }
+    }
+
+    /*
+    A random room and a simulator starting in the middle of it facing a random way, the same for the same seed
+     */
+    public static RobotSimulator randomRobot(long seed){
+        Random random = new Random(seed);
+        float width = MIN_ROOM + random.nextFloat() * (MAX_ROOM - MIN_ROOM);
+        float height = MIN_ROOM + random.nextFloat() * (MAX_ROOM - MIN_ROOM);
+        SimulatedRoom room = SimulatedRoom.random(random.nextLong(), width, height, random.nextInt(MAX_BOXES + 1),
+                width / 2, height / 2, START_CLEARANCE);
+        return new RobotSimulator(room, width / 2, height / 2, (float) (random.nextFloat() * 2 * Math.PI),
+                random.nextLong());
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 60;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        String[] drivers = {"arduino autopilot", "phone autopilot"};
+        for(int d = 0; d < drivers.length; d++){
+            List<Scenario> scenarios = new ArrayList<Scenario>(count);
+            for(int i = 0; i < count; i++){
+                RobotSimulator simulator = randomRobot(i);
+                if(args.length > 5){
+                    simulator.setFirmware(Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+                            Double.parseDouble(args[5]));
+                }
+                Driver driver = d == 0 ? new FirmwareAutopilot() : new PhoneAutopilot();
+                scenarios.add(new Scenario("room " + i, simulator, driver, seconds * 1000000));
+            }
+
+            long start = System.nanoTime();
+            run(scenarios, threads);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+
+            long collisions = 0, crashed = 0, replies = 0, commands = 0;
+            double travelled = 0;
+            float minGap = Float.MAX_VALUE;
+            for(Scenario scenario : scenarios){
+                RobotSimulator simulator = scenario.getSimulator();
+                collisions += simulator.getCollisions();
+                crashed += simulator.getCollisions() > 0 ? 1 : 0;
+                travelled += simulator.getTravelled();
+                minGap = Math.min(minGap, simulator.getMinGap());
+                replies += scenario.getRepliesReceived();
+                commands += scenario.getCommandsSent();
+            }
+            System.out.println(String.format("%s: %d scenarios of %d s in %.2f s on %d threads (%.0fx real time)",
+                    drivers[d], count, seconds, elapsed, threads, count * seconds / elapsed));
+            System.out.println(String.format("  collisions %d in %d scenarios, closest gap %.1f cm, %.0f cm travelled "
+                    + "on average, %d of %d commands answered", collisions, crashed, minGap, travelled / count, replies,
+                    commands));
+        }
+    }
+}
@@ -0,0 +1,552 @@
+package ece281.joshua.robotcontrolv3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the app's command and telemetry paths for hours against an ArduinoEmulator behind a misbehaving link, to find
+ * leaks, drift and slow degradation that a short test never shows.
+ *
+ * The app side is wired the way MainActivity wires it, without Android: a CommandScheduler builds commands from the
+ * current input with a CommandFrame (or a Trajectory in button mode) and submits them to a CommandWriter, which writes
+ * them through a ConnectionManager. Replies are decoded on the RobotLink's ConnectionThread and published to a
+ * TelemetryPipeline, whose consumer passes them, as MainActivity's filter consumer, to a DistanceEstimator, a
+ * TelemetryStore and the SampleRing behind the distance graph. A script changes the input at the profile's rate, switching between button, tilt and idle driving.
+ *
+ * The robot end is a FaultyRobot, which splits replies into fragments, adds garbage bytes, corrupts commands, stalls
+ * (neither reading nor answering) and drops the connection, at the rates of the chosen Profile.
+ *
+ * Every report interval it prints the commands written and samples displayed per second, the command round trip
+ * percentiles over the interval, the heap in use after a garbage collection and the number of live threads. The run
+ * fails, with exit code 1, if any interval breaks a threshold: too few commands or samples per second, a p99 round trip
+ * too long, or the heap or thread count grown too far above the first interval's.
+ *
+ * Usage: SoakRunner [profile] [minutes] [key=value...]
+ * Profiles: clean, noisy, hostile. Keys: interval (seconds between reports), minCommands, minSamples (per second),
+ * maxP99 (ms), maxHeapGrowth (MB), maxThreadGrowth, failFast (true to stop at the first failure)
+ */
+public class SoakRunner {
+
+    //Command timing, as MainActivity
+    static final int REFERENCE_INTERVAL = 100; //BLUETOOTH_COM_INTERVAL
+    static final int MIN_COMMAND_INTERVAL = 40;
+    static final int KEEP_ALIVE_INTERVAL = 250;
+    static final int PIPE_CAPACITY = 64; //Bytes in flight each way, the arduino's receive buffer
+    static final int GRAPH_HISTORY = 1024; //DisplayScreen.HISTORY, which needs Android to compile
+
+    /**
+     * Rates of the faults a FaultyRobot injects
+     */
+    public static class Profile {
+
+        final String name;
+        final float inputRate; //Changes of input per second
+        final float fragmentProbability; //Chance of a reply being written in several pieces
+        final float garbageProbability; //Chance of garbage bytes after a reply
+        final float corruptProbability; //Chance of a received chunk of commands having a byte changed
+        final float stallsPerMinute;
+        final int stallTime; //Longest stall in milliseconds
+        final float disconnectsPerMinute;
+
+        public Profile(String name, float inputRate, float fragmentProbability, float garbageProbability,
+                       float corruptProbability, float stallsPerMinute, int stallTime, float disconnectsPerMinute){
+            this.name = name;
+            this.inputRate = inputRate;
+            this.fragmentProbability = fragmentProbability;
+            this.garbageProbability = garbageProbability;
+            this.corruptProbability = corruptProbability;
+            this.stallsPerMinute = stallsPerMinute;
+            this.stallTime = stallTime;
+            this.disconnectsPerMinute = disconnectsPerMinute;
+        }
+
+        public static Profile named(String name){
+            if(name.equals("clean")){
+                return new Profile(name, 2, 0, 0, 0, 0, 0, 0);
+            }else if(name.equals("noisy")){
+                return new Profile(name, 5, 0.3f, 0.05f, 0.01f, 2, 800, 0.2f);
+            }else if(name.equals("hostile")){
+                return new Profile(name, 20, 0.8f, 0.2f, 0.05f, 6, 2500, 1);
+            }
+            throw new IllegalArgumentException("Unknown profile " + name);
+        }
+    }
+
+    /**
+     * The robot end of an in-process link: an ArduinoEmulator served on its own thread, with faults injected between it
+     * and the app. Each open() starts serving a new connection to the same emulator, which keeps its state
+     */
+    public static class FaultyRobot implements RobotTransport {
+
+        private final PipedTransport pipe = new PipedTransport(PIPE_CAPACITY);
+        private final ArduinoEmulator emulator;
+        private final Profile profile;
+        private final Random random;
+        private Thread serving;
+
+        //Faults injected so far
+        private volatile long fragmented, garbageBursts, corrupted, stalls, disconnects;
+
+        public FaultyRobot(Profile profile, long seed){
+            this.profile = profile;
+            random = new Random(seed);
+            emulator = new ArduinoEmulator(seed);
+            emulator.setTimeoutProbability(0.02f);
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        /*
+        Waits for the last connection's robot thread to notice the disconnection, so two never share the emulator
+         */
+        @Override
+        public synchronized void open() throws IOException {
+            if(serving != null){
+                pipe.close();
+                try {
+                    serving.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted");
+                }
+            }
+            pipe.open();
+            serving = new Thread("FaultyRobot"){
+                @Override
+                public void run() {
+                    serve();
+                }
+            };
+            serving.setDaemon(true);
+            serving.start();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return pipe.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return pipe.getOutputStream();
+        }
+
+        @Override
+        public void close() {
+            pipe.close();
+        }
+
+        @Override
+        public String getName() {
+            return "faulty robot";
+        }
+
+        /*
+        Serves the emulator through streams that inject the faults, until the app disconnects or a disconnection is
+        injected
+         */
+        private void serve(){
+            PipedTransport peer = pipe.getPeer();
+            final InputStream in = peer.getInputStream();
+            final OutputStream out = peer.getOutputStream();
+            InputStream faultyIn = new InputStream() {
+                private long last = System.nanoTime();
+
+                @Override
+                public int read() throws IOException {
+                    return in.read();
+                }
+
+                @Override
+                public int read(byte[] data, int offset, int length) throws IOException {
+                    int count = in.read(data, offset, length);
+                    if(count <= 0){
+                        return count;
+                    }
+                    long now = System.nanoTime();
+                    float minutes = (now - last) / 60e9f;
+                    last = now;
+                    if(random.nextFloat() < profile.disconnectsPerMinute * minutes){
+                        disconnects++;
+                        return -1;
+                    }
+                    if(random.nextFloat() < profile.stallsPerMinute * minutes){
+                        stalls++;
+                        try {
+                            Thread.sleep(random.nextInt(profile.stallTime + 1)); //Neither reads nor answers meanwhile
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return -1;
+                        }
+                    }
+                    if(random.nextFloat() < profile.corruptProbability){
+                        corrupted++;
+                        data[offset + random.nextInt(count)] ^= 1 << random.nextInt(8);
+                    }
+                    return count;
+                }
+            };
+            OutputStream faultyOut = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] data, int offset, int length) throws IOException {
+                    writeReply(out, data, offset, length);
+                }
+            };
+            try {
+                emulator.serve(faultyIn, faultyOut);
+            } catch (IOException e) {
+                //The app end disconnected
+            } finally {
+                peer.close();
+            }
+        }
+
+        /*
+        Writes a reply, in random pieces if fragmented and followed by garbage if the profile says so
+         */
+        private void writeReply(OutputStream out, byte[] data, int offset, int length) throws IOException {
+            if(random.nextFloat() < profile.fragmentProbability){
+                fragmented++;
+                while(length > 0){
+                    int piece = 1 + random.nextInt(length);
+                    out.write(data, offset, piece);
+                    offset += piece;
+                    length -= piece;
+                    Thread.yield();
+                }
+            }else{
+                out.write(data, offset, length);
+            }
+            if(random.nextFloat() < profile.garbageProbability){
+                garbageBursts++;
+                int count = 1 + random.nextInt(24);
+                for(int i = 0; i < count; i++){
+                    out.write(random.nextInt(256));
+                }
+            }
+        }
+
+        public ArduinoEmulator getEmulator(){
+            return emulator;
+        }
+
+        public String faults(){
+            return "fragmented " + fragmented + ", garbage " + garbageBursts + ", corrupted " + corrupted + ", stalls "
+                    + stalls + ", disconnects " + disconnects;
+        }
+    }
+
+    //Input set by the script and read when a command is built, packed as mode << 32 | SpeedControl speeds
+    private volatile long input = (long) 'i' << 32;
+
+    private final Profile profile;
+    private final FaultyRobot robot;
+    private final LatencyTracker latencyTracker = new LatencyTracker();
+    private final ConnectionManager connection;
+    private final CommandWriter writer;
+    private final CommandScheduler scheduler;
+    private final CommandFrame commandFrame = new CommandFrame(CommandFrame.FORMAT_BINARY);
+    private final Trajectory trajectory = new Trajectory(600); //MainActivity's SLEW_RATE
+
+    //Consumer of the readings, as MainActivity's filter consumer
+    private final TelemetryPipeline telemetry = new TelemetryPipeline();
+    private final TelemetryPipeline.Cursor filter;
+    private final DistanceEstimator distanceEstimator = new DistanceEstimator(3);
+    private final TelemetryStore telemetryStore = new TelemetryStore(1 << 18, System.nanoTime());
+    private final SampleRing samples = new SampleRing(GRAPH_HISTORY);
+    private volatile long displayed; //Readings that reached the graph
+
+    public SoakRunner(Profile profile, long seed){
+        this.profile = profile;
+        robot = new FaultyRobot(profile, seed);
+        connection = new ConnectionManager(robot, new ConnectionManager.Listener() {
+            @Override
+            public void onStateChanged(int state) {
+                writer.linkChanged();
+                if(state == ConnectionManager.CONNECTED){
+                    latencyTracker.clearOutstanding();
+                    scheduler.requestSend(); //The writer threw away what was waiting from before
+                }
+            }
+
+            @Override
+            public void onDistance(float distance, int sequence) {
+                long now = System.nanoTime();
+                latencyTracker.onReply(sequence, now);
+                telemetry.publish(now, distance, sequence);
+            }
+        });
+        filter = telemetry.addConsumer("filter", new TelemetryPipeline.Consumer() {
+            @Override
+            public void onReading(long time, float distance, int sequence) {
+                boolean accepted = distanceEstimator.update(distance, time);
+                float filtered = distanceEstimator.getFiltered();
+                telemetryStore.add(time, distance, accepted, filtered, 'm', 0, 0);
+                if(accepted){
+                    samples.add(Math.round(filtered)); //DisplayScreen.updateDisplay()
+                    displayed++;
+                }
+            }
+
+            @Override
+            public void onCaughtUp() {
+            }
+        });
+        writer = new CommandWriter(connection, latencyTracker);
+        scheduler = new CommandScheduler(new CommandScheduler.Sender() {
+            @Override
+            public boolean sendCommand(long inputTime) {
+                if(connection.isConnected()){
+                    sendData(inputTime);
+                    return true;
+                }
+                return false;
+            }
+        }, REFERENCE_INTERVAL, MIN_COMMAND_INTERVAL, KEEP_ALIVE_INTERVAL);
+    }
+
+    /*
+    As MainActivity.sendData(): 't' input is button mode, sent as a trajectory
+     */
+    private void sendData(long inputTime){
+        long command = input;
+        char mode = (char) (command >>> 32);
+        int left = SpeedControl.left((int) command);
+        int right = SpeedControl.right((int) command);
+        if(mode == Trajectory.MODE){
+            trajectory.clear(left, right); //The speeds the robot was left at are not tracked here
+            trajectory.rampTo(left, right);
+            trajectory.hold(left, right, 1000);
+            int length = trajectory.encode(commandFrame.nextSequence());
+            writer.submit(mode, trajectory.getBuffer(), length, trajectory.getSequence(), inputTime);
+        }else{
+            int length = commandFrame.encode(mode, left, right);
+            writer.submit(mode, commandFrame.getBuffer(), length, commandFrame.getSequence(), inputTime);
+        }
+    }
+
+    /*
+    Runs for the given number of seconds, reporting every interval and at the end, and returns whether every threshold
+    held. A run shorter than the interval is reported once, at its end
+     */
+    public boolean run(long seconds, Thresholds thresholds) throws InterruptedException {
+        if(seconds < 1){
+            throw new IllegalArgumentException("A soak run needs at least one second");
+        }
+        long interval = Math.max(1, Math.min(thresholds.interval, seconds));
+        Thread script = new Thread("Input script"){
+            @Override
+            public void run() {
+                script();
+            }
+        };
+        script.setDaemon(true);
+
+        connection.start();
+        writer.start();
+        scheduler.start();
+        telemetry.start();
+        script.start();
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long baseHeap = -1;
+        int baseThreads = -1;
+        long lastWritten = 0, lastDisplayed = 0;
+        boolean passed = true;
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long last = start; //End of the previous interval
+        System.out.println(" minute  commands/s  samples/s  rtt p50/p99/max ms  heap MB  threads  state");
+        for(long next = start + interval * 1000000000L; ; next += interval * 1000000000L){
+            boolean finished = next - end >= 0;
+            if(finished){ //The time left after the last whole interval is reported as a shorter one
+                next = end;
+            }
+            long wait = next - System.nanoTime();
+            if(wait > 0){
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            float length = (next - last) / 1e9f; //Seconds
+            last = next;
+
+            long written = writer.getCommandsWritten();
+            long shown = displayed;
+            float commandRate = (written - lastWritten) / length;
+            float sampleRate = (shown - lastDisplayed) / length;
+            lastWritten = written;
+            lastDisplayed = shown;
+            long p50, p99, max; //Microseconds
+            synchronized (latencyTracker){
+                LatencyHistogram histogram = latencyTracker.getHistogram();
+                p50 = histogram.getPercentile(0.5);
+                p99 = histogram.getPercentile(0.99);
+                max = histogram.getMax();
+                histogram.reset();
+            }
+            System.gc();
+            long heap = memory.getHeapMemoryUsage().getUsed();
+            int threadCount = threads.getThreadCount();
+            if(baseHeap < 0){
+                baseHeap = heap;
+                baseThreads = threadCount;
+            }
+
+            StringBuilder failures = new StringBuilder();
+            if(commandRate < thresholds.minCommands){
+                failures.append(" commands/s");
+            }
+            if(sampleRate < thresholds.minSamples){
+                failures.append(" samples/s");
+            }
+            if(p99 > thresholds.maxP99 * 1000){
+                failures.append(" p99");
+            }
+            if(heap - baseHeap > thresholds.maxHeapGrowth * 1024 * 1024){
+                failures.append(" heap");
+            }
+            if(threadCount - baseThreads > thresholds.maxThreadGrowth){
+                failures.append(" threads");
+            }
+            System.out.println(String.format("%7.1f  %10.1f  %9.1f  %6.1f/%6.0f/%6.0f  %7.1f  %7d  %s%s",
+                    (System.nanoTime() - start) / 60e9, commandRate, sampleRate, p50 / 1000.0, p99 / 1000.0,
+                    max / 1000.0, heap / 1048576.0,
+                    threadCount, stateName(connection.getState()),
+                    failures.length() == 0 ? "" : "  FAIL:" + failures));
+            if(failures.length() > 0){
+                passed = false;
+                if(thresholds.failFast){
+                    break;
+                }
+            }
+            if(finished){
+                break;
+            }
+        }
+
+        script.interrupt();
+        scheduler.stop();
+        writer.stop();
+        connection.stop();
+        telemetry.stop();
+
+        System.out.println("faults: " + robot.faults());
+        System.out.println("link: " + connection.getConnectCount() + " connections, " + connection.getLossCount()
+                + " losses, " + connection.getFailedAttempts() + " failed attempts");
+        System.out.println("writer: " + writer.getCommandsWritten() + " written, " + writer.getSuperseded()
+                + " superseded, " + writer.getWriteErrors() + " write errors, " + writer.getMaxStallMicros() / 1000
+                + " ms longest stall");
+        TelemetryDecoder decoder = connection.getLink().getDecoder();
+        System.out.println("telemetry: " + displayed + " displayed, " + distanceEstimator.getTimeoutCount()
+                + " timeouts, " + distanceEstimator.getOutlierCount() + " outliers, " + filter.getDropped()
+                + " dropped by the filter (lag " + filter.getMaxLag() + " max)" + (decoder == null ? "" : ", " + decoder.getMalformedCount()
+                + " malformed lines in the last connection"));
+        System.out.println("robot: " + robot.getEmulator().getCommandCount() + " commands, "
+                + robot.getEmulator().getRejectedFrames() + " rejected frames");
+        System.out.println(passed ? "PASSED" : "FAILED");
+        return passed;
+    }
+
+    /*
+    Changes the input at random times averaging the profile's rate: mostly driving by buttons or tilt, sometimes idle
+     */
+    private void script(){
+        Random random = new Random(profile.name.hashCode());
+        int[] steps = {-238, -180, -120, -60, 0, 60, 120, 180, 238};
+        try {
+            while(true){
+                Thread.sleep((long) (-Math.log(1 - random.nextDouble()) * 1000 / profile.inputRate));
+                float choice = random.nextFloat();
+                char mode;
+                int left, right;
+                if(choice < 0.1f){
+                    mode = 'i';
+                    left = 0;
+                    right = 0;
+                }else if(choice < 0.5f){
+                    mode = Trajectory.MODE;
+                    int button = random.nextInt(5);
+                    left = button == 0 ? 0 : button == 1 || button == 3 ? 238 : -238;
+                    right = button == 0 ? 0 : button == 1 || button == 4 ? 238 : -238;
+                }else{
+                    mode = 'm';
+                    left = steps[random.nextInt(steps.length)];
+                    right = steps[random.nextInt(steps.length)];
+                }
+                input = (long) mode << 32 | (SpeedControl.pack(left, right) & 0xFFFFFFFFL);
+                scheduler.requestSend();
+            }
+        } catch (InterruptedException e) {
+            //Finished
+        }
+    }
+
+    private static String stateName(int state){
+        String[] names = {"stopped", "connecting", "connected", "degraded", "backoff"};
+        return state >= 0 && state < names.length ? names[state] : Integer.toString(state);
+    }
+
+    /**
+     * Limits an interval must stay within for the run to pass
+     */
+    public static class Thresholds {
+        long interval = 60; //Seconds between reports, the whole run if it is shorter
+        float minCommands = 2; //Commands written per second
+        float minSamples = 1; //Readings displayed per second
+        long maxP99 = 3000; //Milliseconds
+        long maxHeapGrowth = 32; //MB above the first interval
+        int maxThreadGrowth = 2; //Above the first interval
+        boolean failFast;
+
+        void set(String key, String value){
+            if(key.equals("interval")){
+                interval = Long.parseLong(value);
+            }else if(key.equals("minCommands")){
+                minCommands = Float.parseFloat(value);
+            }else if(key.equals("minSamples")){
+                minSamples = Float.parseFloat(value);
+            }else if(key.equals("maxP99")){
+                maxP99 = Long.parseLong(value);
+            }else if(key.equals("maxHeapGrowth")){
+                maxHeapGrowth = Long.parseLong(value);
+            }else if(key.equals("maxThreadGrowth")){
+                maxThreadGrowth = Integer.parseInt(value);
+            }else if(key.equals("failFast")){
+                failFast = Boolean.parseBoolean(value);
+            }else{
+                throw new IllegalArgumentException("Unknown option " + key);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Profile profile = Profile.named(args.length > 0 ? args[0] : "noisy");
+        double minutes = args.length > 1 ? Double.parseDouble(args[1]) : 60;
+        Thresholds thresholds = new Thresholds();
+        for(int i = 2; i < args.length; i++){
+            int equals = args[i].indexOf('=');
+            thresholds.set(args[i].substring(0, equals), args[i].substring(equals + 1));
+        }
+        long seconds = Math.round(minutes * 60);
+        if(seconds < 1){
+            System.out.println("A soak run needs at least one second");
+            System.exit(2);
+        }
+        System.out.println("Soak run, profile " + profile.name + " for " + minutes + " minutes");
+        boolean passed = new SoakRunner(profile, 1).run(seconds, thresholds);
+        System.exit(passed ? 0 : 1);
+    }
+}
@@ -0,0 +1,110 @@
+package ece281.joshua.robotcontrolv3;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that DistanceEstimator follows a robot approaching a wall through timeouts and spikes, and that its filtered
+ * distance never leaves the range the consumers round into cm.
+ */
+public class DistanceEstimatorTest {
+
+    private static final long MS = 1000000L; //Nanoseconds
+    private static final int READING_INTERVAL = 40; //Milliseconds between readings
+    private static final float TIMEOUT_PROBABILITY = 0.05f;
+    private static final float SPIKE_PROBABILITY = 0.03f;
+    private static final float NOISE = 1; //Standard deviation of a reading in cm
+
+    /*
+    A ramp from 300 cm towards the wall at 30 cm/s with sensor noise, where 5% of readings are timeouts and 3% spikes.
+    On the clean readings the filtered distance is no further from the truth than the readings themselves, and once
+    settled the velocity is within 3 cm/s of the real one on average
+     */
+    @Test
+    public void followsANoisyRampThroughTimeoutsAndSpikes(){
+        DistanceEstimator estimator = new DistanceEstimator(3);
+        Random random = new Random(13);
+        float speed = -30; //cm/s
+        double rawError = 0, filteredError = 0, velocityError = 0;
+        int clean = 0, settled = 0, timeouts = 0;
+
+        for(int i = 0; i < 200; i++){
+            long now = i * READING_INTERVAL * MS;
+            float truth = 300 + speed * i * READING_INTERVAL / 1000f;
+            float draw = random.nextFloat();
+            if(draw < TIMEOUT_PROBABILITY){
+                assertFalse(estimator.update(0, now));
+                timeouts++;
+                continue;
+            }
+            if(draw < TIMEOUT_PROBABILITY + SPIKE_PROBABILITY){
+                estimator.update(truth + (random.nextBoolean() ? 60 : -60), now);
+                continue;
+            }
+            float reading = truth + (float) random.nextGaussian() * NOISE;
+            assertTrue(estimator.update(reading, now));
+            rawError += Math.abs(reading - truth);
+            filteredError += Math.abs(estimator.getFiltered() - truth);
+            clean++;
+            if(i >= 50){
+                velocityError += Math.abs(estimator.getVelocity() - speed);
+                settled++;
+            }
+        }
+
+        assertTrue(clean > 150 && settled > 100);
+        assertEquals(timeouts, estimator.getTimeoutCount());
+        assertTrue("filtered " + filteredError / clean + " raw " + rawError / clean, filteredError <= rawError);
+        assertTrue("velocity off by " + velocityError / settled, velocityError / settled < 3);
+    }
+
+    /*
+    Closing on the sensor's 2 cm floor at 60 cm/s carries the constant velocity prediction below 0, the filtered
+    distance must stay at 0 or above
+     */
+    @Test
+    public void filteredDistanceNeverGoesNegative(){
+        DistanceEstimator estimator = new DistanceEstimator(3);
+        for(int i = 0; i < 100; i++){
+            float reading = Math.max(2, 100 - 60 * i * READING_INTERVAL / 1000f);
+            estimator.update(reading, i * READING_INTERVAL * MS);
+            assertTrue(estimator.getFiltered() >= 0);
+            assertTrue(estimator.getFiltered() <= DistanceEstimator.MAX_RANGE);
+        }
+        for(int i = 100; i < 120; i++){ //The sensor times out up against the wall, the prediction runs on
+            estimator.update(0, i * READING_INTERVAL * MS);
+            assertTrue(estimator.getFiltered() >= 0);
+        }
+    }
+
+    /*
+    A jump to a new obstacle restarts the filter from the new distance, but the robot has not changed speed so the
+    velocity is kept. The median takes the first reading of the new obstacle for a spike, so it takes one more reading
+    than REACQUIRE_AFTER
+     */
+    @Test
+    public void restartKeepsTheVelocity(){
+        DistanceEstimator estimator = new DistanceEstimator(3);
+        int i = 0;
+        for(; i < 50; i++){
+            estimator.update(300 - 30 * i * READING_INTERVAL / 1000f, i * READING_INTERVAL * MS);
+        }
+        float velocity = estimator.getVelocity();
+        assertEquals(-30, velocity, 1);
+
+        long outliers = estimator.getOutlierCount();
+        float reading = 0;
+        for(int jump = 0; jump <= DistanceEstimator.REACQUIRE_AFTER; jump++, i++){
+            reading = 100 - 30 * jump * READING_INTERVAL / 1000f;
+            estimator.update(reading, i * READING_INTERVAL * MS);
+        }
+        assertEquals(outliers + DistanceEstimator.REACQUIRE_AFTER, estimator.getOutlierCount());
+        assertEquals(reading, estimator.getFiltered(), 0.001f);
+        assertEquals(velocity, estimator.getVelocity(), 2); //Not reset to 0
+    }
+}
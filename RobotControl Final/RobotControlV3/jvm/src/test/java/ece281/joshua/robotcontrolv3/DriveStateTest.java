@@ -0,0 +1,168 @@
+package ece281.joshua.robotcontrolv3;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that DriveState snapshots are never torn and that concurrent partial updates are never lost.
+ */
+public class DriveStateTest {
+
+    private static final int WRITERS = 4;
+    private static final int READERS = 2;
+    private static final int UPDATES = 200000; //Per writer
+
+    @Test
+    public void packsAndUnpacksEveryField(){
+        int[] speeds = {-254, -238, -1, 0, 1, 100, 238, 254};
+        for(int left : speeds){
+            for(int right : speeds){
+                long state = DriveState.pack(3, DriveState.FLAG_LEFT | DriveState.FLAG_REVERSE, left, right);
+                assertEquals(3, DriveState.mode(state));
+                assertEquals(DriveState.FLAG_LEFT | DriveState.FLAG_REVERSE, DriveState.flags(state));
+                assertEquals(left, DriveState.left(state));
+                assertEquals(right, DriveState.right(state));
+            }
+        }
+    }
+
+    /*
+    Writers keep replacing the state with one where right == -left and the flags equal the mode, the way the sensor and UI
+    threads update it. Readers check every snapshot they take, the way the command sender reads it
+     */
+    @Test
+    public void readersNeverSeeTornCommands() throws InterruptedException {
+        final DriveState driveState = new DriveState(0);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicLong torn = new AtomicLong();
+        final AtomicLong reads = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] writers = new Thread[WRITERS];
+        for(int w = 0; w < WRITERS; w++){
+            final Random random = new Random(w);
+            writers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    for(int i = 0; i < UPDATES; i++){
+                        int speed = random.nextInt(509) - 254;
+                        if((i & 1) == 0){
+                            int mode = random.nextInt(4);
+                            driveState.set(mode, mode, speed, -speed);
+                        }else{
+                            driveState.setSpeeds(speed, -speed);
+                        }
+                    }
+                }
+            });
+        }
+
+        Thread[] readers = new Thread[READERS];
+        for(int r = 0; r < READERS; r++){
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    long count = 0;
+                    while(writing.get()){
+                        long state = driveState.get();
+                        if(DriveState.right(state) != -DriveState.left(state)
+                                || DriveState.flags(state) != DriveState.mode(state)){
+                            torn.incrementAndGet();
+                        }
+                        count++;
+                    }
+                    reads.addAndGet(count);
+                }
+            });
+        }
+
+        startAll(readers);
+        startAll(writers);
+        start.countDown();
+        joinAll(writers);
+        writing.set(false);
+        joinAll(readers);
+
+        assertTrue("readers did not run", reads.get() > 0);
+        assertEquals(0, torn.get());
+        assertEquals((WRITERS * UPDATES) & 0xFFFF, DriveState.version(driveState.get()));
+    }
+
+    /*
+    Each writer repeatedly sets and clears its own button flag while another thread changes the speeds. No update may be
+    lost, so every flag ends up in the state its writer left it in and the speeds are the last ones written
+     */
+    @Test
+    public void concurrentPartialUpdatesAreNotLost() throws InterruptedException {
+        final DriveState driveState = new DriveState(1);
+        final CountDownLatch start = new CountDownLatch(1);
+        final int[] flags = {DriveState.FLAG_LEFT, DriveState.FLAG_RIGHT, DriveState.FLAG_FORWARD, DriveState.FLAG_REVERSE};
+
+        Thread[] writers = new Thread[flags.length + 1];
+        for(int w = 0; w < flags.length; w++){
+            final int flag = flags[w];
+            final boolean endSet = (w & 1) == 0;
+            writers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    for(int i = 0; i < UPDATES; i++){
+                        driveState.setFlag(flag, true);
+                        driveState.setFlag(flag, false);
+                    }
+                    driveState.setFlag(flag, endSet);
+                }
+            });
+        }
+        writers[flags.length] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                await(start);
+                for(int i = 0; i < UPDATES; i++){
+                    driveState.setSpeeds(i % 255, -(i % 255));
+                }
+                driveState.setSpeeds(42, -42);
+            }
+        });
+
+        startAll(writers);
+        start.countDown();
+        joinAll(writers);
+
+        long state = driveState.get();
+        assertEquals(DriveState.FLAG_LEFT | DriveState.FLAG_FORWARD, DriveState.flags(state));
+        assertEquals(1, DriveState.mode(state));
+        assertEquals(42, DriveState.left(state));
+        assertEquals(-42, DriveState.right(state));
+    }
+
+    private static void await(CountDownLatch latch){
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void startAll(Thread[] threads){
+        for(Thread thread : threads){
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static void joinAll(Thread[] threads) throws InterruptedException {
+        for(Thread thread : threads){
+            thread.join(60000);
+        }
+    }
+}
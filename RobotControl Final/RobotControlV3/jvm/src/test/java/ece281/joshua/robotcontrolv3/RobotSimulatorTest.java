@@ -0,0 +1,161 @@
+package ece281.joshua.robotcontrolv3;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that RobotSimulator runs are repeatable whatever thread SimulationRunner puts them on, that the range finder
+ * measures the distance to a known wall, and that a reading with no echo waits out pulseIn()'s timeout and returns 0.
+ */
+public class RobotSimulatorTest {
+
+    private static final long SECOND = 1000000; //Microseconds
+    private static final float WIDTH = 300; //cm, of the room the range finder is checked in
+    private static final float HEIGHT = 200;
+
+    /*
+    Drives with the phone's autopilot and keeps every reading it is given
+     */
+    private static class RecordingDriver implements SimulationRunner.Driver {
+
+        final SimulationRunner.PhoneAutopilot autopilot = new SimulationRunner.PhoneAutopilot();
+        final List<Float> readings = new ArrayList<Float>();
+
+        @Override
+        public void onDistance(float distance, int sequence, long now) {
+            readings.add(distance);
+            autopilot.onDistance(distance, sequence, now);
+        }
+
+        @Override
+        public int command(CommandFrame frame, long now) {
+            return autopilot.command(frame, now);
+        }
+    }
+
+    /*
+    Keeps the last reading decoded from the simulator's replies
+     */
+    private static class LastReading implements TelemetryDecoder.Listener {
+
+        float distance = -1;
+        int sequence = -1;
+
+        @Override
+        public void onDistance(float distance, int sequence) {
+            this.distance = distance;
+            this.sequence = sequence;
+        }
+    }
+
+    private static SimulationRunner.Scenario scenario(long seed){
+        RobotSimulator simulator = SimulationRunner.randomRobot(seed);
+        simulator.setSensor(2, 0.05f); //Noisy and with timeouts, so the seed's random numbers are used
+        return new SimulationRunner.Scenario("room " + seed, simulator, new RecordingDriver(), 20 * SECOND);
+    }
+
+    @Test
+    public void sameSeedGivesTheSameRun() throws InterruptedException {
+        List<SimulationRunner.Scenario> scenarios = new ArrayList<SimulationRunner.Scenario>();
+        for(int i = 0; i < 4; i++){
+            scenarios.add(scenario(i < 2 ? 7 : 8));
+        }
+        SimulationRunner.run(scenarios, 2); //The two runs of each seed on different threads
+
+        for(int i = 0; i < 4; i += 2){
+            RobotSimulator first = scenarios.get(i).getSimulator();
+            RobotSimulator second = scenarios.get(i + 1).getSimulator();
+            assertEquals(first.getX(), second.getX(), 0);
+            assertEquals(first.getY(), second.getY(), 0);
+            assertEquals(first.getHeading(), second.getHeading(), 0);
+            assertEquals(first.getTravelled(), second.getTravelled(), 0);
+            assertEquals(first.getTimeoutCount(), second.getTimeoutCount());
+            assertTrue(first.getTravelled() > 0);
+            assertTrue(first.getTimeoutCount() > 0);
+
+            List<Float> readings = ((RecordingDriver) scenarios.get(i).getDriver()).readings;
+            assertTrue(readings.size() > 100);
+            assertEquals(readings, ((RecordingDriver) scenarios.get(i + 1).getDriver()).readings);
+        }
+        assertFalse(((RecordingDriver) scenarios.get(0).getDriver()).readings
+                .equals(((RecordingDriver) scenarios.get(2).getDriver()).readings));
+    }
+
+    @Test
+    public void rayCastReturnsTheDistanceToAKnownWall(){
+        SimulatedRoom room = SimulatedRoom.rectangle(WIDTH, HEIGHT);
+        float minCos = RobotSimulator.MIN_ECHO_COS;
+        assertEquals(200, room.castRay(100, 50, 0, minCos), 1e-3f);
+        assertEquals(150, room.castRay(100, 50, (float) (Math.PI / 2), minCos), 1e-3f);
+        assertEquals(100, room.castRay(100, 50, (float) Math.PI, minCos), 1e-3f);
+        assertEquals(100 * Math.sqrt(2), room.castRay(100, 100, (float) (Math.PI / 4), 0), 1e-3f); //The top wall, obliquely
+
+        SimulatedRoom open = new SimulatedRoom(WIDTH, HEIGHT);
+        open.addWall(200, -10, 400, 10); //Struck about 6 degrees from along it, so it reflects the sound away
+        assertEquals(-1, open.castRay(100, 0, 0, minCos), 0);
+        assertEquals(200, open.castRay(100, 0, 0, 0), 1e-3f); //Crosses y = 0 at x = 300
+        assertEquals(-1, open.castRay(100, 0, (float) Math.PI, 0), 0);
+    }
+
+    /*
+    The robot facing a wall 192 cm from its range finder, with no noise, measures it through the firmware's formula,
+    which takes the raw LM35 reading for degrees
+     */
+    @Test
+    public void rangeFinderMeasuresTheWallItFaces(){
+        RobotSimulator simulator = new RobotSimulator(SimulatedRoom.rectangle(WIDTH, HEIGHT), 100, 100, 0, 1);
+        simulator.setSensor(0, 0);
+        LastReading reading = command(simulator, 42, SECOND);
+
+        float range = WIDTH - 100 - RobotSimulator.SENSOR_OFFSET;
+        float speedOfSound = 331.3f + 0.606f * 22; //The simulated room's default temperature
+        int temp = (int) (22 * RobotSimulator.MILLIVOLTS_PER_DEGREE / RobotSimulator.MILLIVOLTS_PER_COUNT);
+        assertEquals(range * (331.5f + 0.6f * temp) / speedOfSound, reading.distance, 0.1f);
+        assertEquals(42, reading.sequence);
+        assertEquals(0, simulator.getTimeoutCount());
+    }
+
+    @Test
+    public void pulseInTimeoutReturnsZero(){
+        RobotSimulator simulator = new RobotSimulator(SimulatedRoom.rectangle(WIDTH, HEIGHT), 100, 100, 0, 1);
+        simulator.setSensor(0, 1); //No echo ever starts
+
+        CommandFrame frame = new CommandFrame(CommandFrame.FORMAT_BINARY);
+        int length = frame.encode('i', 0, 0, 42);
+        simulator.receive(frame.getBuffer(), 0, length);
+        //Nothing comes back until pulseIn() has given up, however soon after the frame arrives the loop reads it
+        simulator.advanceTo(length * RobotSimulator.BYTE_TIME + RobotSimulator.PULSE_IN_TIMEOUT);
+        assertEquals(0, simulator.available());
+
+        LastReading reading = command(simulator, 43, 3 * SECOND);
+        assertEquals(0, reading.distance, 0);
+        assertEquals(43, reading.sequence);
+        assertEquals(simulator.getReadingCount(), simulator.getTimeoutCount());
+        assertEquals(2, simulator.getTimeoutCount());
+    }
+
+    /*
+    Sends an idle command with the given sequence number, runs the simulator until time and decodes its replies
+     */
+    private static LastReading command(RobotSimulator simulator, int sequence, long time){
+        CommandFrame frame = new CommandFrame(CommandFrame.FORMAT_BINARY);
+        int length = frame.encode('i', 0, 0, sequence);
+        simulator.receive(frame.getBuffer(), 0, length);
+        simulator.advanceTo(time);
+
+        LastReading reading = new LastReading();
+        TelemetryDecoder decoder = new TelemetryDecoder(reading);
+        byte[] buffer = new byte[256];
+        int count;
+        while((count = simulator.read(buffer, 0, buffer.length)) > 0){
+            decoder.feed(buffer, 0, count);
+        }
+        return reading;
+    }
+}
@@ -0,0 +1,144 @@
+package ece281.joshua.robotcontrolv3;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that TelemetryDecoder delivers the same readings however the bytes are split into reads, and counts the lines
+ * it throws away.
+ */
+public class TelemetryDecoderTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /*
+    Keeps every reading delivered, as "distance sequence"
+     */
+    private static class Readings implements TelemetryDecoder.Listener {
+
+        final List<String> received = new ArrayList<String>();
+
+        @Override
+        public void onDistance(float distance, int sequence) {
+            received.add(distance + " " + sequence);
+        }
+    }
+
+    private static byte[] bytes(String text){
+        return text.getBytes(ASCII);
+    }
+
+    @Test
+    public void decodesReadingsFedOneByteAtATime(){
+        Readings readings = new Readings();
+        TelemetryDecoder decoder = new TelemetryDecoder(readings);
+        byte[] data = bytes("23.45\r\n17.5 3\r\n-2.25 255\r\n400\r\n");
+        for(int i = 0; i < data.length; i++){
+            decoder.feed(data, i, 1);
+        }
+
+        assertEquals(4, readings.received.size());
+        assertEquals("23.45 -1", readings.received.get(0));
+        assertEquals("17.5 3", readings.received.get(1));
+        assertEquals("-2.25 255", readings.received.get(2));
+        assertEquals("400.0 -1", readings.received.get(3));
+        assertEquals(4, decoder.getDecodedCount());
+        assertEquals(0, decoder.getMalformedCount());
+        assertEquals(0, decoder.getDroppedCount());
+    }
+
+    @Test
+    public void decodesCoalescedAndSplitReadings(){
+        Readings readings = new Readings();
+        TelemetryDecoder decoder = new TelemetryDecoder(readings);
+        byte[] first = bytes("10.00 1\r\n20.00 2\r\n30.0");
+        byte[] second = bytes("0 3\r\n40.00 4\r\n");
+        decoder.feed(first, 0, first.length);
+        assertEquals(2, readings.received.size());
+        decoder.feed(second, 0, second.length);
+
+        assertEquals(4, readings.received.size());
+        assertEquals("30.0 3", readings.received.get(2));
+        assertEquals("40.0 4", readings.received.get(3));
+    }
+
+    @Test
+    public void dropsLinesTooLongToBufferAndCarriesOn(){
+        Readings readings = new Readings();
+        TelemetryDecoder decoder = new TelemetryDecoder(readings);
+        StringBuilder line = new StringBuilder();
+        for(int i = 0; i < 200; i++){
+            line.append('7');
+        }
+        byte[] data = bytes(line + "\r\n12.5 9\r\n");
+        decoder.feed(data, 0, data.length);
+
+        assertEquals(1, decoder.getDroppedCount());
+        assertEquals(0, decoder.getMalformedCount());
+        assertEquals(1, readings.received.size());
+        assertEquals("12.5 9", readings.received.get(0));
+    }
+
+    @Test
+    public void countsGarbageAsMalformed(){
+        Readings readings = new Readings();
+        TelemetryDecoder decoder = new TelemetryDecoder(readings);
+        byte[] data = bytes("nan\r\n12.3x\r\n1 abc\r\n\r\n1234567890123\r\n.\r\n5.5 7\r\n");
+        byte[] noise = {(byte) 0xFF, (byte) 0xFE, 0, '\r', '\n'};
+        decoder.feed(data, 0, data.length);
+        decoder.feed(noise, 0, noise.length);
+
+        assertEquals(7, decoder.getMalformedCount());
+        assertEquals(1, decoder.getDecodedCount());
+        assertEquals(1, readings.received.size());
+        assertEquals("5.5 7", readings.received.get(0));
+    }
+
+    /*
+    Many lines of every length fed in reads of every size, so lines start at every position of the ring
+     */
+    @Test
+    public void decodesLongStreamsInReadsOfAnySize(){
+        Readings readings = new Readings();
+        TelemetryDecoder decoder = new TelemetryDecoder(readings);
+        byte[] line = new byte[TelemetryDecoder.MAX_FORMATTED_LENGTH];
+        byte[] stream = new byte[100000 * TelemetryDecoder.MAX_FORMATTED_LENGTH];
+        int length = 0;
+        int lines = 0;
+        while(length + line.length <= stream.length){
+            int formatted = TelemetryDecoder.format(lines % 4000 / 10f, lines & 0xFF, line, 0);
+            System.arraycopy(line, 0, stream, length, formatted);
+            length += formatted;
+            lines++;
+        }
+        for(int offset = 0, read = 1; offset < length; offset += read, read = read % 97 + 1){
+            decoder.feed(stream, offset, Math.min(read, length - offset));
+        }
+
+        assertEquals(lines, readings.received.size());
+        assertEquals(0, decoder.getMalformedCount());
+        assertEquals(0, decoder.getDroppedCount());
+        for(int i = 0; i < lines; i += 997){
+            assertEquals(i % 4000 / 10f + " " + (i & 0xFF), readings.received.get(i));
+        }
+    }
+
+    @Test
+    public void resetDiscardsThePartialLine(){
+        Readings readings = new Readings();
+        TelemetryDecoder decoder = new TelemetryDecoder(readings);
+        byte[] partial = bytes("99.9");
+        byte[] next = bytes("8.5 1\r\n");
+        decoder.feed(partial, 0, partial.length);
+        decoder.reset();
+        decoder.feed(next, 0, next.length);
+
+        assertEquals(1, readings.received.size());
+        assertEquals("8.5 1", readings.received.get(0));
+    }
+}
@@ -0,0 +1,118 @@
+package ece281.joshua.robotcontrolv3;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a TelemetryPipeline consumer too slow to keep up loses the oldest readings, counted as dropped, and is
+ * never handed a reading overwritten while it was read: every reading it is given is the one its slot's stamp says.
+ */
+public class TelemetryPipelineTest {
+
+    private static final int READINGS = 200000;
+
+    /*
+    Sleeps every few readings, so the publisher laps it many times. Every reading is published with its number as its
+    time, and its distance and sequence number derived from it, so a reading mixing two slots shows, and so does one
+    that is not the reading the cursor has reached
+     */
+    private static class SlowConsumer implements TelemetryPipeline.Consumer {
+
+        TelemetryPipeline.Cursor cursor;
+        volatile long received;
+        volatile long torn; //Readings whose columns do not belong together
+        volatile long wrongReading; //Readings other than the one numbered by the cursor's position
+        volatile long outOfOrder;
+        private long last = -1;
+
+        @Override
+        public void onReading(long time, float distance, int sequence) {
+            if(distance != time % 4000 / 10f || sequence != (int) time){
+                torn++;
+            }
+            //The cursor's thread counts this reading as consumed before handing it over, so this is its number
+            if(time != cursor.getConsumed() + cursor.getDropped() - 1){
+                wrongReading++;
+            }
+            if(time <= last){
+                outOfOrder++;
+            }
+            last = time;
+            received++;
+            if(received % 50 == 0){
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void onCaughtUp() {
+        }
+    }
+
+    @Test
+    public void slowConsumerDropsTheOldestReadingsAndNoTornOnes() throws InterruptedException {
+        TelemetryPipeline pipeline = new TelemetryPipeline();
+        SlowConsumer consumer = new SlowConsumer();
+        TelemetryPipeline.Cursor cursor = pipeline.addConsumer("slow", consumer);
+        consumer.cursor = cursor;
+        pipeline.start();
+        try {
+            for(long i = 0; i < READINGS; i++){
+                pipeline.publish(i, i % 4000 / 10f, (int) i);
+            }
+            long deadline = System.nanoTime() + 10000000000L;
+            while(cursor.getConsumed() + cursor.getDropped() < READINGS && System.nanoTime() < deadline){
+                Thread.sleep(10);
+            }
+            Thread.sleep(50); //Nothing more may be counted once every reading is accounted for
+        } finally {
+            pipeline.stop();
+        }
+
+        assertEquals(READINGS, pipeline.getPublished());
+        assertEquals(READINGS, cursor.getConsumed() + cursor.getDropped());
+        assertEquals(cursor.getConsumed(), consumer.received);
+        assertTrue("nothing dropped, the consumer was not lapped", cursor.getDropped() > 0);
+        assertTrue(cursor.getMaxLag() >= TelemetryPipeline.CAPACITY);
+        assertEquals(0, cursor.getLag());
+        assertEquals(0, consumer.torn);
+        assertEquals(0, consumer.wrongReading);
+        assertEquals(0, consumer.outOfOrder);
+    }
+
+    /*
+    Readings published before the consumer starts, more than the ring holds: the ones overwritten are skipped and the
+    first reading handed over is the oldest whose stamp is still in its slot
+     */
+    @Test
+    public void startsFromTheOldestStampStillInTheRing() throws InterruptedException {
+        TelemetryPipeline pipeline = new TelemetryPipeline();
+        SlowConsumer consumer = new SlowConsumer();
+        TelemetryPipeline.Cursor cursor = pipeline.addConsumer("late", consumer);
+        consumer.cursor = cursor;
+        int overwritten = 10;
+        for(long i = 0; i < TelemetryPipeline.CAPACITY + overwritten; i++){
+            pipeline.publish(i, i % 4000 / 10f, (int) i);
+        }
+        pipeline.start();
+        try {
+            long deadline = System.nanoTime() + 10000000000L;
+            while(cursor.getLag() > 0 && System.nanoTime() < deadline){
+                Thread.sleep(10);
+            }
+        } finally {
+            pipeline.stop();
+        }
+
+        assertEquals(overwritten, cursor.getDropped());
+        assertEquals(TelemetryPipeline.CAPACITY, consumer.received);
+        assertEquals(0, consumer.torn);
+        assertEquals(0, consumer.wrongReading);
+    }
+}
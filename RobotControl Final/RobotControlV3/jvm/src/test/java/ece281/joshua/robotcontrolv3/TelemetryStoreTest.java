@@ -0,0 +1,126 @@
+package ece281.joshua.robotcontrolv3;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the running aggregates of TelemetryStore windows match the same aggregates recomputed from scratch, and
+ * that any filtered distance can be stored.
+ */
+public class TelemetryStoreTest {
+
+    private static final long MS = 1000000L; //Nanoseconds
+    private static final int DURATION = 1000; //Milliseconds, the window checked
+    private static final int THRESHOLD = 20; //cm
+
+    /*
+    Distances outside the histogram, including one that rounds to -1, are kept at its ends rather than thrown out or
+    taken for a rejected reading
+     */
+    @Test
+    public void keepsDistancesWithinTheHistogram(){
+        TelemetryStore store = new TelemetryStore(16, 0);
+        TelemetryStore.Window window = store.addWindow(DURATION, THRESHOLD);
+        store.add(1 * MS, 0, true, -0.6f, 'm', 0, 0);
+        store.add(2 * MS, 0, true, -50, 'm', 0, 0);
+        store.add(3 * MS, 0, true, 450, 'm', 0, 0);
+        store.add(4 * MS, 0, false, 30, 'm', 0, 0);
+
+        assertEquals(0, store.getDistance(3));
+        assertEquals(0, store.getDistance(2));
+        assertEquals(TelemetryStore.HISTOGRAM_RANGE, store.getDistance(1));
+        assertEquals(TelemetryStore.NO_DISTANCE, store.getDistance(0));
+        assertEquals(4, window.getRows());
+        assertEquals(3, window.getReadings());
+        assertEquals(0, window.getMin());
+        assertEquals(TelemetryStore.HISTOGRAM_RANGE, window.getMax());
+        assertEquals(0, window.getPercentile(0.5));
+        assertEquals(TelemetryStore.HISTOGRAM_RANGE, window.getPercentile(1));
+
+        store.expire(2000 * MS); //Removing them again must not throw either
+        assertEquals(0, window.getRows());
+        assertEquals(TelemetryStore.NO_DISTANCE, window.getMin());
+    }
+
+    /*
+    200000 rows at irregular intervals with gaps longer than the window, rejected readings, and bursts faster than
+    MAX_RATE. After every row the window must agree with the rows recomputed by brute force
+     */
+    @Test
+    public void windowMatchesABruteForceRecomputation(){
+        Random random = new Random(1);
+        TelemetryStore store = new TelemetryStore(4096, 0);
+        TelemetryStore.Window window = store.addWindow(DURATION, THRESHOLD);
+        int maxRows = DURATION * TelemetryStore.MAX_RATE / 1000;
+        List<long[]> rows = new ArrayList<long[]>(); //Time in milliseconds and distance of every row
+        List<Integer> sorted = new ArrayList<Integer>();
+        long now = 0;
+
+        for(int i = 0; i < 200000; i++){
+            now += (random.nextInt(10) == 0 ? random.nextInt(3000) : random.nextInt(40)) * MS;
+            int distance = random.nextInt(8) == 0 ? TelemetryStore.NO_DISTANCE : random.nextInt(60);
+            store.add(now, distance, distance != TelemetryStore.NO_DISTANCE, distance, 'm', 1, 2);
+            rows.add(new long[]{now / MS, distance});
+            if(i % 97 == 0){ //Readings stop for a while
+                now += random.nextInt(500) * MS;
+                store.expire(now);
+            }
+
+            int start = rows.size();
+            while(start > 0 && now / MS - rows.get(start - 1)[0] <= DURATION && rows.size() - start < maxRows){
+                start--;
+            }
+            boolean wasBelow = false; //Whether the last reading before the window was below the threshold
+            for(int k = start - 1; k >= 0; k--){
+                if(rows.get(k)[1] != TelemetryStore.NO_DISTANCE){
+                    wasBelow = rows.get(k)[1] < THRESHOLD;
+                    break;
+                }
+            }
+            int readings = 0, below = 0, dips = 0, min = Integer.MAX_VALUE, max = -1;
+            long sum = 0;
+            sorted.clear();
+            for(int k = start; k < rows.size(); k++){
+                int d = (int) rows.get(k)[1];
+                if(d == TelemetryStore.NO_DISTANCE){
+                    continue;
+                }
+                readings++;
+                sum += d;
+                min = Math.min(min, d);
+                max = Math.max(max, d);
+                sorted.add(d);
+                boolean isBelow = d < THRESHOLD;
+                if(isBelow){
+                    below++;
+                    if(!wasBelow){
+                        dips++;
+                    }
+                }
+                wasBelow = isBelow;
+            }
+
+            String row = "row " + i;
+            assertEquals(row, rows.size() - start, window.getRows());
+            assertEquals(row, readings, window.getReadings());
+            assertEquals(row, dips, window.getDips());
+            if(readings == 0){
+                assertEquals(row, TelemetryStore.NO_DISTANCE, window.getMin());
+                continue;
+            }
+            Collections.sort(sorted);
+            assertEquals(row, min, window.getMin());
+            assertEquals(row, max, window.getMax());
+            assertEquals(row, (float) sum / readings, window.getMean(), 1e-3f);
+            assertEquals(row, (float) below / readings, window.getBelowFraction(), 1e-6f);
+            assertEquals(row, (int) sorted.get((int) Math.ceil(0.5 * readings) - 1), window.getPercentile(0.5));
+            assertEquals(row, (int) sorted.get((int) Math.ceil(0.9 * readings) - 1), window.getPercentile(0.9));
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package ece281.joshua.robotcontrolv3;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that trajectory frames survive encoding, and that an ArduinoEmulator running one uploaded trajectory follows a
+ * planned manoeuvre more closely, with fewer bytes, than one streamed 'm' setpoints over a link that hiccups.
+ */
+public class TrajectoryTest {
+
+    private static final long MS = 1000000L; //Nanoseconds
+    private static final int STREAM_INTERVAL = 100; //Milliseconds between streamed setpoints, BLUETOOTH_COM_INTERVAL
+    private static final int HICCUP_START = 300; //Milliseconds, setpoints sent from here are held up by the link
+    private static final int HICCUP_END = 700; //and all delivered together here
+    private static final int SAMPLE_INTERVAL = 5; //Milliseconds between comparisons of the emulator with the plan
+
+    /*
+    An emulator on a clock the test moves by hand
+     */
+    private static class ClockedEmulator extends ArduinoEmulator {
+
+        long time;
+
+        ClockedEmulator(){
+            super(1);
+        }
+
+        @Override
+        long now() {
+            return time;
+        }
+    }
+
+    @Test
+    public void encodesAndDecodesEverySegment(){
+        Trajectory trajectory = new Trajectory(600);
+        trajectory.clear(0, 0);
+        assertTrue(trajectory.hold(-238, 100, 300));
+        assertTrue(trajectory.hold(255, -255, Trajectory.MAX_DURATION + 5));
+        assertTrue(trajectory.hold(0, 0, 1));
+        assertEquals(4, trajectory.getCount());
+
+        int length = trajectory.encode(200);
+        assertEquals(Trajectory.frameLength(4), length);
+        byte[] frame = trajectory.getBuffer();
+        assertEquals(Trajectory.SYNC, frame[0]);
+        assertEquals(200, frame[2] & 0xFF);
+        assertEquals(CommandFrame.checksum(frame, 1, length - 2), frame[length - 1]);
+        for(int i = 0; i < trajectory.getCount(); i++){
+            assertEquals(trajectory.getLeft(i), Trajectory.segmentLeft(frame, i));
+            assertEquals(trajectory.getRight(i), Trajectory.segmentRight(frame, i));
+            assertEquals(trajectory.getDuration(i), Trajectory.segmentDuration(frame, i));
+        }
+        assertEquals(Trajectory.MAX_DURATION, trajectory.getDuration(1));
+        assertEquals(5, trajectory.getDuration(2));
+    }
+
+    @Test
+    public void rampsNoFasterThanTheSlewRate(){
+        float slewRate = 600;
+        Trajectory trajectory = new Trajectory(slewRate);
+        trajectory.clear(-100, 0);
+        assertTrue(trajectory.rampTo(238, 238));
+        assertEquals(SpeedControl.pack(238, 238), trajectory.speedsAt(trajectory.getTotalDuration() - 1));
+        assertEquals(SpeedControl.pack(0, 0), trajectory.speedsAt(trajectory.getTotalDuration()));
+
+        int left = -100, right = 0;
+        for(int i = 0; i < trajectory.getCount(); i++){
+            float seconds = trajectory.getDuration(i) / 1000f;
+            assertTrue(Math.abs(trajectory.getLeft(i) - left) <= slewRate * seconds + 1);
+            assertTrue(Math.abs(trajectory.getRight(i) - right) <= slewRate * seconds + 1);
+            left = trajectory.getLeft(i);
+            right = trajectory.getRight(i);
+        }
+        assertTrue(trajectory.getTotalDuration() >= 338 * 1000 / slewRate);
+    }
+
+    @Test
+    public void refusesSegmentsBeyondTheFrame(){
+        Trajectory trajectory = new Trajectory(600);
+        trajectory.clear(0, 0);
+        for(int i = 0; i < Trajectory.MAX_SEGMENTS; i++){
+            assertTrue(trajectory.hold(i + 1, 0, 10));
+        }
+        assertFalse(trajectory.hold(0, 0, 10));
+        assertFalse(trajectory.rampTo(200, 200));
+        assertTrue(trajectory.hold(Trajectory.MAX_SEGMENTS, 0, 10)); //Merges with the last segment
+        assertEquals(Trajectory.MAX_LENGTH, trajectory.encode(1));
+    }
+
+    @Test
+    public void anyCommandCancelsAndEmptyFramesOnlyAnswer() throws IOException {
+        ClockedEmulator emulator = new ClockedEmulator();
+        ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        Trajectory trajectory = new Trajectory(600);
+        trajectory.clear(0, 0);
+        trajectory.hold(150, -150, 1000);
+
+        send(emulator, trajectory.encode(1), trajectory.getBuffer(), replies);
+        emulator.time = 100 * MS;
+        trajectory.clear(0, 0);
+        send(emulator, trajectory.encode(2), trajectory.getBuffer(), replies);
+        emulator.advance();
+        assertTrue(emulator.isRunningTrajectory());
+        assertEquals(150, emulator.getLeftSpeed());
+        assertEquals(-150, emulator.getRightSpeed());
+
+        CommandFrame frame = new CommandFrame(CommandFrame.FORMAT_BINARY);
+        send(emulator, frame.encode('i', 0, 0), frame.getBuffer(), replies);
+        emulator.time = 200 * MS;
+        emulator.advance();
+        assertFalse(emulator.isRunningTrajectory());
+        assertEquals(0, emulator.getLeftSpeed());
+        assertEquals(3, replies.toString("US-ASCII").split("\r\n").length);
+    }
+
+    /*
+    Ramps up to full speed, holds it for a second and ramps back down. Streaming sends the plan's speeds every
+    STREAM_INTERVAL, as the app did, but the link holds up those sent during the hiccup and then delivers them all at
+    once. The trajectory is uploaded once before the hiccup, followed by empty frames for readings at the same rate
+     */
+    @Test
+    public void oneUploadFollowsThePlanBetterThanStreaming() throws IOException {
+        Trajectory plan = new Trajectory(600);
+        plan.clear(0, 0);
+        assertTrue(plan.rampTo(238, 238));
+        assertTrue(plan.hold(238, 238, 1000));
+        assertTrue(plan.rampTo(0, 0));
+        int total = plan.getTotalDuration();
+
+        //Streamed setpoints
+        ClockedEmulator streamed = new ClockedEmulator();
+        CommandFrame frame = new CommandFrame(CommandFrame.FORMAT_BINARY);
+        ByteArrayOutputStream replies = new ByteArrayOutputStream();
+        byte[] held = new byte[4096];
+        int heldLength = 0;
+        long streamedBytes = 0;
+        double streamedError = 0;
+        for(int t = 0; t <= total + STREAM_INTERVAL; t += SAMPLE_INTERVAL){
+            streamed.time = t * MS;
+            if(t % STREAM_INTERVAL == 0){
+                int speeds = plan.speedsAt(t);
+                int length = frame.encode('m', SpeedControl.left(speeds), SpeedControl.right(speeds));
+                streamedBytes += length;
+                System.arraycopy(frame.getBuffer(), 0, held, heldLength, length);
+                heldLength += length;
+            }
+            if(heldLength > 0 && (t < HICCUP_START || t >= HICCUP_END)){
+                send(streamed, heldLength, held, replies);
+                heldLength = 0;
+            }
+            streamed.advance();
+            streamedError += error(streamed, plan, t);
+        }
+
+        //One trajectory
+        ClockedEmulator planned = new ClockedEmulator();
+        Trajectory keepAlive = new Trajectory(600);
+        long plannedBytes = 0;
+        double plannedError = 0;
+        for(int t = 0; t <= total + STREAM_INTERVAL; t += SAMPLE_INTERVAL){
+            planned.time = t * MS;
+            if(t == 0){
+                int length = plan.encode(frame.nextSequence());
+                plannedBytes += length;
+                send(planned, length, plan.getBuffer(), replies);
+            }else if(t % STREAM_INTERVAL == 0 && (t < HICCUP_START || t >= HICCUP_END)){
+                keepAlive.clear(0, 0);
+                int length = keepAlive.encode(frame.nextSequence());
+                plannedBytes += length;
+                send(planned, length, keepAlive.getBuffer(), replies);
+            }
+            planned.advance();
+            plannedError += error(planned, plan, t);
+        }
+
+        int samples = (total + STREAM_INTERVAL) / SAMPLE_INTERVAL + 1;
+        streamedError /= samples;
+        plannedError /= samples;
+
+        assertFalse(planned.isRunningTrajectory());
+        assertEquals(0, planned.getLeftSpeed());
+        assertEquals(20 * CommandFrame.BINARY_LENGTH, streamedBytes); //One 'm' frame every STREAM_INTERVAL
+        assertEquals(112, plannedBytes); //The upload and the empty frames
+        assertTrue("streamed error " + streamedError, streamedError > 10); //Stalls through the hiccup, then catches up
+        assertTrue("trajectory error " + plannedError, plannedError < 0.5);
+        assertTrue(plannedError < streamedError / 10);
+    }
+
+    private static void send(ArduinoEmulator emulator, int length, byte[] data, ByteArrayOutputStream replies)
+            throws IOException {
+        emulator.receive(data, 0, length, replies);
+    }
+
+    /*
+    How far the emulator's speeds are from the plan's at time t, in speed units
+     */
+    private static double error(ArduinoEmulator emulator, Trajectory plan, int t){
+        int speeds = plan.speedsAt(t);
+        return (Math.abs(emulator.getLeftSpeed() - SpeedControl.left(speeds))
+                + Math.abs(emulator.getRightSpeed() - SpeedControl.right(speeds))) / 2.0;
+    }
+}